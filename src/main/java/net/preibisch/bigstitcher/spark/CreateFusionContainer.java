@@ -44,6 +44,7 @@ import net.preibisch.bigstitcher.spark.SparkAffineFusion.DataTypeFusion;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractBasic;
 import net.preibisch.bigstitcher.spark.util.Downsampling;
 import net.preibisch.bigstitcher.spark.util.Import;
+import net.preibisch.bigstitcher.spark.util.IntensityRange;
 import net.preibisch.bigstitcher.spark.util.N5Util;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
@@ -98,6 +99,11 @@ public class CreateFusionContainer extends AbstractBasic implements Callable<Voi
 	@Option(names = { "--maxIntensity" }, description = "optionally adjust max intensity for scaling values to the desired range for UINT8 and UINT16 output, (default: 255 for UINT8, 65535 for UINT16)")
 	private Double maxIntensity = null;
 
+	@Option(names = { "--estimateIntensityRange" }, description = "for UINT8 and UINT16 output, estimate --minIntensity and --maxIntensity (if not set) as percentiles of intensities "
+			+ "sampled from a few storage chunks of all views; it is a single range for all channels since the container stores one min/max "
+			+ "that is applied to every channel, e.g. --estimateIntensityRange 0.1,99.9 (default: no estimation)")
+	private String estimateIntensityRange = null;
+
 	@Option(names = { "--bdv" }, required = false, description = "Write a BigDataViewer-compatible dataset (default: false)")
 	private boolean bdv = false;
 
@@ -230,20 +236,33 @@ public class CreateFusionContainer extends AbstractBasic implements Callable<Voi
 		System.out.println( "Compression: " + this.compression );
 		System.out.println( "Compression level: " + ( compressionLevel == null ? "default" : compressionLevel ) );
 
+		// estimate the intensity range for scaling to UINT8/UINT16 from a sample of all views
+		Double estimatedMin = null, estimatedMax = null;
+
+		if ( estimateIntensityRange != null && ( dataTypeFusion == DataTypeFusion.UINT8 || dataTypeFusion == DataTypeFusion.UINT16 ) &&
+				( this.minIntensity == null || this.maxIntensity == null ) )
+		{
+			final double[] percentiles = Import.csvStringToDoubleArray( estimateIntensityRange );
+			final double[] range = IntensityRange.estimate( null, xmlURI, dataGlobal, viewIdsGlobal, percentiles[ 0 ], percentiles[ 1 ], IntensityRange.defaultSamplesPerView );
+
+			estimatedMin = range[ 0 ];
+			estimatedMax = range[ 1 ];
+		}
+
 		final DataType dt;
 		Double minIntensity, maxIntensity;
 
 		if ( dataTypeFusion == DataTypeFusion.UINT8 )
 		{
 			dt = DataType.UINT8;
-			minIntensity = (this.minIntensity == null) ? 0 : this.minIntensity;
-			maxIntensity = (this.maxIntensity == null) ? 255 : this.maxIntensity;
+			minIntensity = (this.minIntensity == null) ? ( estimatedMin == null ? 0 : estimatedMin ) : this.minIntensity;
+			maxIntensity = (this.maxIntensity == null) ? ( estimatedMax == null ? 255 : estimatedMax ) : this.maxIntensity;
 		}
 		else if ( dataTypeFusion == DataTypeFusion.UINT16 )
 		{
 			dt = DataType.UINT16;
-			minIntensity = (this.minIntensity == null) ? 0 : this.minIntensity;
-			maxIntensity = (this.maxIntensity == null) ? 65535 : this.maxIntensity;
+			minIntensity = (this.minIntensity == null) ? ( estimatedMin == null ? 0 : estimatedMin ) : this.minIntensity;
+			maxIntensity = (this.maxIntensity == null) ? ( estimatedMax == null ? 65535 : estimatedMax ) : this.maxIntensity;
 		}
 		else if ( dataTypeFusion == DataTypeFusion.FLOAT32 )
 		{
@@ -31,11 +31,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.universe.N5Factory.StorageFormat;
 
 import mpicbg.models.Model;
 import mpicbg.spim.data.SpimDataException;
@@ -43,15 +48,24 @@ import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractRegistration;
+import net.preibisch.bigstitcher.spark.util.AdaptiveRansac;
+import net.preibisch.bigstitcher.spark.util.CorrespondenceTools;
+import net.preibisch.bigstitcher.spark.util.FlatICP;
+import net.preibisch.bigstitcher.spark.util.FlatInterestPoints;
+import net.preibisch.bigstitcher.spark.util.InterestPointCache;
+import net.preibisch.bigstitcher.spark.util.PairPartitioner;
 import net.preibisch.bigstitcher.spark.util.Spark;
+import net.preibisch.bigstitcher.spark.util.TranslationDescriptors;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.legacy.mpicbg.PointMatchGeneric;
 import net.preibisch.mvrecon.fiji.plugin.interestpointregistration.parameters.AdvancedRegistrationParameters;
 import net.preibisch.mvrecon.fiji.plugin.interestpointregistration.parameters.BasicRegistrationParameters.InterestPointOverlapType;
 import net.preibisch.mvrecon.fiji.plugin.interestpointregistration.parameters.BasicRegistrationParameters.OverlapType;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoints;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPointsN5;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import net.preibisch.mvrecon.process.interestpointregistration.TransformationTools;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.MatcherPairwise;
@@ -76,6 +90,8 @@ import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import scala.Tuple2;
+import scala.Tuple3;
+import util.URITools;
 
 public class SparkGeometricDescriptorMatching extends AbstractRegistration
 {
@@ -151,8 +167,30 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 	@Option(names = { "-iit", "--icpIterations" }, description = "max number of ICP iterations (default: 200)")
 	protected Integer icpIterations = 200;
 
-	@Option(names = { "--icpUseRANSAC" }, description = "ICP uses RANSAC at every iteration to filter correspondences (default: false)")
+	@Option(names = { "--icpUseRANSAC" }, description = "ICP filters the correspondences with RANSAC, the final correspondences for the default ICP and in every iteration for --flatICP (default: false)")
 	protected boolean icpUseRANSAC = false;
+
+	@Option(names = { "--descriptorsPerView" }, description = "only for FAST_TRANSLATION and PRECISE_TRANSLATION without grouping: compute the translation-invariant descriptors "
+			+ "of each view once and cache them on the executor (see --interestPointCacheMB), each pair then only matches descriptors and runs RANSAC; "
+			+ "the descriptors are those of PRECISE_TRANSLATION (--numNeighbors, --redundancy), so FAST_TRANSLATION effectively becomes PRECISE_TRANSLATION; "
+			+ "FAST_ROTATION and ICP are not supported and stop with an error (default: false)")
+	protected boolean descriptorsPerView = false;
+
+	@Option(names = { "--flatICP" }, description = "only for ICP without grouping: use an ICP implementation that builds a KD-tree over flat coordinate arrays once per pair "
+			+ "and updates all correspondences in place in every iteration, much faster for large numbers of points (default: false)")
+	protected boolean flatICP = false;
+
+	@Option(names = { "--ransacConfidence" }, description = "stop RANSAC as soon as an all-inlier sample was drawn with this probability given the best inlier ratio so far, "
+			+ "--ransacIterations is the maximum, e.g. --ransacConfidence 0.999; applies to all methods, including grouped views and ICP with --icpUseRANSAC (default: always run all iterations)")
+	protected Double ransacConfidence = null;
+
+	@Option(names = { "--pairPartitions" }, description = "number of Spark partitions the pairs are distributed into by location (recursive bisection balanced by the number of interest points), "
+			+ "so pairs sharing views are matched on the same executor and use its cache; 0 distributes the pairs arbitrarily (default: Spark default parallelism)")
+	protected Integer pairPartitions = null;
+
+	@Option(names = { "--interestPointCacheMB" }, description = "size of the cache of loaded and transformed interest points on each executor in MB, "
+			+ "so the points of a view are only loaded once for all its pairs; with --descriptorsPerView the descriptors share this budget; 0 disables caching (default: 512)")
+	protected long interestPointCacheMB = 512;
 	
 	//@Option(names = { "-p", "--pairsPerSparkJob" }, description = "how many pairs of views are processed per spark job (default: 1)")
 	//protected Integer pairsPerSparkJob = 1;
@@ -176,6 +214,13 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 			return null;
 		}
 
+		// the rotation-invariant descriptors of FAST_ROTATION are computed per pair by the matcher, there are none to cache
+		if ( descriptorsPerView && registrationMethod != Method.FAST_TRANSLATION && registrationMethod != Method.PRECISE_TRANSLATION )
+			throw new IllegalArgumentException( "--descriptorsPerView is only supported for FAST_TRANSLATION and PRECISE_TRANSLATION, not for " + registrationMethod + "." );
+
+		if ( descriptorsPerView && registrationMethod == Method.FAST_TRANSLATION )
+			System.out.println( "--descriptorsPerView computes the descriptors of PRECISE_TRANSLATION, FAST_TRANSLATION effectively becomes PRECISE_TRANSLATION." );
+
 		if ( ransacIterations == null && registrationMethod == Method.ICP )
 		{
 			ransacIterations = 200;
@@ -209,13 +254,6 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 
 		final HashMap< ViewId, HashMap< String, Double > > labelMapGlobal = buildLabelMap( dataGlobal, viewIdsGlobal, map );
 
-		// clear all correspondences if wanted
-		if ( clearCorrespondences )
-		{
-			System.out.println( "Clearing correspondences ... ");
-			MatcherPairwiseTools.clearCorrespondences( viewIdsGlobal, dataGlobal.getViewInterestPoints().getViewInterestPoints(), labelMapGlobal );
-		}
-
 		final URI xmlURI = this.xmlURI;
 		final boolean matchAcrossLabels = this.matchAcrossLabels;
 		final InterestPointOverlapType interestpointsForReg = this.interestpointsForReg;
@@ -236,16 +274,35 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 		final TransformationModel transformationModel = this.transformationModel;
 		final RegularizationModel regularizationModel = this.regularizationModel;
 		final double lambda = this.regularizationLambda;
+		final long interestPointCacheMB = this.interestPointCacheMB;
+		final boolean descriptorsPerView = this.descriptorsPerView;
+		final double ransacConfidence = ( this.ransacConfidence == null ) ? 0 : this.ransacConfidence;
+		final boolean flatICP = this.flatICP && registrationMethod == Method.ICP;
 
 		final SparkConf conf = new SparkConf().setAppName("SparkGeometricDescriptorRegistration");
 
+		// the results are only (id, id) pairs, which Kryo serializes much more compactly
+		conf.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" );
+		conf.registerKryoClasses( new Class<?>[] { int[].class, ArrayList.class, Tuple2.class, MatchingTask.class, ViewId.class } );
+
 		if ( localSparkBindAddress )
 			conf.set("spark.driver.bindAddress", "127.0.0.1");
 
 		final JavaSparkContext sc = new JavaSparkContext(conf);
 		sc.setLogLevel("ERROR");
 
-		final JavaRDD< ArrayList< Tuple2< ArrayList< PointMatchGeneric< InterestPoint > >, MatchingTask<ViewId> > > > rddResults;
+		final LongAccumulator cacheHits = sc.sc().longAccumulator( "interest point cache hits" );
+		final LongAccumulator cacheMisses = sc.sc().longAccumulator( "interest point cache misses" );
+		final LongAccumulator cacheEvictions = sc.sc().longAccumulator( "interest point cache evictions" );
+		final LongAccumulator descriptorHits = sc.sc().longAccumulator( "descriptor cache hits" );
+		final LongAccumulator descriptorMisses = sc.sc().longAccumulator( "descriptor cache misses" );
+		final LongAccumulator ransacIterationsUsed = sc.sc().longAccumulator( "ransac iterations" );
+		final LongAccumulator ransacPairs = sc.sc().longAccumulator( "ransac pairs" );
+
+		final int numPartitions = ( pairPartitions == null ) ? sc.defaultParallelism() : pairPartitions;
+
+		// every result is a list of corresponding ids (idA0, idB0, idA1, idB1, ...) for a pair of views and labels
+		final JavaRDD< ArrayList< Tuple2< int[], MatchingTask<ViewId> > > > rddResults;
 
 		if ( !groupTiles && !groupIllums && !groupChannels && !splitTimepoints )
 		{
@@ -258,7 +315,7 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 			setup.getPairs().forEach( pair -> System.out.println( "\t" + Group.pvid( pair.getA() ) + " <=> " + Group.pvid( pair.getB() ) ) );
 			System.out.println( "In total: " + tasksList.size() + " pair(s) across labels: " + labels);
 
-			final JavaRDD<MatchingTask<ViewId>> rdd = sc.parallelize( tasksList );
+			final JavaRDD<MatchingTask<ViewId>> rdd = parallelizeTasks( sc, dataGlobal, tasksList, viewId -> Arrays.asList( viewId ), numPartitions );
 
 			rddResults = rdd.map( task ->
 			{
@@ -280,13 +337,22 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 						labelMap.get( task.vB ).put( label , weight );
 				} );
 
-				// load & transform all interest points
+				// load & transform all interest points (cached on this executor)
 				final Map< ViewId, HashMap< String, List< InterestPoint > > > interestpoints =
-						TransformationTools.getAllTransformedInterestPoints(
-							views,
-							data.getViewRegistrations().getViewRegistrations(),
-							data.getViewInterestPoints().getViewInterestPoints(),
-							labelMap );
+						loadTransformedInterestPoints( data, views, labelMap, interestPointCacheMB, cacheHits, cacheMisses, cacheEvictions );
+
+				// the descriptors are computed from all points of each view (before filtering for overlap)
+				final TranslationDescriptors descA, descB;
+
+				if ( descriptorsPerView )
+				{
+					descA = descriptors( data, task.vA, task.labelA, interestpoints, numNeighbors, redundancy, interestPointCacheMB, descriptorHits, descriptorMisses );
+					descB = descriptors( data, task.vB, task.labelB, interestpoints, numNeighbors, redundancy, interestPointCacheMB, descriptorHits, descriptorMisses );
+				}
+				else
+				{
+					descA = descB = null;
+				}
 
 				// only keep those interestpoints that currently overlap with a view to register against
 				if ( interestpointsForReg == InterestPointOverlapType.OVERLAPPING_ONLY )
@@ -305,8 +371,53 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 				final RANSACParameters rp = new RANSACParameters( (float)ransacMaxEpsilon, (float)ransacMinInlierRatio, (float)ransacMinInlierFactor, ransacIterations );
 				final Model< ? > model = createModelInstance(transformationModel, regularizationModel, lambda);
 
+				if ( descriptorsPerView )
+				{
+					final ArrayList< PointMatchGeneric< InterestPoint > > inliers = TranslationDescriptors.match(
+							descA,
+							descB,
+							interestpoints.get( task.vA ).getOrDefault( task.labelA, new ArrayList<>() ),
+							interestpoints.get( task.vB ).getOrDefault( task.labelB, new ArrayList<>() ),
+							ratioOfDistance,
+							limitSearchRadius,
+							searchRadius,
+							model,
+							rp,
+							ransacConfidence,
+							ransacIterationsUsed,
+							Group.pvid( task.vA ) + " (" + task.labelA + ") <=> " + Group.pvid( task.vB ) + " (" + task.labelB + ")" );
+
+					ransacPairs.add( 1 );
+
+					return new ArrayList<>( Arrays.asList( new Tuple2<>( toIdPairs( inliers ), task ) ) );
+				}
+
+				if ( flatICP )
+				{
+					final int[] ids = FlatICP.align(
+							FlatInterestPoints.fromInterestPoints( interestpoints.get( task.vA ).getOrDefault( task.labelA, new ArrayList<>() ), null ),
+							FlatInterestPoints.fromInterestPoints( interestpoints.get( task.vB ).getOrDefault( task.labelB, new ArrayList<>() ), null ),
+							model,
+							icpMaxError,
+							icpMaxIterations,
+							icpUseRANSAC,
+							ransacIterations,
+							ransacMaxEpsilon,
+							ransacMinInlierRatio,
+							ransacConfidence,
+							(int)Math.round( ransacMinInlierFactor * model.getMinNumMatches() ),
+							ransacIterationsUsed,
+							Group.pvid( task.vA ) + " (" + task.labelA + ") <=> " + Group.pvid( task.vB ) + " (" + task.labelB + ")" );
+
+					if ( icpUseRANSAC )
+						ransacPairs.add( 1 );
+
+					return new ArrayList<>( Arrays.asList( new Tuple2<>( ids, task ) ) );
+				}
+
+				// the matcher only finds the candidates (or ICP correspondences), RANSAC is run afterwards
 				final MatcherPairwise< InterestPoint > matcher = createMatcherInstance(
-						rp,
+						withoutRansac( rp ),
 						registrationMethod,
 						model,
 						numNeighbors,
@@ -316,12 +427,16 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 						searchRadius,
 						icpMaxError,
 						icpMaxIterations,
-						icpUseRANSAC);
+						false);
 
 				// compute single pairwise match
 				final PairwiseResult<InterestPoint> result =
 						MatcherPairwiseTools.getCallables( Arrays.asList( task ), interestpoints, matcher ).get( 0 ).call().getB();
 
+				final List< PointMatchGeneric< InterestPoint > > inliers = ransac(
+						result, registrationMethod, icpUseRANSAC, model, rp, ransacConfidence, ransacIterationsUsed, ransacPairs,
+						Group.pvid( task.vA ) + " (" + task.labelA + ") <=> " + Group.pvid( task.vB ) + " (" + task.labelB + ")" );
+
 				/*
 				final ExecutorService service = Threads.createFixedExecutorService( 1 );
 
@@ -335,13 +450,19 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 
 				service.shutdown();
 				*/
-				return new ArrayList<>( Arrays.asList( new Tuple2<>( new ArrayList<>( result.getInliers() ), task ) ) );
+				return new ArrayList<>( Arrays.asList( new Tuple2<>( toIdPairs( inliers ), task ) ) );
 			});
 		}
 		else
 		{
 			System.out.println( "grouped" );
 
+			if ( descriptorsPerView )
+				System.out.println( "--descriptorsPerView is not supported when grouping, descriptors are computed per pair." );
+
+			if ( flatICP )
+				System.out.println( "--flatICP is not supported when grouping, using the default ICP." );
+
 			final List<Pair<Group<ViewId>, Group<ViewId>>> groupedPairs =
 					Spark.toGroupViewIds(
 							setup.getSubsets().stream().map( s -> s.getGroupedPairs() ).flatMap(List::stream).collect( Collectors.toList() ) );
@@ -357,7 +478,7 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 			groupedPairs.forEach( pair -> System.out.println( "\t" + pair.getA() + " <=> " + pair.getB() ) );
 			System.out.println( "In total: " + groupedPairs.size() + " pair(s).");
 
-			final JavaRDD<MatchingTask<Group<ViewId>>> rdd = sc.parallelize( tasksList );
+			final JavaRDD<MatchingTask<Group<ViewId>>> rdd = parallelizeTasks( sc, dataGlobal, tasksList, group -> group.getViews(), numPartitions );
 
 			rddResults = rdd.map( task ->
 			{
@@ -387,13 +508,9 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 						} );
 				} );
 
-				// load & transform all interest points
+				// load & transform all interest points (cached on this executor)
 				final Map< ViewId, HashMap< String, List< InterestPoint > > > interestpoints =
-						TransformationTools.getAllTransformedInterestPoints(
-							views,
-							data.getViewRegistrations().getViewRegistrations(),
-							data.getViewInterestPoints().getViewInterestPoints(),
-							labelMap );
+						loadTransformedInterestPoints( data, views, labelMap, interestPointCacheMB, cacheHits, cacheMisses, cacheEvictions );
 
 				// only keep those interestpoints that currently overlap with a view to register against
 				if ( interestpointsForReg == InterestPointOverlapType.OVERLAPPING_ONLY )
@@ -429,8 +546,9 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 				final RANSACParameters rp = new RANSACParameters( (float)ransacMaxEpsilon, (float)ransacMinInlierRatio, (float)ransacMinInlierFactor, ransacIterations );
 				final Model< ? > model = createModelInstance(transformationModel, regularizationModel, lambda);
 
+				// the matcher only finds the candidates (or ICP correspondences), RANSAC is run afterwards
 				final MatcherPairwise< GroupedInterestPoint< ViewId > > matcher = createMatcherInstance(
-						rp,
+						withoutRansac( rp ),
 						registrationMethod,
 						model,
 						numNeighbors,
@@ -440,18 +558,21 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 						searchRadius,
 						icpMaxError,
 						icpMaxIterations,
-						icpUseRANSAC);
+						false);
 
 				// compute single pairwise match
 				final PairwiseResult<GroupedInterestPoint<ViewId>> result =
 						MatcherPairwiseTools.getCallables( Arrays.asList( task ), groupedInterestpoints, matcher ).get( 0 ).call().getB();
 
+				final List< PointMatchGeneric< GroupedInterestPoint< ViewId > > > inliers = ransac(
+						result, registrationMethod, icpUseRANSAC, model, rp, ransacConfidence, ransacIterationsUsed, ransacPairs, task.vA + " (" + task.labelA + ") <=> " + task.vB + " (" + task.labelB + ")" );
+
 				//final List< Pair< Pair< Group< ViewId >, Group< ViewId > >, PairwiseResult< GroupedInterestPoint< ViewId > > > > resultGroup =
 				//		MatcherPairwiseTools.computePairs( Arrays.asList( task.getPair() ), groupedInterestpoints, matcher, matchAcrossLabels );
 
 				final HashMap< Pair< ViewId, ViewId >, ArrayList<PointMatchGeneric<InterestPoint>> > mapResults = new HashMap<>();
 
-				for ( final PointMatchGeneric<GroupedInterestPoint<ViewId>> pm : result.getInliers() )// resultGroup.get( 0 ).getB().getInliers() )
+				for ( final PointMatchGeneric<GroupedInterestPoint<ViewId>> pm : inliers )// resultGroup.get( 0 ).getB().getInliers() )
 				{
 					GroupedInterestPoint<ViewId> p1 = pm.getPoint1();
 					GroupedInterestPoint<ViewId> p2 = pm.getPoint2();
@@ -479,7 +600,7 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 					}
 				}
 
-				final ArrayList<Tuple2<ArrayList<PointMatchGeneric<InterestPoint>>, MatchingTask<ViewId>>> resultsLocal = new ArrayList<>();
+				final ArrayList<Tuple2<int[], MatchingTask<ViewId>>> resultsLocal = new ArrayList<>();
 
 				System.out.println( task.vA + " <=> " + task.vB + ": The following correspondences were found per ViewId: ");
 				for ( final Entry< Pair< ViewId, ViewId >, ArrayList<PointMatchGeneric<InterestPoint>> > entry : mapResults.entrySet( ))
@@ -491,7 +612,7 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 					else
 					{
 						System.out.println( "\t" + task.vA + " <=> " + task.vB + ": " + Group.pvid( entry.getKey().getA() ) + "<->" + Group.pvid( entry.getKey().getB() )  + ": " + entry.getValue().size() + " correspondences." );
-						resultsLocal.add( new Tuple2<>( new ArrayList<>( entry.getValue() ), new MatchingTask<>( entry.getKey().getA(), entry.getKey().getB(), task.labelA, task.labelB ) ) );
+						resultsLocal.add( new Tuple2<>( toIdPairs( entry.getValue() ), new MatchingTask<>( entry.getKey().getA(), entry.getKey().getB(), task.labelA, task.labelB ) ) );
 					}
 				}
 
@@ -504,42 +625,84 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 		rddResults.cache();
 		rddResults.count();
 
-		final List<ArrayList<Tuple2<ArrayList<PointMatchGeneric<InterestPoint>>, MatchingTask<ViewId>>>> results = rddResults.collect();
+		if ( interestPointCacheMB > 0 )
+			System.out.println( "Interest point cache: " + cacheHits.value() + " hits, " + cacheMisses.value() + " misses, " + cacheEvictions.value() + " evictions." );
 
-		// add the corresponding detections and output result
-		if ( clearCorrespondences )
-			System.out.println( "Adding corresponding interest points ...");
-		else
-			System.out.println( "Adding corresponding interest points (be sure to use --clearCorrespondences if you run multiple times, you are not using it right now) ...");
+		if ( descriptorsPerView )
+			System.out.println( "Descriptors computed " + descriptorMisses.value() + " times, reused " + descriptorHits.value() + " times." );
 
-		for ( final ArrayList<Tuple2<ArrayList<PointMatchGeneric<InterestPoint>>, MatchingTask<ViewId>>> tupleList : results )
-			for ( final Tuple2<ArrayList<PointMatchGeneric<InterestPoint>>, MatchingTask<ViewId>> tuple : tupleList )
-			{
-				final ViewId vA = tuple._2().vA;
-				final ViewId vB = tuple._2().vB;
+		if ( ransacPairs.value() > 0 )
+			System.out.println( "RANSAC iterations: " + ransacIterationsUsed.value() + " for " + ransacPairs.value() + " pairs, on average " +
+					( ransacIterationsUsed.value() / ransacPairs.value() ) + " of at most " + ransacIterations + " per pair" +
+					( flatICP && icpUseRANSAC ? " (ICP runs RANSAC in every iteration)." : "." ) );
 
-				final String labelA = tuple._2().labelA;
-				final String labelB = tuple._2().labelB;
-	
-				final InterestPoints listA = dataGlobal.getViewInterestPoints().getViewInterestPoints().get( vA ).getInterestPointList( labelA );
-				final InterestPoints listB = dataGlobal.getViewInterestPoints().getViewInterestPoints().get( vB ).getInterestPointList( labelB );
-	
-				MatcherPairwiseTools.addCorrespondences( tuple._1(), vA, vB, labelA, labelB, listA, listB );
-			}
+		final long numCorrespondences = rddResults.map( list -> list.stream().mapToLong( t -> t._1().length / 2 ).sum() ).fold( 0L, Long::sum );
+
+		System.out.println( "Found " + numCorrespondences + " corresponding interest points." );
 
 		if (!dryRun)
 		{
-			System.out.println( "Saving corresponding interest points (in parallel) ...");
+			if ( clearCorrespondences )
+				System.out.println( "Saving corresponding interest points (distributed) ...");
+			else
+				System.out.println( "Adding corresponding interest points (distributed, be sure to use --clearCorrespondences if you run multiple times, you are not using it right now) ...");
+
+			final boolean clearCorrespondences = this.clearCorrespondences;
 
-			final ArrayList< Pair< ViewId, String > > allIps = new ArrayList<>();
+			// every view and label is written once by an executor, even without new correspondences so they are cleared if requested
+			final ArrayList< Tuple2< Tuple3< Integer, Integer, String >, Tuple2< String, int[] > > > allIps = new ArrayList<>();
 
 			for ( final ViewId v : viewIdsGlobal )
 				for ( final String l : labels )
-					allIps.add( new ValuePair<>( v, l) );
+					allIps.add( CorrespondenceTools.empty( v, l ) );
+
+			// key: (timepoint, setup, label) of a view, value: (corresponding label, [corresponding timepoint, corresponding setup, id, corresponding id, ...])
+			final JavaPairRDD< Tuple3< Integer, Integer, String >, Tuple2< String, int[] > > rddCorrespondences = rddResults.flatMapToPair( list ->
+			{
+				final ArrayList< Tuple2< Tuple3< Integer, Integer, String >, Tuple2< String, int[] > > > perView = new ArrayList<>();
+
+				for ( final Tuple2< int[], MatchingTask< ViewId > > tuple : list )
+				{
+					final MatchingTask< ViewId > task = tuple._2();
 
-			final Map<ViewId, ViewInterestPointLists> ip = dataGlobal.getViewInterestPoints().getViewInterestPoints();
+					perView.addAll( CorrespondenceTools.perView( tuple._1(), task.vA, task.labelA, task.vB, task.labelB ) );
+				}
+
+				return perView.iterator();
+			});
+
+			// the XML is parsed once per partition, each view and label of a partition is written using the same instance
+			rddCorrespondences.union( sc.parallelizePairs( allIps ) ).groupByKey().foreachPartition( entries ->
+			{
+				if ( !entries.hasNext() )
+					return;
+
+				final SpimData2 data = Spark.getSparkJobSpimData2( xmlURI );
 
-			allIps.parallelStream().forEach( pair -> ip.get( pair.getA() ).getInterestPointList( pair.getB() ).saveCorrespondingInterestPoints( true ) );
+				while ( entries.hasNext() )
+				{
+					final Tuple2< Tuple3< Integer, Integer, String >, Iterable< Tuple2< String, int[] > > > entry = entries.next();
+
+					final ViewId viewId = new ViewId( entry._1()._1(), entry._1()._2() );
+					final String label = entry._1()._3();
+
+					final ViewInterestPointLists vipl = data.getViewInterestPoints().getViewInterestPointLists( viewId );
+					final InterestPoints ipl = vipl == null ? null : vipl.getInterestPointList( label );
+
+					if ( ipl == null )
+						continue;
+
+					final List< CorrespondingInterestPoints > correspondences =
+							CorrespondenceTools.merge( entry._2(), () -> ipl.getCorrespondingInterestPointsCopy(), clearCorrespondences );
+
+					// nothing changes for this view and label
+					if ( correspondences == null )
+						continue;
+
+					ipl.setCorrespondingInterestPoints( correspondences );
+					ipl.saveCorrespondingInterestPoints( true );
+				}
+			});
 		}
 
 		sc.close();
@@ -549,6 +712,151 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 		return null;
 	}
 
+	/**
+	 * @param matches - the corresponding points
+	 * @return the ids of all corresponding points as (idA0, idB0, idA1, idB1, ...)
+	 */
+	public static int[] toIdPairs( final List< ? extends PointMatchGeneric< ? extends InterestPoint > > matches )
+	{
+		final int[] ids = new int[ matches.size() * 2 ];
+
+		for ( int i = 0; i < matches.size(); ++i )
+		{
+			ids[ i * 2 ] = matches.get( i ).getPoint1().getId();
+			ids[ i * 2 + 1 ] = matches.get( i ).getPoint2().getId();
+		}
+
+		return ids;
+	}
+
+	/**
+	 * Distributes the tasks by location so pairs that share views are in the same partition, the cost of each
+	 * task is estimated by the number of interest points of both sides.
+	 */
+	protected static < V > JavaRDD< MatchingTask< V > > parallelizeTasks(
+			final JavaSparkContext sc,
+			final SpimData2 data,
+			final List< MatchingTask< V > > tasks,
+			final Function< V, Collection< ViewId > > toViews,
+			final int numPartitions )
+	{
+		if ( numPartitions <= 0 )
+			return sc.parallelize( tasks );
+
+		final HashMap< Pair< ViewId, String >, Long > numPoints = new HashMap<>();
+		final HashMap< URI, N5Reader > readers = new HashMap<>();
+		final List< double[] > positions = new ArrayList<>();
+		final double[] costs = new double[ tasks.size() ];
+
+		for ( int i = 0; i < tasks.size(); ++i )
+		{
+			final MatchingTask< V > task = tasks.get( i );
+			final Collection< ViewId > viewsA = toViews.apply( task.vA );
+			final Collection< ViewId > viewsB = toViews.apply( task.vB );
+
+			positions.add( PairPartitioner.position( PairPartitioner.boundingBox( data, viewsA ), PairPartitioner.boundingBox( data, viewsB ) ) );
+
+			for ( final ViewId viewId : viewsA )
+				costs[ i ] += numPoints.computeIfAbsent( new ValuePair<>( viewId, task.labelA ), key -> numInterestPoints( data, key.getA(), key.getB(), readers ) );
+
+			for ( final ViewId viewId : viewsB )
+				costs[ i ] += numPoints.computeIfAbsent( new ValuePair<>( viewId, task.labelB ), key -> numInterestPoints( data, key.getA(), key.getB(), readers ) );
+
+			costs[ i ] = Math.max( 1, costs[ i ] );
+		}
+
+		readers.values().forEach( N5Reader::close );
+
+		return PairPartitioner.parallelize( sc, tasks, positions, costs, numPartitions );
+	}
+
+	/**
+	 * @param readers - the open interestpoints.n5 readers by base dir, a missing one is opened and added
+	 * @return the number of interest points from the N5 metadata without loading them, 1 if unknown
+	 */
+	protected static long numInterestPoints( final SpimData2 data, final ViewId viewId, final String label, final HashMap< URI, N5Reader > readers )
+	{
+		final ViewInterestPointLists vipl = data.getViewInterestPoints().getViewInterestPointLists( viewId );
+		final InterestPoints ipl = vipl == null ? null : vipl.getInterestPointList( label );
+
+		if ( ipl == null || !InterestPointsN5.class.isInstance( ipl ) )
+			return 1;
+
+		final InterestPointsN5 i = (InterestPointsN5)ipl;
+
+		final String dataset = i.ipDataset() + "/loc";
+
+		try
+		{
+			final N5Reader n5 = readers.computeIfAbsent(
+					i.getBaseDir(),
+					baseDir -> URITools.instantiateN5Reader( StorageFormat.N5, URITools.toURI( URITools.appendName( baseDir, InterestPointsN5.baseN5 ) ) ) );
+
+			return n5.datasetExists( dataset ) ? Math.max( 1, n5.getDatasetAttributes( dataset ).getDimensions()[ 1 ] ) : 1;
+		}
+		catch ( Exception e )
+		{
+			System.out.println( "Could not read the number of interest points of '" + dataset + "', assuming 1: " + e );
+			return 1;
+		}
+	}
+
+	/**
+	 * @return the translation-invariant descriptors of all (transformed) points of the view, cached on this executor if the cache size is positive
+	 */
+	protected static TranslationDescriptors descriptors(
+			final SpimData2 data,
+			final ViewId viewId,
+			final String label,
+			final Map< ViewId, HashMap< String, List< InterestPoint > > > interestpoints,
+			final int numNeighbors,
+			final int redundancy,
+			final long cacheMB,
+			final LongAccumulator hits,
+			final LongAccumulator misses )
+	{
+		final List< InterestPoint > points = interestpoints.get( viewId ).getOrDefault( label, new ArrayList<>() );
+
+		final ViewInterestPointLists vipl = data.getViewInterestPoints().getViewInterestPointLists( viewId );
+		final InterestPoints ipl = vipl == null ? null : vipl.getInterestPointList( label );
+
+		if ( cacheMB <= 0 || ipl == null )
+			return TranslationDescriptors.create( points, numNeighbors, redundancy );
+
+		final String key = InterestPointCache.key( ipl.getBaseDir(), viewId, label, data.getViewRegistrations().getViewRegistration( viewId ).getModel() );
+
+		return TranslationDescriptors.get( key, numNeighbors, redundancy, cacheMB, () -> TranslationDescriptors.create( points, numNeighbors, redundancy ), hits, misses );
+	}
+
+	/**
+	 * Loads and transforms the interest points of the views, using the executor-wide cache if its size is positive.
+	 */
+	protected static Map< ViewId, HashMap< String, List< InterestPoint > > > loadTransformedInterestPoints(
+			final SpimData2 data,
+			final Collection< ViewId > views,
+			final HashMap< ViewId, HashMap< String, Double > > labelMap,
+			final long cacheMB,
+			final LongAccumulator hits,
+			final LongAccumulator misses,
+			final LongAccumulator evictions )
+	{
+		if ( cacheMB <= 0 )
+			return TransformationTools.getAllTransformedInterestPoints(
+					views,
+					data.getViewRegistrations().getViewRegistrations(),
+					data.getViewInterestPoints().getViewInterestPoints(),
+					labelMap );
+
+		return InterestPointCache.instance( cacheMB ).getAllTransformedInterestPoints(
+				views,
+				data.getViewRegistrations().getViewRegistrations(),
+				data.getViewInterestPoints().getViewInterestPoints(),
+				labelMap,
+				hits,
+				misses,
+				evictions );
+	}
+
 	public PairwiseSetup< ViewId > setupGroups( final OverlapType viewReg )
 	{
 		final Set< Group< ViewId > > groupsGlobal = AdvancedRegistrationParameters.getGroups( dataGlobal, viewIdsGlobal, groupTiles, groupIllums, groupChannels, splitTimepoints );
@@ -559,6 +867,60 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 		return setup;
 	}
 
+	/**
+	 * @return the same RANSAC parameters with 0 iterations, so the matchers only compute the candidates
+	 */
+	public static RANSACParameters withoutRansac( final RANSACParameters rp )
+	{
+		return new RANSACParameters( rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), 0 );
+	}
+
+	/**
+	 * Filters the result of a matcher that ran without RANSAC (see {@link #withoutRansac(RANSACParameters)}): the candidates
+	 * of the descriptor-based methods, the final correspondences of ICP (only if icpUseRANSAC, otherwise they are returned as they are).
+	 *
+	 * @return the inliers
+	 */
+	public static < I extends InterestPoint > List< PointMatchGeneric< I > > ransac(
+			final PairwiseResult< I > result,
+			final Method registrationMethod,
+			final boolean icpUseRANSAC,
+			final Model< ? > model,
+			final RANSACParameters rp,
+			final double ransacConfidence,
+			final LongAccumulator ransacIterationsUsed,
+			final LongAccumulator ransacPairs,
+			final String name )
+	{
+		final List< PointMatchGeneric< I > > candidates;
+
+		if ( registrationMethod == Method.ICP )
+		{
+			if ( !icpUseRANSAC )
+				return result.getInliers();
+
+			candidates = result.getInliers();
+		}
+		else
+		{
+			candidates = result.getCandidates();
+		}
+
+		final ArrayList< PointMatchGeneric< I > > inliers = new ArrayList<>();
+
+		if ( candidates == null || candidates.size() == 0 )
+			return inliers;
+
+		final int iterations = AdaptiveRansac.filter( model, candidates, inliers, rp, ransacConfidence );
+
+		ransacIterationsUsed.add( iterations );
+		ransacPairs.add( 1 );
+
+		System.out.println( name + ": " + candidates.size() + " candidates, " + inliers.size() + " inliers after " + iterations + " RANSAC iterations." );
+
+		return inliers;
+	}
+
 	public static < I extends InterestPoint> MatcherPairwise< I > createMatcherInstance(
 			final RANSACParameters rp,
 			final Method registrationMethod,
@@ -23,44 +23,58 @@ package net.preibisch.bigstitcher.spark;
 
 import java.io.Serializable;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IntSummaryStatistics;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
-import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
 import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.universe.N5Factory.StorageFormat;
 
+import bdv.img.n5.N5ImageLoader;
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
-import mpicbg.spim.data.registration.ViewRegistration;
-import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.KDTree;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
-import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.position.FunctionRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
@@ -72,30 +86,34 @@ import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractSelectableViews;
 import net.preibisch.bigstitcher.spark.detection.LazyBackgroundSubtract;
+import net.preibisch.bigstitcher.spark.util.DisjointIntervals;
+import net.preibisch.bigstitcher.spark.util.FlatInterestPoints;
 import net.preibisch.bigstitcher.spark.util.Import;
+import net.preibisch.bigstitcher.spark.util.IntensityRange;
+import net.preibisch.bigstitcher.spark.util.IntervalIndex;
+import net.preibisch.bigstitcher.spark.util.MipmapTools;
+import net.preibisch.bigstitcher.spark.util.SharedThreadPool;
 import net.preibisch.bigstitcher.spark.util.Spark;
+import net.preibisch.bigstitcher.spark.util.SpatialHash;
 import net.preibisch.bigstitcher.spark.util.ViewUtil;
 import net.preibisch.bigstitcher.spark.util.ViewUtil.PrefetchPixel;
 import net.preibisch.legacy.io.IOFunctions;
-import net.preibisch.mvrecon.Threads;
-import net.preibisch.mvrecon.fiji.plugin.interestpointdetection.DifferenceOfGUI;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoints;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPointsN5;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import net.preibisch.mvrecon.process.downsampling.Downsample;
 import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
 import net.preibisch.mvrecon.process.downsampling.lazy.LazyDownsample2x;
-import net.preibisch.mvrecon.process.interestpointdetection.InterestPointTools;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoGImgLib2;
-import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoGParameters;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
+import scala.Tuple2;
 import scala.Tuple3;
-import scala.Tuple4;
 import util.Grid;
 import util.URITools;
 
@@ -111,12 +129,16 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 	@Option(names = { "-l", "--label" }, required = true, description = "label for the interest points (e.g. beads)")
 	protected String label = null;
 
-	@Option(names = { "-s", "--sigma" }, required = true, description = "sigma for segmentation, e.g. 1.8")
+	@Option(names = { "-s", "--sigma" }, description = "sigma for segmentation, e.g. 1.8 (required unless --sweep is used)")
 	protected Double sigma = null;
 
-	@Option(names = { "-t", "--threshold" }, required = true, description = "threshold for segmentation, e.g. 0.008")
+	@Option(names = { "-t", "--threshold" }, description = "threshold for segmentation, e.g. 0.008 (required unless --sweep is used)")
 	protected Double threshold = null;
 
+	@Option(names = { "--sweep" }, description = "parameter sweep, detect interest points for several combinations of sigma,threshold,type at once (loading every block only once and computing the DoG once per sigma at the lowest threshold), "
+			+ "e.g. --sweep '1.8,0.008,MAX;2.0,0.008,MAX;2.0,0.01,BOTH'; the label is used as prefix, e.g. beads_s1.8_t0.008_MAX (default: no sweep, use -s, -t and --type)")
+	protected String sweep = null;
+
 	@Option(names = { "--type" }, description = "the type of interestpoints to find, MIN, MAX or BOTH (default: MAX)")
 	protected IP type = IP.MAX;
 
@@ -129,12 +151,16 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 	@Option(names = { "--storeIntensities" }, description = "creates an additional N5 dataset with the intensities of each detection, linearly interpolated (default: false)")
 	protected boolean storeIntensities = false;
 
-	@Option(names = { "-i0", "--minIntensity" }, required = true, description = "min intensity for segmentation, e.g. 0.0")
+	@Option(names = { "-i0", "--minIntensity" }, description = "min intensity for segmentation, e.g. 0.0 (default: estimated from the data, see --intensityPercentiles)")
 	protected Double minIntensity = null;
 
-	@Option(names = { "-i1", "--maxIntensity" }, required = true, description = "max intensity for segmentation, e.g. 2048.0")
+	@Option(names = { "-i1", "--maxIntensity" }, description = "max intensity for segmentation, e.g. 2048.0 (default: estimated from the data, see --intensityPercentiles)")
 	protected Double maxIntensity = null;
 
+	@Option(names = { "--intensityPercentiles" }, description = "if --minIntensity or --maxIntensity are not set, they are estimated as these percentiles of intensities "
+			+ "sampled from all views of the same channel, only the percentiles are part of the stored parameters (default: 0.1,99.9)")
+	protected String intensityPercentiles = "0.1,99.9";
+
 	@Option(names = { "--prefetch" }, description = "prefetch all blocks required to process DoG in each Spark job using unlimited threads, useful in cloud environments (default: false)")
 	protected boolean prefetch = false;
 
@@ -148,9 +174,31 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 	@Option(names = "--blockSize", description = "blockSize for running the interest point detection - at the scale of detection (default: 512,512,128)")
 	protected String blockSizeString = "512,512,128";
 
+	@Option(names = { "--incremental" }, description = "only process views that do not have interest points of this label yet, or where the detection parameters or the input "
+			+ "(image dimensions, mipmap level, and for --overlappingOnly the overlapping areas) changed since they were detected; "
+			+ "correspondences of other views to re-detected points are removed, re-run the matching afterwards (default: false)")
+	protected boolean incremental = false;
+
+	@Option(names = { "--writeMissingLevel" }, description = "if the downsampling for detection is not stored, write it once as a new mipmap level into the BDV-N5 (in a distributed stage) "
+			+ "and detect on it instead of downsampling virtually in every task; the N5 needs to be writable (default: false)")
+	protected boolean writeMissingLevel = false;
+
+	@Option(names = { "--skipEmptyBlocks" }, description = "scan the intensity range of every block (including the DoG halo) before detection and skip the DoG for blocks "
+			+ "where the intensity range provably cannot produce a DoG peak above the threshold (default: false)")
+	protected boolean skipEmptyBlocks = false;
+
+	@Option(names = "--dogBlockSize", description = "size of the blocks that are processed in parallel within each Spark job when computing the DoG (default: 128,128,64)")
+	protected String dogBlockSizeString = "128,128,64";
+
+	@Option(names = "--threadsPerTask", description = "number of threads computing the DoG within each Spark job, useful if there are fewer jobs than cores (default: spark.task.cpus)")
+	protected Integer threadsPerTask = null;
+
 	@Option(names = { "--medianFilter" }, description = "divide by the median filtered image of the given radius prior to interest point detection, e.g. --medianFilter 10")
 	protected Integer medianFilter = null;
 
+	@Option(names = { "--medianFilterDownsampling" }, description = "compute the median filter approximately on an image downsampled in XY by this factor and interpolate it, much faster for large radii, e.g. --medianFilterDownsampling 4 (default: 1, i.e. exact)")
+	protected int medianFilterDownsampling = 1;
+
 
 	@Option(names = { "-dsxy", "--downsampleXY" }, description = "downsampling in XY to use for segmentation, e.g. 4 (default: 2)")
 	protected Integer dsxy = 2;
@@ -172,6 +220,50 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 			System.exit( 0 );
 		}
 
+		// all parameter sets (a single one if no sweep)
+		final double[] sigmas, thresholds;
+		final IP[] types;
+		final String[] labels;
+
+		if ( sweep == null )
+		{
+			if ( sigma == null || threshold == null )
+			{
+				System.out.println( "Please specify sigma (-s) and threshold (-t), or use --sweep.");
+				return null;
+			}
+
+			sigmas = new double[] { sigma };
+			thresholds = new double[] { threshold };
+			types = new IP[] { type };
+			labels = new String[] { label };
+		}
+		else
+		{
+			final String[] sets = sweep.trim().split( ";" );
+
+			sigmas = new double[ sets.length ];
+			thresholds = new double[ sets.length ];
+			types = new IP[ sets.length ];
+			labels = new String[ sets.length ];
+
+			for ( int p = 0; p < sets.length; ++p )
+			{
+				final String[] entries = sets[ p ].trim().split( "," );
+
+				if ( entries.length < 2 || entries.length > 3 )
+				{
+					System.out.println( "Cannot parse parameter set '" + sets[ p ] + "' of --sweep, it must be sigma,threshold[,type], e.g. 1.8,0.008,MAX" );
+					return null;
+				}
+
+				sigmas[ p ] = Double.parseDouble( entries[ 0 ].trim() );
+				thresholds[ p ] = Double.parseDouble( entries[ 1 ].trim() );
+				types[ p ] = entries.length == 3 ? IP.valueOf( entries[ 2 ].trim().toUpperCase() ) : type;
+				labels[ p ] = label + "_s" + sigmas[ p ] + "_t" + thresholds[ p ] + "_" + types[ p ];
+			}
+		}
+
 		final SpimData2 dataGlobal = this.loadSpimData2();
 
 		if ( dataGlobal == null )
@@ -182,18 +274,27 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 		if ( viewIdsGlobal == null || viewIdsGlobal.size() == 0 )
 			return null;
 
+		final SparkConf conf = new SparkConf().setAppName("SparkInterestPointDetection");
+
+		if ( localSparkBindAddress )
+			conf.set("spark.driver.bindAddress", "127.0.0.1");
+
+		final JavaSparkContext sc = new JavaSparkContext(conf);
+		sc.setLogLevel("ERROR");
+
+		// a missing intensity range is estimated per channel once it is known which views need to be processed
+		final boolean estimateIntensities = this.minIntensity == null || this.maxIntensity == null;
+		final double[] percentiles = Import.csvStringToDoubleArray( intensityPercentiles );
+
 		// Global variables that need to be serialized for Spark as each job needs access to them
 		final int[] blockSize = Import.csvStringToIntArray(blockSizeString);
+		final int[] dogBlockSize = Import.csvStringToIntArray(dogBlockSizeString);
 		final URI xmlURI = this.xmlURI;
-		final String label = this.label;
 		final int downsampleXY = this.dsxy;
 		final int downsampleZ = this.dsz;
 		final double minIntensity = this.minIntensity == null ? Double.NaN : this.minIntensity;
 		final double maxIntensity = this.maxIntensity == null ? Double.NaN : this.maxIntensity;
-		final double sigma = this.sigma;
-		final double threshold = this.threshold;
-		final boolean findMin = (this.type == IP.MIN || this.type == IP.BOTH);
-		final boolean findMax = (this.type == IP.MAX || this.type == IP.BOTH);
+		final double maxSigma = Arrays.stream( sigmas ).max().getAsDouble();
 		final boolean onlyOverlappingRegions = overlappingOnly;
 		final double combineDistance = SparkInterestPointDetection.combineDistance;
 		final Localization localization = this.localization;
@@ -202,14 +303,19 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 		final boolean prefetch = this.prefetch;
 		final boolean storeIntensities = this.storeIntensities;
 		final Integer medianFilter = this.medianFilter;
+		final int medianFilterDownsampling = this.medianFilterDownsampling;
+		final boolean skipEmptyBlocks = this.skipEmptyBlocks;
 
-		System.out.println( "label: " + label );
-		System.out.println( "sigma: " + sigma );
-		System.out.println( "threshold: " + threshold );
-		System.out.println( "type: " + type );
+		for ( int p = 0; p < labels.length; ++p )
+		{
+			System.out.println( "label: " + labels[ p ] );
+			System.out.println( "sigma: " + sigmas[ p ] );
+			System.out.println( "threshold: " + thresholds[ p ] );
+			System.out.println( "type: " + types[ p ] );
+		}
 		System.out.println( "localization: " + localization );
-		System.out.println( "minIntensity: " + minIntensity );
-		System.out.println( "maxIntensity: " + maxIntensity );
+		System.out.println( "minIntensity: " + ( this.minIntensity == null ? "estimated per channel (" + percentiles[ 0 ] + "%)" : minIntensity ) );
+		System.out.println( "maxIntensity: " + ( this.maxIntensity == null ? "estimated per channel (" + percentiles[ 1 ] + "%)" : maxIntensity ) );
 		System.out.println( "downsampleXY: " + downsampleXY );
 		System.out.println( "downsampleZ: " + downsampleZ );
 		System.out.println( "overlappingOnly: " + onlyOverlappingRegions );
@@ -219,67 +325,101 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 			System.out.println( "maxSpotsPerOverlap: " + maxSpotsPerOverlap );
 		}
 		System.out.println( "blockSize: " + Util.printCoordinates( blockSize ) );
+		System.out.println( "dogBlockSize: " + Util.printCoordinates( dogBlockSize ) );
 		System.out.println( "medianFilter: " + medianFilter );
+		if ( medianFilter != null && medianFilterDownsampling > 1 )
+			System.out.println( "medianFilterDownsampling: " + medianFilterDownsampling );
 		System.out.println( "storeIntensities: " + storeIntensities );
+		System.out.println( "skipEmptyBlocks: " + skipEmptyBlocks );
+
+		// the parameters of each label, they are stored in the XML; estimated intensities are only described by their
+		// percentile (the values depend on the sampled views), the range that was used is stored with the points
+		final String[] params = new String[ labels.length ];
+		final String minIntensityParam = this.minIntensity == null ? "estimated(" + percentiles[ 0 ] + "%)" : String.valueOf( minIntensity );
+		final String maxIntensityParam = this.maxIntensity == null ? "estimated(" + percentiles[ 1 ] + "%)" : String.valueOf( maxIntensity );
+
+		for ( int p = 0; p < labels.length; ++p )
+		{
+			final boolean findMin = (types[ p ] == IP.MIN || types[ p ] == IP.BOTH);
+			final boolean findMax = (types[ p ] == IP.MAX || types[ p ] == IP.BOTH);
+
+			params[ p ] = "DOG (Spark) s=" + sigmas[ p ] + " t=" + thresholds[ p ] + " overlappingOnly=" + overlappingOnly + " min=" + findMin + " max=" + findMax +
+					" downsampleXY=" + downsampleXY + " downsampleZ=" + downsampleZ + " minIntensity=" + minIntensityParam + " maxIntensity=" + maxIntensityParam +
+					" localization=" + localization + " medianFilter=" + medianFilter + ( medianFilterDownsampling > 1 ? " medianFilterDownsampling=" + medianFilterDownsampling : "" ) +
+					" maxSpots=" + maxSpots + " maxSpotsPerOverlap=" + maxSpotsPerOverlap;
+		}
+
+		// write the mipmap level for detection once if it is missing, all tasks and the planning below then use it
+		if ( writeMissingLevel && !dryRun )
+		{
+			final long[] downsampleFactors = new long[] { downsampleXY, downsampleXY, downsampleZ };
+
+			MipmapTools.writeMissingLevels( sc, dataGlobal, MipmapTools.findMissingLevels( dataGlobal, viewIdsGlobal, downsampleFactors ), downsampleFactors );
+		}
 
 		//
 		// assemble all intervals that need to be processed
 		//
 		final ArrayList< Pair< ViewId, Interval > > toProcess = new ArrayList<>();
 
+		// all pairwise overlaps of each view (in downsampled coordinates), needed for maxSpotsPerOverlap
+		final HashMap< ViewId, List< Interval > > overlapsPerViewId = new HashMap<>();
+
 		long maxIntervalSize = 0;
 
-		for ( final ViewId viewId : viewIdsGlobal )
+		// dimensions, registrations and mipmap transforms of all views are only computed once (in parallel)
+		final long timeMetadata = System.currentTimeMillis();
+
+		final List< ViewMetadata > metadata =
+				viewIdsGlobal.parallelStream().map( viewId -> new ViewMetadata(
+						dataGlobal,
+						viewId,
+						new long[] { downsampleXY, downsampleXY, downsampleZ } ) ).collect( Collectors.toList() );
+
+		System.out.println( "Loaded metadata of " + metadata.size() + " views, took " + ( System.currentTimeMillis() - timeMetadata ) + " ms." );
+
+		// fingerprint of the input of each view that is processed, stored with the interest points (for --incremental)
+		final HashMap< Tuple2< Integer, Integer >, String > fingerprints = new HashMap<>();
+		final N5Reader dataN5 = openDataN5( dataGlobal.getSequenceDescription().getImgLoader() );
+		int upToDate = 0;
+
+		// views can only overlap if their bounding boxes in global space overlap
+		final IntervalIndex globalBoundingBoxes =
+				onlyOverlappingRegions ? new IntervalIndex( metadata.stream().map( m -> m.globalBoundingBox ).collect( Collectors.toList() ) ) : null;
+
+		for ( int i = 0; i < viewIdsGlobal.size(); ++i )
 		{
-			final ViewDescription vd = dataGlobal.getSequenceDescription().getViewDescription( viewId );
-			final ImgLoader imgLoader = dataGlobal.getSequenceDescription().getImgLoader();
+			final ViewId viewId = viewIdsGlobal.get( i );
+			final ViewMetadata view = metadata.get( i );
 
-			// load mipmap transform and bounds
-			// TODO: can we load the dimensions without (Virtually) opening the image?
-			final Pair<RandomAccessibleInterval, AffineTransform3D> input = openAndDownsample(
-					imgLoader,
-					vd,
-					new long[] { downsampleXY, downsampleXY, downsampleZ },
-					true );
+			final ArrayList< Interval > allIntervals = new ArrayList<>();
 
 			// only find interest points in regions that are currently overlapping with another view
 			if ( onlyOverlappingRegions )
 			{
-				final ArrayList< Interval > allIntervals = new ArrayList<>();
+				final AffineTransform3D t1 = view.mipmapTransform.inverse(); // maps global coordinates into coordinate system of the downsampled image
 
-				final AffineTransform3D mipmapTransform = input.getB(); // maps downsampled image into global coordinate system
-				final AffineTransform3D t1 = mipmapTransform.inverse(); // maps global coordinates into coordinate system of the downsampled image
-
-				for ( final ViewId otherViewId : viewIdsGlobal )
+				for ( final int j : globalBoundingBoxes.overlapping( view.globalBoundingBox ) )
 				{
-					if ( otherViewId.equals( viewId ) )
+					if ( j == i )
 						continue;
 
+					final ViewMetadata other = metadata.get( j );
+
 					//
 					// does it overlap?
 					//
-					final Dimensions dim = ViewUtil.getDimensions( dataGlobal, viewId );
-					final Dimensions dimOtherViewId = ViewUtil.getDimensions( dataGlobal, otherViewId );
-					final ViewDescription vdOtherViewId = dataGlobal.getSequenceDescription().getViewDescription( viewId );
-
-					final ViewRegistration reg = ViewUtil.getViewRegistration( dataGlobal, viewId );
-					final ViewRegistration regOtherViewId = ViewUtil.getViewRegistration( dataGlobal, otherViewId );
-
-					// load other mipmap transform
-					final AffineTransform3D mipmapTransformOtherViewId = new AffineTransform3D();
-					openAndDownsample(imgLoader, vdOtherViewId, mipmapTransformOtherViewId, new long[] { downsampleXY, downsampleXY, downsampleZ }, true, true );
 
-					// map the other view into the local coordinate space of the view we find interest points in
-					// apply inverse of the mipmap transform of each
-					final AffineTransform3D t2 = regOtherViewId.getModel().preConcatenate( reg.getModel().inverse() ).preConcatenate( mipmapTransformOtherViewId.inverse() );
+					// map the other view into the local coordinate space of the (downsampled) view we find interest points in
+					final AffineTransform3D t2 = other.model.copy().preConcatenate( view.model.inverse() ).preConcatenate( t1 );
 
-					final Interval boundingBox = Intervals.smallestContainingInterval( t1.estimateBounds(new FinalInterval( dim ) ) );
-					final Interval boundingBoxOther = Intervals.smallestContainingInterval( t2.estimateBounds( new FinalInterval( dimOtherViewId ) ) );
+					final Interval boundingBox = Intervals.smallestContainingInterval( t1.estimateBounds( new FinalInterval( view.dim ) ) );
+					final Interval boundingBoxOther = Intervals.smallestContainingInterval( t2.estimateBounds( new FinalInterval( other.dim ) ) );
 
 					if ( ViewUtil.overlaps( boundingBox, boundingBoxOther ) )
 					{
 						final Interval intersectionBoxes = Intervals.intersect( boundingBox, boundingBoxOther );
-						final Interval intersection = Intervals.intersect( input.getA(), intersectionBoxes ); // make sure it fits (e.g. rounding errors)
+						final Interval intersection = Intervals.intersect( view.downsampledInterval, intersectionBoxes ); // make sure it fits (e.g. rounding errors)
 
 						final long size = ViewUtil.size( intersection );
 
@@ -291,31 +431,77 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 						allIntervals.add( intersection );
 					}
 				}
+			}
+
+			final String fingerprint = fingerprint( dataGlobal.getSequenceDescription().getImgLoader(), dataN5, viewId, view, onlyOverlappingRegions ? allIntervals : null );
 
-				// TODO: some sort of intersections might be useful
-				// find the sum of intersections ...
-				allIntervals.forEach( interval -> toProcess.add( new ValuePair<>( viewId, interval ) ) );
+			if ( incremental && IntStream.range( 0, labels.length ).allMatch( p -> isUpToDate( dataGlobal, viewId, labels[ p ], params[ p ], fingerprint ) ) )
+			{
+				System.out.println( Group.pvid( viewId ) + ": interest points are up-to-date, skipping." );
+				++upToDate;
+				continue;
+			}
+
+			fingerprints.put( new Tuple2<>( viewId.getTimePointId(), viewId.getViewSetupId() ), fingerprint );
+
+			if ( onlyOverlappingRegions )
+			{
+				overlapsPerViewId.put( viewId, allIntervals );
+
+				// overlaps of several views intersect (e.g. in the corners), so we process their union
+				// as disjoint intervals such that every pixel is only processed once
+				final ArrayList< Interval > disjointIntervals = DisjointIntervals.union( allIntervals );
+
+				System.out.println( Group.pvid( viewId ) + ": " + allIntervals.size() + " overlaps, " + disjointIntervals.size() + " disjoint intervals to process." );
+
+				disjointIntervals.forEach( interval -> toProcess.add( new ValuePair<>( viewId, interval ) ) );
 			}
 			else
 			{
-				toProcess.add( new ValuePair<>( viewId, new FinalInterval( input.getA() ) ) );
+				toProcess.add( new ValuePair<>( viewId, view.downsampledInterval ) );
 			}
 		}
 
+		if ( dataN5 != null )
+			dataN5.close();
+
 		//
 		// turn all areas into grids and serializable objects (ViewId, intervalOffset, gridEntry)
 		//
 		final ArrayList< Tuple3<int[], long[], long[][] > > sparkProcess = new ArrayList<>();
 
+		final HashMap< ViewId, ViewMetadata > metadataPerViewId = new HashMap<>();
+		for ( int i = 0; i < viewIdsGlobal.size(); ++i )
+			metadataPerViewId.put( viewIdsGlobal.get( i ), metadata.get( i ) );
+
+		// the halo that each block reads in addition (at the scale of detection)
+		final int halo = Collections.max( Arrays.stream( Gauss3.halfkernelsizes( DoGImgLib2.computeSigmas( (float)maxSigma, 3 ).getA()[ 1 ] ) ).boxed().collect( Collectors.toList()) ) + 2;
+
+		// stored voxels that are needed vs. fetched (whole chunks) to compute the read amplification
+		long voxelsNeeded = 0, voxelsFetched = 0;
+
 		System.out.println( "The following intervals will be processed:");
 
 		for ( final Pair< ViewId, Interval > pair : toProcess )
 		{
-			final List<long[][]> grid = Grid.create( pair.getB().dimensionsAsLongArray(), blockSize );
+			final ViewMetadata view = metadataPerViewId.get( pair.getA() );
+
+			// blocks are aligned to the chunks of the stored image if we know them
+			final List<long[][]> grid;
+
+			if ( view.chunkSize != null )
+				grid = alignedGrid( pair.getB(), alignedBlockSize( blockSize, view.chunkSize ) );
+			else
+				grid = Grid.create( pair.getB().dimensionsAsLongArray(), blockSize );
+
 			final long[] intervalOffset = pair.getB().minAsLongArray();
 			final int[] serializedViewId = Spark.serializeViewId( pair.getA() );
 
-			grid.forEach( gridEntry -> {
+			if ( view.storedCellDimensions != null )
+				voxelsNeeded += ViewUtil.size( view.toStored( pair.getB() ) );
+
+			for ( final long[][] gridEntry : grid )
+			{
 				sparkProcess.add( new Tuple3<>( serializedViewId, intervalOffset, gridEntry ) );
 
 				final long[] superBlockMin = new long[ intervalOffset.length ];
@@ -324,28 +510,74 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 				final long[] superBlockMax = new long[ intervalOffset.length ];
 				Arrays.setAll( superBlockMax, d -> superBlockMin[ d ] + gridEntry[ 1 ][ d ] - 1 );
 
-				System.out.println( "Processing " + Group.pvid(pair.getA()) + ", " + Util.printInterval( new FinalInterval(superBlockMin, superBlockMax) ) + " of full interval " + Util.printInterval( pair.getB() ) );
-			});
+				final Interval block = new FinalInterval(superBlockMin, superBlockMax);
+
+				if ( view.storedCellDimensions != null )
+					voxelsFetched += view.fetchedVoxels( Intervals.intersect( Intervals.expand( block, halo ), view.downsampledInterval ) );
+
+				System.out.println( "Processing " + Group.pvid(pair.getA()) + ", " + Util.printInterval( block ) + " of full interval " + Util.printInterval( pair.getB() ) );
+			}
 		}
 
+		if ( voxelsNeeded > 0 )
+			System.out.println( "Read amplification (stored voxels fetched as whole chunks incl. halos / voxels needed): " + String.format( "%.3f", (double)voxelsFetched / voxelsNeeded ) +
+					" (" + voxelsFetched + " / " + voxelsNeeded + ")" );
+		else
+			System.out.println( "Read amplification: unknown (the images are not stored in chunks)." );
+
+		if ( incremental )
+			System.out.println( upToDate + " of " + viewIdsGlobal.size() + " views are up-to-date and will not be processed." );
+
 		System.out.println( "Total number of jobs: " + sparkProcess.size() );
-		
-		final SparkConf conf = new SparkConf().setAppName("SparkInterestPointDetection");
 
-		if ( localSparkBindAddress )
-			conf.set("spark.driver.bindAddress", "127.0.0.1");
+		if ( fingerprints.size() == 0 )
+		{
+			System.out.println( "Nothing to do, stopping." );
+			sc.close();
+			return null;
+		}
 
-		final JavaSparkContext sc = new JavaSparkContext(conf);
-		sc.setLogLevel("ERROR");
+		// the intensity range of each setup, estimated from all views of its channel (given bounds are kept)
+		final HashMap< Integer, double[] > intensityRanges = new HashMap<>();
+
+		if ( estimateIntensities )
+		{
+			final HashSet< Integer > channels = new HashSet<>();
+			fingerprints.keySet().forEach( t -> channels.add( IntensityRange.channel( dataGlobal, new ViewId( t._1(), t._2() ) ) ) );
+
+			final List< ViewId > viewIdsToSample =
+					viewIdsGlobal.stream().filter( viewId -> channels.contains( IntensityRange.channel( dataGlobal, viewId ) ) ).collect( Collectors.toList() );
 
-		final JavaRDD<Tuple3<int[], long[], long[][] >> rddJob = sc.parallelize( sparkProcess ).repartition( sparkProcess.size()  );
+			final HashMap< Integer, double[] > perChannel =
+					IntensityRange.estimatePerChannel( sc, xmlURI, dataGlobal, viewIdsToSample, percentiles[ 0 ], percentiles[ 1 ], IntensityRange.defaultSamplesPerView );
 
-		// return ViewId, interval, locations, intensities
-		final JavaRDD< Tuple4<int[], long[][], double[][], double[] > > rddResult = rddJob.map( serializedInput ->
+			for ( final ViewId viewId : viewIdsToSample )
+			{
+				final double[] range = perChannel.get( IntensityRange.channel( dataGlobal, viewId ) );
+
+				intensityRanges.put( viewId.getViewSetupId(), new double[] {
+						this.minIntensity == null ? range[ 0 ] : minIntensity,
+						this.maxIntensity == null ? range[ 1 ] : maxIntensity } );
+			}
+		}
+
+		// by default use as many threads as Spark reserves cores for each task
+		final int taskCpus = sc.getConf().getInt( "spark.task.cpus", 1 );
+		final int numThreads = this.threadsPerTask == null ? taskCpus : Math.max( 1, this.threadsPerTask );
+
+		System.out.println( "threadsPerTask: " + numThreads + " (spark.task.cpus=" + taskCpus + ")" );
+
+		final LongAccumulator skippedBlocks = sc.sc().longAccumulator( "skipped empty blocks" );
+
+		final JavaRDD<Tuple3<int[], long[], long[][] >> rddJob = sc.parallelize( sparkProcess ).repartition( Math.max( 1, sparkProcess.size() ) );
+
+		// return ViewId, interval, points (locations, intensities) for each parameter set
+		final JavaRDD< Tuple3<int[], long[][], FlatInterestPoints[] > > rddResult = rddJob.map( serializedInput ->
 		{
 			final SpimData2 data = Spark.getSparkJobSpimData2( xmlURI );
 			final ViewId viewId = Spark.deserializeViewId( serializedInput._1() );
 			final ViewDescription vd = data.getSequenceDescription().getViewDescription( viewId );
+			final double[] intensityRange = intensityRanges.getOrDefault( viewId.getViewSetupId(), new double[] { minIntensity, maxIntensity } );
 
 			// The min coordinates of the block that this job processes (in pixels)
 			final long[] superBlockMin = new long[ serializedInput._2().length ];
@@ -361,58 +593,25 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 			// the interval this Spark job will process
 			final Interval processInterval = new FinalInterval( superBlockMin, superBlockMax );
 
-			// the parameters for Difference-of-Gaussian (DoG)
-			final DoGParameters dog = new DoGParameters();
-
-			dog.imgloader = data.getSequenceDescription().getImgLoader();
-			dog.toProcess = new ArrayList< ViewDescription >( Arrays.asList( vd ) );
-
-			dog.localization = localization == Localization.NONE ? 0 : 1;
-			dog.downsampleZ = downsampleZ;
-			dog.downsampleXY = downsampleXY;
-			dog.imageSigmaX = DifferenceOfGUI.defaultImageSigmaX;
-			dog.imageSigmaY = DifferenceOfGUI.defaultImageSigmaY;
-			dog.imageSigmaZ = DifferenceOfGUI.defaultImageSigmaZ;
-
-			dog.minIntensity = minIntensity;
-			dog.maxIntensity = maxIntensity;
-
-			dog.sigma = sigma;
-			dog.threshold = threshold;
-			dog.findMin = findMin;
-			dog.findMax = findMax;
-
-			dog.cuda = null;
-			dog.deviceCUDA = null;
-			dog.accurateCUDA = false;
-			dog.percentGPUMem = 0;
-
-			dog.limitDetections = false;
-			dog.maxDetections = 0;
-			dog.maxDetectionsTypeIndex = 0;
-
-			dog.showProgressMin = Double.NaN;
-			dog.showProgressMax = Double.NaN;
-
 			//
 			// runs virtual downsampling so it only loads what it needs
 			// ideally only run with pre-computed downsample steps for efficiency
 			//
 			final Pair<RandomAccessibleInterval, AffineTransform3D> input = openAndDownsample(
-						dog.imgloader,
+						data.getSequenceDescription().getImgLoader(),
 						vd,
-						new long[] { dog.downsampleXY, dog.downsampleXY, dog.downsampleZ },
+						new long[] { downsampleXY, downsampleXY, downsampleZ },
 						true );
 
 			System.out.println( "Processing " + Group.pvid(viewId) + ", " + Util.printInterval( processInterval ) + " of full interval " + Util.printInterval( input.getA() ) );
 
+			// how big is the biggest sigma? It defines the overlap with neighboring blocks that we need
+			final Pair< double[][], Float > maxSigmas = DoGImgLib2.computeSigmas( (float)maxSigma, input.getA().numDimensions() );
+			final int[] halfKernelSizes = Gauss3.halfkernelsizes( maxSigmas.getA()[ 1 ] );
+			final int maxKernelSize = Collections.max( Arrays.stream( halfKernelSizes ).boxed().collect( Collectors.toList()) );
+
 			if ( prefetch )
 			{
-				// how big is the biggest sigma? It defines the overlap with neighboring blocks that we need
-				final Pair< double[][], Float > sigmas = DoGImgLib2.computeSigmas( (float)dog.sigma, input.getA().numDimensions() );
-				final int[] halfKernelSizes = Gauss3.halfkernelsizes( sigmas.getA()[ 1 ] );
-				final int maxKernelSize = Collections.max( Arrays.stream( halfKernelSizes ).boxed().collect( Collectors.toList()) );
-
 				// here we put in the inverse mipmap transform and pretend its a fusion so we can re-use Tobi's code
 				// that finds which blocks need to be prefetched from an input image
 				final List< PrefetchPixel< ? > > prefetchBlocks = ViewUtil.findOverlappingBlocks( data, viewId, input.getB().inverse(), processInterval, maxKernelSize );
@@ -424,7 +623,7 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 				prefetchExecutor.shutdown();
 			}
 
-			final RandomAccessibleInterval inputImage;
+			RandomAccessibleInterval inputImage;
 
 			if ( medianFilter != null && medianFilter > 0 )
 			{
@@ -432,394 +631,1295 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 						(RandomAccessible)Views.extendMirrorDouble( input.getA() ),
 						new FinalInterval(input.getA()),
 						medianFilter,
-						new int[] {512, 512, 128} );
+						new int[] {512, 512, 128},
+						numThreads,
+						medianFilterDownsampling );
 			}
 			else
 			{
 				inputImage = input.getA();
 			}
 
-			final ExecutorService service = Threads.createFixedExecutorService( 1 );
+			// for a parameter sweep, load (and filter) the block and its halo only once
+			if ( sigmas.length > 1 )
+				inputImage = copyBlockAndHalo( inputImage, processInterval, maxKernelSize + 2 );
 
-			@SuppressWarnings("unchecked")
-			final ArrayList< InterestPoint > ips = DoGImgLib2.computeDoG(
-					(RandomAccessible)Views.extendMirrorDouble( inputImage ), // the entire image, extended to infinity
-					null, // mask
-					processInterval,
-					dog.sigma,
-					dog.threshold,
-					dog.localization,
-					dog.findMin,
-					dog.findMax,
-					dog.minIntensity,
-					dog.maxIntensity,
-					new int[] {128, 128, 64},
-					service,
-					dog.cuda,
-					dog.deviceCUDA,
-					dog.accurateCUDA,
-					dog.percentGPUMem );
+			final boolean needIntensities = storeIntensities || maxSpots > 0;
+			final String name = Group.pvid(viewId) + ", " + Util.printInterval( processInterval );
 
-			service.shutdown();
+			// the largest possible DoG response in this block (normalized like in DoGImgLib2)
+			final double maxResponse = skipEmptyBlocks ? maxDoGResponse( inputImage, processInterval, maxKernelSize + 2, intensityRange[ 0 ], intensityRange[ 1 ] ) : Double.MAX_VALUE;
 
-			if ( ips == null || ips.size() == 0 )
+			// parameter sets with the same sigma share one DoG: it is computed at the lowest threshold and the peaks are filtered
+			// for the higher ones; BOTH is the union of MIN and MAX if they are needed separately
+			final FlatInterestPoints[] points = new FlatInterestPoints[ sigmas.length ];
+			final ArrayList< ArrayList< String > > runsPerSet = new ArrayList<>();
+			final HashMap< String, TreeSet< Double > > thresholdsPerRun = new HashMap<>();
+
+			for ( int p = 0; p < sigmas.length; ++p )
 			{
-				System.out.println( "No interest points found for " + Group.pvid(viewId) + ", " + Util.printInterval( processInterval ) );
-				return new Tuple4<>( serializedInput._1(), Spark.serializeInterval( processInterval ), null, null );
+				final ArrayList< String > runs = new ArrayList<>();
+				runsPerSet.add( runs );
+
+				if ( !canContainPeaks( maxResponse, thresholds[ p ], localization ) )
+				{
+					System.out.println( "Skipping " + name + " for '" + labels[ p ] + "', max possible DoG response " + maxResponse + " cannot reach threshold " + thresholds[ p ] );
+
+					points[ p ] = new FlatInterestPoints( 0, needIntensities );
+					skippedBlocks.add( 1 );
+					continue;
+				}
+
+				final int q = p;
+				final boolean separate = types[ p ] == IP.BOTH &&
+						IntStream.range( 0, sigmas.length ).anyMatch( o -> sigmas[ o ] == sigmas[ q ] && types[ o ] != IP.BOTH );
+
+				if ( separate )
+				{
+					runs.add( runKey( sigmas[ p ], true, false ) );
+					runs.add( runKey( sigmas[ p ], false, true ) );
+				}
+				else
+				{
+					runs.add( runKey( sigmas[ p ], types[ p ] == IP.MIN || types[ p ] == IP.BOTH, types[ p ] == IP.MAX || types[ p ] == IP.BOTH ) );
+				}
+
+				for ( final String run : runs )
+					thresholdsPerRun.computeIfAbsent( run, k -> new TreeSet<>() ).add( thresholds[ p ] );
 			}
 
-			final double[] intensities;
+			// one DoG per sigma and type, the detections for each of its thresholds
+			final HashMap< String, HashMap< Double, FlatInterestPoints > > computed = new HashMap<>();
 
-			if ( storeIntensities || maxSpots > 0 )
+			for ( final String run : thresholdsPerRun.keySet() )
 			{
-				System.out.println( "Retrieving intensities for interest points '" + label + "' for " + Group.pvid(viewId) + ", " + Util.printInterval( processInterval ) + " ... " );
+				final String[] entries = run.split( "_" );
+				final double[] runThresholds = thresholdsPerRun.get( run ).stream().mapToDouble( Double::doubleValue ).toArray();
+
+				final FlatInterestPoints[] detections = detect(
+						inputImage, input, processInterval, Double.parseDouble( entries[ 0 ] ), runThresholds, localization,
+						Boolean.parseBoolean( entries[ 1 ] ), Boolean.parseBoolean( entries[ 2 ] ),
+						intensityRange[ 0 ], intensityRange[ 1 ], dogBlockSize, numThreads, needIntensities, name );
+
+				final HashMap< Double, FlatInterestPoints > perThreshold = new HashMap<>();
 
-				// for image interpolation
-				final RealRandomAccessible<FloatType> rra = Views.interpolate(
-						Views.extendBorder(
-								Converters.convertRAI(
-										(RandomAccessibleInterval<RealType>)(Object)input.getA(),
-										(a,b) -> b.set( a.getRealFloat() ),
-										new FloatType() ) ),
-						new NLinearInterpolatorFactory<>() );
-				final RealRandomAccess< FloatType> r = rra.realRandomAccess();
+				for ( int t = 0; t < runThresholds.length; ++t )
+					perThreshold.put( runThresholds[ t ], detections[ t ] );
 
-				intensities = new double[ ips.size() ];
+				computed.put( run, perThreshold );
+			}
 
-				for ( int i = 0; i < ips.size(); ++i )
+			for ( int p = 0; p < sigmas.length; ++p )
+			{
+				for ( final String run : runsPerSet.get( p ) )
 				{
-					r.setPosition( ips.get( i ) );
-					intensities[ i ] = r.get().get();
+					final FlatInterestPoints detections = computed.get( run ).get( thresholds[ p ] );
+
+					points[ p ] = points[ p ] == null ? detections : FlatInterestPoints.concatenate( points[ p ], detections );
 				}
+
+				if ( runsPerSet.get( p ).size() > 0 )
+					System.out.println( "Returning " + points[ p ].size() + " interest points '" + labels[ p ] + "' for " + name + " ... " );
 			}
-			else
+
+			// return ViewId, interval, points (locations, intensities) for each parameter set
+			return new Tuple3<>( serializedInput._1(), Spark.serializeInterval( processInterval ), points );
+		});
+
+		// per view: all overlaps (for maxSpotsPerOverlap) and the transformation into their (downsampled) coordinates
+		final HashMap< Tuple2< Integer, Integer >, Tuple2< long[][][], double[] > > overlapsPerView = new HashMap<>();
+
+		if ( maxSpotsPerOverlap && maxSpots > 0 )
+		{
+			for ( int i = 0; i < viewIdsGlobal.size(); ++i )
 			{
-				intensities = null;
+				final ViewId viewId = viewIdsGlobal.get( i );
+				final List< Interval > overlaps = overlapsPerViewId.get( viewId );
+
+				if ( overlaps != null )
+					overlapsPerView.put(
+							new Tuple2<>( viewId.getTimePointId(), viewId.getViewSetupId() ),
+							new Tuple2<>(
+									overlaps.stream().map( Spark::serializeInterval ).toArray( long[][][]::new ),
+									metadata.get( i ).mipmapTransform.inverse().getRowPackedCopy() ) );
 			}
+		}
 
-			// correcting for downsampling
-			System.out.println( "Correcting interest points '" + label + "', " + Group.pvid(viewId) + ", " + Util.printInterval( processInterval ) + " for downsampling ... " );
+		final long maxOverlapSize = maxIntervalSize;
+		final URI basePathURI = dataGlobal.getBasePathURI();
+		final boolean dryRun = this.dryRun;
 
-			DownsampleTools.correctForDownsampling( ips, input.getB() );
+		// combine all blocks of each view and save them on the executors (partitioned by view and parameter set), return ViewId, parameter set, number of points
+		final JavaRDD< Tuple3< int[], Integer, Integer > > rddMerged = rddResult
+				.flatMapToPair( tuple ->
+				{
+					final ArrayList< Tuple2< Tuple3< Integer, Integer, Integer >, Tuple3< int[], long[][], FlatInterestPoints > > > perParameterSet = new ArrayList<>();
 
-			final double[][] points = new double[ ips.size() ][];
+					for ( int p = 0; p < tuple._3().length; ++p )
+						if ( tuple._3()[ p ].size() > 0 )
+							perParameterSet.add( new Tuple2<>( new Tuple3<>( tuple._1()[ 0 ], tuple._1()[ 1 ], p ), new Tuple3<>( tuple._1(), tuple._2(), tuple._3()[ p ] ) ) );
 
-			for ( int i = 0; i < ips.size(); ++i )
-				points[ i ] = ips.get( i ).getL();
+					return perParameterSet.iterator();
+				})
+				.groupByKey()
+				.map( group ->
+				{
+					final int p = group._1()._3();
 
-			System.out.println( "Returning " + ips.size() + " interest points '" + label + "' for " + Group.pvid(viewId) + ", " + Util.printInterval( processInterval ) + " ... " );
+					final ArrayList< Tuple3< int[], long[][], FlatInterestPoints > > blocks = new ArrayList<>();
+					group._2().forEach( blocks::add );
 
-			// return ViewId, interval, locations, intensities
-			return new Tuple4<>( serializedInput._1(), Spark.serializeInterval( processInterval ), points, intensities );
-		});
+					final Tuple2< int[], FlatInterestPoints > combined = combineBlocks(
+							blocks,
+							overlapsPerView.get( new Tuple2<>( group._1()._1(), group._1()._2() ) ),
+							maxSpots,
+							maxSpotsPerOverlap,
+							maxOverlapSize,
+							onlyOverlappingRegions,
+							combineDistance,
+							storeIntensities );
 
+					if ( !dryRun )
+						saveInterestPoints(
+								basePathURI, Spark.deserializeViewId( combined._1() ), labels[ p ], combined._2(), storeIntensities,
+								fingerprints.get( new Tuple2<>( group._1()._1(), group._1()._2() ) ),
+								intensityRanges.getOrDefault( group._1()._2(), new double[] { minIntensity, maxIntensity } ) );
 
-		rddResult.cache();
-		rddResult.count();
+					return new Tuple3<>( combined._1(), p, combined._2().size() );
+				});
 
-		final List<Tuple4<int[], long[][], double[][], double[]>> results = rddResult.collect();
+		final List< Tuple3< int[], Integer, Integer > > results = rddMerged.collect();
 
-		sc.close();
+		if ( skipEmptyBlocks )
+			System.out.println( "Skipped " + skippedBlocks.value() + " of " + ( sparkProcess.size() * labels.length ) + " blocks (x parameter sets) that cannot contain interest points." );
 
-		System.out.println( "Computed all interest points, statistics:" );
+		// number of points per parameter set and view
+		final ArrayList< HashMap< ViewId, Integer > > numInterestPoints = new ArrayList<>();
+
+		for ( int p = 0; p < labels.length; ++p )
+			numInterestPoints.add( new HashMap<>() );
+
+		for ( final Tuple3< int[], Integer, Integer > tuple : results )
+			numInterestPoints.get( tuple._2() ).put( Spark.deserializeViewId( tuple._1() ), tuple._3() );
+
+		// views without any points are saved with an empty list (and their fingerprint), so --incremental does not process them again
+		for ( int p = 0; p < labels.length; ++p )
+		{
+			for ( final Tuple2< Integer, Integer > t : fingerprints.keySet() )
+			{
+				final ViewId viewId = new ViewId( t._1(), t._2() );
 
-		// assemble all interest point intervals per ViewId
-		final HashMap< ViewId, List< List< InterestPoint > > > interestPointsPerViewId = new HashMap<>();
-		final HashMap< ViewId, List< List< Double > > > intensitiesPerViewId = new HashMap<>();
-		final HashMap< ViewId, List< Interval > > intervalsPerViewId = new HashMap<>();
+				if ( numInterestPoints.get( p ).containsKey( viewId ) )
+					continue;
 
-		for ( final Tuple4<int[], long[][], double[][], double[]> tuple : results )
+				numInterestPoints.get( p ).put( viewId, 0 );
+
+				if ( !dryRun )
+					saveInterestPoints(
+							basePathURI, viewId, labels[ p ], new FlatInterestPoints( 0, storeIntensities ), storeIntensities,
+							fingerprints.get( t ), intensityRanges.getOrDefault( t._2(), new double[] { minIntensity, maxIntensity } ) );
+			}
+		}
+
+		if ( !dryRun )
 		{
-			final ViewId viewId = Spark.deserializeViewId( tuple._1() );
-			final double[][] points = tuple._3();
+			// the new points have new ids, correspondences of other views (e.g. skipped by --incremental) to the points they replace are invalid now
+			final HashMap< String, HashSet< Tuple2< Integer, Integer > > > redetected = new HashMap<>();
 
-			if ( points != null && points.length > 0 )
+			for ( int p = 0; p < labels.length; ++p )
 			{
-				interestPointsPerViewId.putIfAbsent(viewId, new ArrayList<>() );
-				interestPointsPerViewId.get( viewId ).add( Spark.deserializeInterestPoints(points) );
+				final HashSet< Tuple2< Integer, Integer > > viewIds = new HashSet<>();
+
+				// views that did not have points of this label before cannot be referenced
+				for ( final ViewId viewId : numInterestPoints.get( p ).keySet() )
+				{
+					final ViewInterestPointLists lists = dataGlobal.getViewInterestPoints().getViewInterestPointLists( viewId );
+
+					if ( lists != null && lists.getInterestPointList( labels[ p ] ) != null )
+						viewIds.add( new Tuple2<>( viewId.getTimePointId(), viewId.getViewSetupId() ) );
+				}
+
+				if ( viewIds.size() > 0 )
+					redetected.put( labels[ p ], viewIds );
+			}
+
+			final long removed = removeCorrespondencesTo( sc, xmlURI, dataGlobal, redetected );
 
-				intervalsPerViewId.putIfAbsent(viewId, new ArrayList<>() );
-				intervalsPerViewId.get( viewId ).add( Spark.deserializeInterval( tuple._2() ) );
+			if ( removed > 0 )
+				System.out.println( "Removed " + removed + " correspondences of other views to the re-detected interest points, re-run the matching for them." );
+		}
+
+		sc.close();
 
-				if ( storeIntensities || maxSpots > 0 )
+		System.out.println( "Computed all interest points, statistics:" );
+
+		for ( int p = 0; p < labels.length; ++p )
+		{
+			final HashMap< ViewId, Integer > numPoints = numInterestPoints.get( p );
+
+			// assemble all ViewIds
+			final ArrayList< ViewId > viewIds = new ArrayList<>( numPoints.keySet() );
+			Collections.sort( viewIds );
+
+			if ( labels.length == 1 )
+				viewIds.forEach( viewId -> System.out.println( Group.pvid( viewId ) + ": " + numPoints.get( viewId ) ) );
+
+			final IntSummaryStatistics stats = numPoints.values().stream().mapToInt( Integer::intValue ).summaryStatistics();
+
+			System.out.println( "Label '" + labels[ p ] + "' (s=" + sigmas[ p ] + ", t=" + thresholds[ p ] + ", type=" + types[ p ] + "): " +
+					stats.getSum() + " points in " + viewIds.size() + " of " + viewIdsGlobal.size() + " views" +
+					( viewIds.size() > 0 ? ", per view min=" + stats.getMin() + ", avg=" + Math.round( stats.getAverage() ) + ", max=" + stats.getMax() : "" ) );
+
+			if ( !dryRun )
+			{
+				// the interest points were saved by the executors, we only add the metadata
+				for ( final ViewId viewId : viewIds )
 				{
-					intensitiesPerViewId.putIfAbsent(viewId, new ArrayList<>() );
-					intensitiesPerViewId.get( viewId ).add( DoubleStream.of(tuple._4()).boxed().collect(Collectors.toList() ) );
+					// no points are set, so they are not saved again and will be loaded from the N5 when needed
+					final InterestPoints ipl = InterestPoints.newInstance( dataGlobal.getBasePathURI(), viewId, labels[ p ] );
+					ipl.setParameters( params[ p ] );
+
+					dataGlobal.getViewInterestPoints().getViewInterestPointLists( viewId ).addInterestPointList( labels[ p ], ipl );
 				}
 			}
 		}
 
-		// assemble all ViewIds
-		final ArrayList< ViewId > viewIds = new ArrayList<>( interestPointsPerViewId.keySet() );
-		Collections.sort( viewIds );
+		if ( !dryRun )
+		{
+			System.out.println( "Saving XML (metadata only) ..." );
 
-		// we need to filter per overlap before combining
-		if ( maxSpotsPerOverlap && maxSpots > 0 )
+			new XmlIoSpimData2().save( dataGlobal, xmlURI );
+		}
+
+		System.out.println( "Done ..." );
+
+		return null;
+	}
+
+	protected static String runKey( final double sigma, final boolean findMin, final boolean findMax )
+	{
+		return sigma + "_" + findMin + "_" + findMax;
+	}
+
+	/**
+	 * Runs the Difference-of-Gaussian detection for one block, retrieves the intensities (if needed) and corrects the
+	 * locations for the downsampling. The DoG is only computed once at the lowest threshold, the detections for the
+	 * higher thresholds are the peaks whose DoG response (see dogResponses) reaches that threshold.
+	 *
+	 * @param inputImage - the (filtered) image to detect in
+	 * @param input - the downsampled image (for the intensities) and its mipmap transform
+	 * @param processInterval - the block to process
+	 * @param thresholds - the thresholds, sorted ascending
+	 * @param dogBlockSize - the size of the blocks that are computed in parallel
+	 * @param numThreads - how many threads this task uses
+	 * @return the detections for each threshold (never null)
+	 */
+	@SuppressWarnings("unchecked")
+	public static FlatInterestPoints[] detect(
+			final RandomAccessibleInterval inputImage,
+			final Pair<RandomAccessibleInterval, AffineTransform3D> input,
+			final Interval processInterval,
+			final double sigma,
+			final double[] thresholds,
+			final Localization localization,
+			final boolean findMin,
+			final boolean findMax,
+			final double minIntensity,
+			final double maxIntensity,
+			final int[] dogBlockSize,
+			final int numThreads,
+			final boolean needIntensities,
+			final String name )
+	{
+		final ExecutorService service = dogService( numThreads );
+
+		final ArrayList< InterestPoint > ips = DoGImgLib2.computeDoG(
+				(RandomAccessible)Views.extendMirrorDouble( inputImage ), // the entire image, extended to infinity
+				null, // mask
+				processInterval,
+				sigma,
+				thresholds[ 0 ],
+				localization == Localization.NONE ? 0 : 1,
+				findMin,
+				findMax,
+				minIntensity,
+				maxIntensity,
+				dogBlockSize,
+				service,
+				null,
+				null,
+				false,
+				0 );
+
+		final FlatInterestPoints[] detections = new FlatInterestPoints[ thresholds.length ];
+
+		if ( ips == null || ips.size() == 0 )
 		{
-			for ( final ViewId viewId : viewIds )
+			System.out.println( "No interest points found for " + name + " (s=" + sigma + ", t=" + thresholds[ 0 ] + ")" );
+
+			for ( int t = 0; t < thresholds.length; ++t )
+				detections[ t ] = new FlatInterestPoints( 0, needIntensities );
+
+			return detections;
+		}
+
+		// the responses of the peaks at the scale of detection (before correcting for the downsampling)
+		final double[] responses = thresholds.length > 1 ? dogResponses( inputImage, ips, sigma, localization, minIntensity, maxIntensity ) : null;
+
+		final float[] intensities;
+
+		if ( needIntensities )
+		{
+			System.out.println( "Retrieving intensities for interest points for " + name + " ... " );
+
+			// for image interpolation
+			final RealRandomAccessible<FloatType> rra = Views.interpolate(
+					Views.extendBorder(
+							Converters.convertRAI(
+									(RandomAccessibleInterval<RealType>)(Object)input.getA(),
+									(a,b) -> b.set( a.getRealFloat() ),
+									new FloatType() ) ),
+					new NLinearInterpolatorFactory<>() );
+			final RealRandomAccess< FloatType> r = rra.realRandomAccess();
+
+			intensities = new float[ ips.size() ];
+
+			for ( int i = 0; i < ips.size(); ++i )
 			{
-				final List< List< InterestPoint > > ipsList = interestPointsPerViewId.get( viewId );
-				final List< List< Double > > intensitiesList = intensitiesPerViewId.get( viewId );
-				final List< Interval > intervalsList = intervalsPerViewId.get( viewId ); // note: in downsampled coordinates(!)
+				r.setPosition( ips.get( i ) );
+				intensities[ i ] = r.get().get();
+			}
+		}
+		else
+		{
+			intensities = null;
+		}
 
-				// find all intervals of this view, then assign points to it
-				final List< Tuple3< Interval, List< InterestPoint >, List< Double > > > intervalData = new ArrayList<>();
+		// correcting for downsampling
+		DownsampleTools.correctForDownsampling( ips, input.getB() );
 
-				// for each toProcess block do
-				for ( final Pair< ViewId, Interval > p : toProcess )
-				{
-					if ( p.getA().equals( viewId ) )
-					{
-						final Interval toProcessInterval = p.getB();
+		final FlatInterestPoints all = FlatInterestPoints.fromInterestPoints( ips, intensities );
 
-						final List< InterestPoint > ipsBlock = new ArrayList<>();
-						final List< Double > intensitiesBlock = new ArrayList<>();
+		detections[ 0 ] = all;
 
-						// figure out which computed blockIntervals fall into this toProcessInterval
-						for ( int l = 0; l < ipsList.size(); ++l )
-						{
-							final Interval blockInterval = intervalsList.get( l );
+		for ( int t = 1; t < thresholds.length; ++t )
+		{
+			final boolean[] keep = new boolean[ responses.length ];
 
-							if ( Intervals.contains( toProcessInterval, blockInterval ) )
-							{
-								ipsBlock.addAll( ipsList.get( l ) );
-								intensitiesBlock.addAll( intensitiesList.get( l ) );
-							}
-						}
+			for ( int i = 0; i < responses.length; ++i )
+				keep[ i ] = responses[ i ] >= thresholds[ t ];
 
-						intervalData.add( new Tuple3<>( toProcessInterval, ipsBlock, intensitiesBlock ) );
-					}
-				}
+			detections[ t ] = all.select( keep, false );
+		}
+
+		return detections;
+	}
 
-				// to later put back into interestPointsPerViewId and intensitiesPerViewId
-				interestPointsPerViewId.get( viewId ).clear();
-				intensitiesPerViewId.get( viewId ).clear();
+	/**
+	 * Evaluates the absolute DoG response (normalized and weighted like in DoGImgLib2) at each peak: the two Gaussians
+	 * are only computed for the 3x3x3 neighborhood of the peak pixel by separable convolution of a small patch, with
+	 * quadratic localization the response is interpolated to the subpixel location (value + 0.5 * gradient * offset).
+	 *
+	 * @param img - the image the DoG was computed on
+	 * @param peaks - the peaks at the scale of detection
+	 * @param sigma - the sigma of the DoG
+	 * @param localization - the localization that was used
+	 * @param minIntensity - the intensity that is normalized to 0
+	 * @param maxIntensity - the intensity that is normalized to 1
+	 * @return the absolute response of each peak
+	 */
+	@SuppressWarnings("unchecked")
+	public static double[] dogResponses(
+			final RandomAccessibleInterval img,
+			final List< InterestPoint > peaks,
+			final double sigma,
+			final Localization localization,
+			final double minIntensity,
+			final double maxIntensity )
+	{
+		final double[][] dogSigmas = DoGImgLib2.computeSigmas( (float)sigma, 3 ).getA();
+		final double[][] kernel1 = Gauss3.halfkernels( dogSigmas[ 0 ] );
+		final double[][] kernel2 = Gauss3.halfkernels( dogSigmas[ 1 ] );
+
+		// the patch covers the larger kernel around the 3x3x3 neighborhood
+		final int[] h = new int[ 3 ];
+		final int[] size = new int[ 3 ];
 
-				// now filter each interval of each view
-				for ( final Tuple3< Interval, List< InterestPoint >, List< Double > > tuple : intervalData )
+		for ( int d = 0; d < 3; ++d )
+		{
+			h[ d ] = Math.max( kernel1[ d ].length, kernel2[ d ].length ) - 1;
+			size[ d ] = 3 + 2 * h[ d ];
+		}
+
+		final RandomAccess< RealType< ? > > ra = ( (RandomAccessible< RealType< ? > >)Views.extendMirrorDouble( img ) ).randomAccess();
+		final double scale = 1.0 / ( maxIntensity - minIntensity );
+
+		final double[] patch = new double[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+		final double[] dog = new double[ 27 ];
+		final long[] center = new long[ 3 ];
+		final double[] responses = new double[ peaks.size() ];
+
+		for ( int i = 0; i < peaks.size(); ++i )
+		{
+			final double[] l = peaks.get( i ).getL();
+
+			for ( int d = 0; d < 3; ++d )
+				center[ d ] = Math.round( l[ d ] );
+
+			for ( int z = 0, j = 0; z < size[ 2 ]; ++z )
+				for ( int y = 0; y < size[ 1 ]; ++y )
 				{
-					final int myMaxSpots = (int)Math.round( maxSpots * ( (double)ViewUtil.size( tuple._1() ) /(double)maxIntervalSize ) );
+					ra.setPosition( center[ 0 ] - 1 - h[ 0 ], 0 );
+					ra.setPosition( center[ 1 ] - 1 - h[ 1 ] + y, 1 );
+					ra.setPosition( center[ 2 ] - 1 - h[ 2 ] + z, 2 );
 
-					if ( myMaxSpots > 0 && myMaxSpots < tuple._2().size() )
-					{
-						final int oldSize = tuple._2().size();
-						filterPoints( tuple._2(), tuple._3(), myMaxSpots );
-						System.out.println( "Filtered interval (limit=" + myMaxSpots + ") " + Util.printInterval( tuple._1() ) + " (" + Group.pvid( viewId ) + "): " + oldSize + " >>> " + tuple._2().size() );
-					}
-					else
+					for ( int x = 0; x < size[ 0 ]; ++x, ++j )
 					{
-						System.out.println( "NOT filtered interval (limit=" + myMaxSpots + ") " + Util.printInterval( tuple._1() ) + " (" + Group.pvid( viewId ) + "): " + tuple._2().size() );
+						patch[ j ] = ( ra.get().getRealDouble() - minIntensity ) * scale;
+						ra.fwd( 0 );
 					}
-
-					interestPointsPerViewId.get( viewId ).add( tuple._2() );
-					intensitiesPerViewId.get( viewId ).add( tuple._3() );
 				}
+
+			final double[] g1 = convolve3( patch, size, h, kernel1 );
+			final double[] g2 = convolve3( patch, size, h, kernel2 );
+
+			for ( int j = 0; j < 27; ++j )
+				dog[ j ] = ( g2[ j ] - g1[ j ] ) * DOG_WEIGHT;
+
+			double value = dog[ 13 ];
+
+			if ( localization != Localization.NONE )
+			{
+				// central differences along x (+-1), y (+-3), z (+-9)
+				for ( int d = 0, step = 1; d < 3; ++d, step *= 3 )
+					value += 0.5 * ( dog[ 13 + step ] - dog[ 13 - step ] ) / 2.0 * ( l[ d ] - center[ d ] );
 			}
+
+			responses[ i ] = Math.abs( value );
 		}
 
-		// now combine all jobs and fix potential overlap (overlappingOnly)
-		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap<>();
-		final HashMap< ViewId, List< Double > > intensitiesIPs = new HashMap<>();
+		return responses;
+	}
+
+	/**
+	 * Separable convolution of a patch (x fastest) that only computes the central 3x3x3 values.
+	 *
+	 * @param patch - the patch of size (3 + 2 * h[d]) in each dimension
+	 * @param size - the size of the patch
+	 * @param h - the margin of the patch in each dimension
+	 * @param halfKernels - the half kernels in each dimension (at most h[d] + 1 long)
+	 * @return the 27 values of the central neighborhood (x fastest)
+	 */
+	protected static double[] convolve3( final double[] patch, final int[] size, final int[] h, final double[][] halfKernels )
+	{
+		final int sx = size[ 0 ], sy = size[ 1 ], sz = size[ 2 ];
+
+		// along x: (sx, sy, sz) -> (3, sy, sz)
+		final double[] cx = new double[ 3 * sy * sz ];
+
+		for ( int zy = 0; zy < sy * sz; ++zy )
+			for ( int o = 0; o < 3; ++o )
+				cx[ zy * 3 + o ] = convolve( patch, zy * sx + o + h[ 0 ], 1, halfKernels[ 0 ] );
+
+		// along y: (3, sy, sz) -> (3, 3, sz)
+		final double[] cy = new double[ 9 * sz ];
 
-		for ( final ViewId viewId : viewIds )
+		for ( int z = 0; z < sz; ++z )
+			for ( int o = 0; o < 3; ++o )
+				for ( int x = 0; x < 3; ++x )
+					cy[ ( z * 3 + o ) * 3 + x ] = convolve( cx, ( z * sy + o + h[ 1 ] ) * 3 + x, 3, halfKernels[ 1 ] );
+
+		// along z: (3, 3, sz) -> (3, 3, 3)
+		final double[] cz = new double[ 27 ];
+
+		for ( int o = 0; o < 3; ++o )
+			for ( int xy = 0; xy < 9; ++xy )
+				cz[ o * 9 + xy ] = convolve( cy, ( o + h[ 2 ] ) * 9 + xy, 9, halfKernels[ 2 ] );
+
+		return cz;
+	}
+
+	protected static double convolve( final double[] values, final int center, final int stride, final double[] halfKernel )
+	{
+		double sum = values[ center ] * halfKernel[ 0 ];
+
+		for ( int k = 1; k < halfKernel.length; ++k )
+			sum += ( values[ center - k * stride ] + values[ center + k * stride ] ) * halfKernel[ k ];
+
+		return sum;
+	}
+
+	private static final SharedThreadPool dogThreads = new SharedThreadPool( "dog" );
+
+	/**
+	 * One thread pool per executor JVM that is shared by all tasks running on it. It provides numThreads
+	 * threads for each task that can run concurrently (spark.executor.cores / spark.task.cpus), so that
+	 * all cores are used even if a task is much bigger than a single DoG block. If a task needs more threads,
+	 * the pool grows in place, so concurrent tasks can keep submitting to it.
+	 *
+	 * @param numThreads - threads per task
+	 * @return the shared thread pool
+	 */
+	protected static ExecutorService dogService( final int numThreads )
+	{
+		final SparkConf conf = SparkEnv.get() == null ? new SparkConf() : SparkEnv.get().conf();
+
+		final int executorCores = conf.getInt( "spark.executor.cores", Runtime.getRuntime().availableProcessors() );
+		final int concurrentTasks = Math.max( 1, executorCores / conf.getInt( "spark.task.cpus", 1 ) );
+
+		return dogThreads.get( numThreads * concurrentTasks );
+	}
+
+	/**
+	 * The DoG is the (weighted) difference of two Gaussian-smoothed versions of the normalized image. Both are convex
+	 * combinations of the pixels within the kernel, so its absolute value inside a block can never exceed the
+	 * intensity range (max - min) within the block and the kernel halo, multiplied by the weight of the DoG.
+	 *
+	 * @param img - the image the DoG is computed on
+	 * @param block - the block to process
+	 * @param halo - the kernel size plus the neighborhood of the peak search
+	 * @param minIntensity - the intensity that is normalized to 0
+	 * @param maxIntensity - the intensity that is normalized to 1
+	 * @return an upper bound for the absolute DoG response within the block
+	 */
+	@SuppressWarnings("unchecked")
+	public static double maxDoGResponse( final RandomAccessibleInterval img, final Interval block, final int halo, final double minIntensity, final double maxIntensity )
+	{
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+
+		// mirroring at the image borders only repeats pixels inside the image
+		final Interval region = Intervals.intersect( Intervals.expand( block, halo ), img );
+
+		for ( final RealType< ? > t : (Iterable< RealType< ? > >)Views.flatIterable( Views.interval( img, region ) ) )
 		{
-			final ArrayList< InterestPoint > myIps = new ArrayList<>();
-			final ArrayList< Double > myIntensities = new ArrayList<>();
+			final double v = t.getRealDouble();
 
-			final List< List< InterestPoint > > ipsList = interestPointsPerViewId.get( viewId );
-			final List< List< Double > > intensitiesList;
+			if ( v < min ) min = v;
+			if ( v > max ) max = v;
+		}
 
-			if ( storeIntensities || maxSpots > 0 )
-				intensitiesList = intensitiesPerViewId.get( viewId );
-			else
-				intensitiesList = null;
+		if ( max < min )
+			return 0;
+
+		return ( max - min ) / Math.abs( maxIntensity - minIntensity ) * DOG_WEIGHT;
+	}
+
+	/**
+	 * The weight 1/(k-1) that DoGImgLib2 multiplies the DoG with (k = 2^(1/4)), larger values are more conservative
+	 */
+	public static double DOG_WEIGHT = 1.0 / ( Math.pow( 2.0, 1.0 / 4.0 ) - 1.0 );
+
+	/**
+	 * @param maxResponse - upper bound of the DoG response in the block
+	 * @param threshold - the detection threshold
+	 * @param localization - with subpixel localization, DoGImgLib2 searches for peaks at a third of the threshold
+	 * @return false if the block provably does not contain any detection
+	 */
+	public static boolean canContainPeaks( final double maxResponse, final double threshold, final Localization localization )
+	{
+		final double minInitialPeakValue = localization == Localization.NONE ? threshold : threshold / 3.0;
+
+		return maxResponse >= minInitialPeakValue;
+	}
+
+	/**
+	 * Loads the block and its halo (clipped to the image) into memory, so several detections can run on it.
+	 * Extending the copy by mirroring is identical to extending the image, since the halo covers everything
+	 * that is read from inside the image.
+	 *
+	 * @param img - the image
+	 * @param block - the block to process
+	 * @param halo - the halo around the block
+	 * @return the in-memory copy (with the same coordinates as the image)
+	 */
+	@SuppressWarnings("unchecked")
+	public static RandomAccessibleInterval< FloatType > copyBlockAndHalo( final RandomAccessibleInterval img, final Interval block, final int halo )
+	{
+		final Interval region = Intervals.intersect( Intervals.expand( block, halo ), img );
+
+		final Img< FloatType > copy = new ArrayImgFactory<>( new FloatType() ).create( region );
+
+		LoopBuilder.setImages( (RandomAccessibleInterval< RealType >)Views.zeroMin( Views.interval( img, region ) ), copy ).forEachPixel( ( i, o ) -> o.setReal( i.getRealDouble() ) );
+
+		return Views.translate( copy, region.minAsLongArray() );
+	}
+
+	public static String FINGERPRINT_KEY = "fingerprint";
+	public static String INTENSITY_RANGE_KEY = "intensityRange";
+
+	/**
+	 * The fingerprint describes everything about the input of a view that changes the detections, except the parameters
+	 * (which are stored in the XML) and the pixels themselves (which would need to be read completely).
+	 *
+	 * @param imgLoader - the image loader
+	 * @param n5 - the container of a BDV-N5 image loader (see {@link #openDataN5(BasicImgLoader)}) or null
+	 * @param viewId - the view
+	 * @param view - dimensions and mipmap level of the view
+	 * @param overlaps - the overlapping areas (for overlappingOnly) or null
+	 * @return a hash of the input
+	 */
+	protected static String fingerprint( final BasicImgLoader imgLoader, final N5Reader n5, final ViewId viewId, final ViewMetadata view, final List< Interval > overlaps )
+	{
+		final StringBuilder input = new StringBuilder();
+
+		input.append( imgLoader.getClass().getName() );
 
-			// combine points since overlapping areas might exist
-			for ( int l = 0; l < ipsList.size(); ++l )
+		// where the data is stored, a re-saved or replaced dataset has a different location or different attributes
+		if ( N5ImageLoader.class.isInstance( imgLoader ) )
+		{
+			final String dataset = MipmapTools.dataset( viewId.getViewSetupId(), viewId.getTimePointId(), view.level );
+
+			input.append( " data=" ).append( ( (N5ImageLoader)imgLoader ).getN5URI() );
+			input.append( " dataset=" ).append( dataset );
+
+			if ( n5 != null && n5.datasetExists( dataset ) )
 			{
-				final List< InterestPoint > ips = ipsList.get( l );
-				final List< Double > intensities;
+				final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
 
-				if ( storeIntensities || maxSpots > 0 )
-					intensities = intensitiesList.get( l );
-				else
-					intensities = null;
+				input.append( " dimensions=" ).append( Arrays.toString( attributes.getDimensions() ) );
+				input.append( " blockSize=" ).append( Arrays.toString( attributes.getBlockSize() ) );
+				input.append( " dataType=" ).append( attributes.getDataType() );
+				input.append( " compression=" ).append( attributes.getCompression().getType() );
+			}
+		}
 
-				if ( !overlappingOnly || myIps.size() == 0 )
-				{
-					myIps.addAll( ips );
+		input.append( " dim=" ).append( Util.printCoordinates( view.dim.dimensionsAsLongArray() ) );
+		input.append( " level=" ).append( Util.printInterval( view.downsampledInterval ) );
+		input.append( " mipmap=" ).append( Arrays.toString( view.mipmapTransform.getRowPackedCopy() ) );
 
-					if ( storeIntensities || maxSpots > 0 )
-						myIntensities.addAll( intensities );
-				}
-				else
+		if ( overlaps != null )
+			overlaps.stream().map( Util::printInterval ).sorted().forEach( o -> input.append( " overlap=" ).append( o ) );
+
+		try
+		{
+			final byte[] hash = MessageDigest.getInstance( "SHA-256" ).digest( input.toString().getBytes( StandardCharsets.UTF_8 ) );
+
+			final StringBuilder hex = new StringBuilder();
+			for ( final byte b : hash )
+				hex.append( String.format( "%02x", b ) );
+
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			return input.toString();
+		}
+	}
+
+	/**
+	 * @param imgLoader - the image loader
+	 * @return the container of a BDV-N5 image loader (to read the dataset attributes for the fingerprint) or null
+	 */
+	protected static N5Reader openDataN5( final BasicImgLoader imgLoader )
+	{
+		if ( !N5ImageLoader.class.isInstance( imgLoader ) )
+			return null;
+
+		try
+		{
+			return URITools.instantiateN5Reader( StorageFormat.N5, ( (N5ImageLoader)imgLoader ).getN5URI() );
+		}
+		catch ( final Exception e )
+		{
+			// e.g. OME-Zarr, only the location is part of the fingerprint
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the view has interest points of this label that were detected with the same parameters from the same input
+	 */
+	public static boolean isUpToDate( final SpimData2 data, final ViewId viewId, final String label, final String params, final String fingerprint )
+	{
+		final ViewInterestPointLists lists = data.getViewInterestPoints().getViewInterestPointLists( viewId );
+
+		if ( lists == null )
+			return false;
+
+		final InterestPoints ipl = lists.getInterestPointList( label );
+
+		if ( ipl == null || !InterestPointsN5.class.isInstance( ipl ) || !params.equals( ipl.getParameters() ) )
+			return false;
+
+		final InterestPointsN5 i = (InterestPointsN5)ipl;
+
+		final N5Writer n5 = URITools.instantiateN5Writer( StorageFormat.N5, URITools.toURI( URITools.appendName( i.getBaseDir(), InterestPointsN5.baseN5 ) ) );
+		final String stored = n5.exists( i.ipDataset() ) ? n5.getAttribute( i.ipDataset(), FINGERPRINT_KEY, String.class ) : null;
+		n5.close();
+
+		return fingerprint.equals( stored );
+	}
+
+	/**
+	 * Removes all corresponding interest points that refer to points of the given views and labels (which were detected
+	 * again and have new ids) from the lists of all other views and labels, and saves the lists that changed. The lists
+	 * are loaded, filtered and saved on the executors, distributed over (view, label).
+	 *
+	 * @param sc - the spark context
+	 * @param xmlURI - the project (loaded on the executors, the lists of the other views are unchanged in it)
+	 * @param data - the project (before the lists of the re-detected views are replaced)
+	 * @param redetected - for each label the (timepoint, setup) of the views that had points of it and were detected again
+	 * @return the number of removed correspondences
+	 */
+	public static long removeCorrespondencesTo(
+			final JavaSparkContext sc,
+			final URI xmlURI,
+			final SpimData2 data,
+			final HashMap< String, HashSet< Tuple2< Integer, Integer > > > redetected )
+	{
+		if ( redetected.size() == 0 )
+			return 0;
+
+		// all lists of any label can refer to the replaced points, except the lists that are replaced themselves
+		final ArrayList< Tuple2< int[], String > > lists = new ArrayList<>();
+
+		for ( final Entry< ViewId, ViewInterestPointLists > entry : data.getViewInterestPoints().getViewInterestPoints().entrySet() )
+		{
+			final Tuple2< Integer, Integer > key = new Tuple2<>( entry.getKey().getTimePointId(), entry.getKey().getViewSetupId() );
+
+			for ( final String label : entry.getValue().getHashMap().keySet() )
+				if ( !redetected.containsKey( label ) || !redetected.get( label ).contains( key ) )
+					lists.add( new Tuple2<>( Spark.serializeViewId( entry.getKey() ), label ) );
+		}
+
+		if ( lists.size() == 0 )
+			return 0;
+
+		System.out.println( "Checking " + lists.size() + " interest point lists for correspondences to the re-detected interest points ..." );
+
+		return sc.parallelize( lists ).mapPartitions( partition ->
+		{
+			final SpimData2 dataLocal = Spark.getSparkJobSpimData2( xmlURI );
+			long removed = 0;
+
+			while ( partition.hasNext() )
+			{
+				final Tuple2< int[], String > list = partition.next();
+
+				final InterestPoints ipl = dataLocal.getViewInterestPoints().getViewInterestPointLists( Spark.deserializeViewId( list._1() ) ).getInterestPointList( list._2() );
+				final List< CorrespondingInterestPoints > correspondences = ipl.getCorrespondingInterestPointsCopy();
+
+				final ArrayList< CorrespondingInterestPoints > valid = new ArrayList<>();
+
+				for ( final CorrespondingInterestPoints c : correspondences )
 				{
-					final KDTree< InterestPoint > tree = new KDTree<>(myIps, myIps);
-					final NearestNeighborSearchOnKDTree< InterestPoint > search = new NearestNeighborSearchOnKDTree<>( tree );
+					final HashSet< Tuple2< Integer, Integer > > viewIds = redetected.get( c.getCorrespodingLabel() );
 
-					for ( int i = 0; i < ips.size(); ++i )
-					{
-						final InterestPoint ip = ips.get( i );
-						search.search( ip );
+					if ( viewIds == null || !viewIds.contains( new Tuple2<>( c.getCorrespondingViewId().getTimePointId(), c.getCorrespondingViewId().getViewSetupId() ) ) )
+						valid.add( c );
+				}
 
-						if ( search.getDistance() > combineDistance )
-						{
-							myIps.add( ip );
+				if ( valid.size() < correspondences.size() )
+				{
+					removed += correspondences.size() - valid.size();
 
-							if ( storeIntensities || maxSpots > 0 )
-								myIntensities.add( intensities.get( i ) );
-						}
-					}
+					ipl.setCorrespondingInterestPoints( valid );
+					ipl.saveCorrespondingInterestPoints( true );
 				}
 			}
 
-			if ( myIps.size() > 0 )
+			return Collections.singletonList( removed ).iterator();
+		}).reduce( Long::sum );
+	}
+
+	/**
+	 * Saves the interest points (and optionally their intensities) of one view into the interestpoints.n5.
+	 *
+	 * @param basePathURI - the base path of the project
+	 * @param viewId - the view
+	 * @param label - the label of the interest points
+	 * @param points - the points (with consecutive ids)
+	 * @param storeIntensities - if the intensities are saved
+	 * @param fingerprint - the fingerprint of the input (for incremental detection) or null
+	 * @param intensityRange - the intensity range { min, max } that was used for detection (stored as an attribute)
+	 */
+	public static void saveInterestPoints(
+			final URI basePathURI,
+			final ViewId viewId,
+			final String label,
+			final FlatInterestPoints points,
+			final boolean storeIntensities,
+			final String fingerprint,
+			final double[] intensityRange )
+	{
+		System.out.println( "Saving interest point '" + label + "' N5 for " + Group.pvid(viewId) + " ... " );
+
+		final InterestPoints ipl = InterestPoints.newInstance( basePathURI, viewId, label );
+
+		ipl.setInterestPoints( points.toInterestPoints() );
+		ipl.setCorrespondingInterestPoints( new ArrayList< CorrespondingInterestPoints >() );
+
+		ipl.saveInterestPoints( true );
+		ipl.saveCorrespondingInterestPoints( true );
+
+		if ( fingerprint != null || intensityRange != null )
+		{
+			final InterestPointsN5 i = (InterestPointsN5)ipl;
+
+			final N5Writer n5Writer = URITools.instantiateN5Writer( StorageFormat.N5, URITools.toURI( URITools.appendName( i.getBaseDir(), InterestPointsN5.baseN5 ) ) );
+
+			if ( fingerprint != null )
+				n5Writer.setAttribute( i.ipDataset(), FINGERPRINT_KEY, fingerprint );
+
+			if ( intensityRange != null )
+				n5Writer.setAttribute( i.ipDataset(), INTENSITY_RANGE_KEY, intensityRange );
+
+			n5Writer.close();
+		}
+
+		// store image intensities for interest points
+		if ( storeIntensities )
+		{
+			final InterestPointsN5 i = (InterestPointsN5)ipl;
+
+			final N5Writer n5Writer = URITools.instantiateN5Writer( StorageFormat.N5, URITools.toURI( URITools.appendName( i.getBaseDir(), InterestPointsN5.baseN5 ) ) );
+
+			final String datasetIntensities = i.ipDataset() + "/intensities";
+
+			if ( points.size() == 0 )
+			{
+				n5Writer.createDataset(
+						datasetIntensities,
+						new long[] {0},
+						new int[] {1},
+						DataType.FLOAT32,
+						new GzipCompression());
+			}
+			else
 			{
-				// we need to sort and assign new ids since order is assumed when loading corresponding interest points, and we will have duplicate ids otherwise
-				final ArrayList< InterestPoint > myIpsNewId = new ArrayList<>();
+				// 1 x N array (which is a 2D array)
+				final FunctionRandomAccessible< FloatType > intensities =
+						new FunctionRandomAccessible<>(
+								2,
+								(location, value) ->
+								{
+									final int index = location.getIntPosition( 1 );
+									value.set( points.intensity( index ) );
+								},
+								FloatType::new );
+
+				final RandomAccessibleInterval< FloatType > intensityData =
+						Views.interval( intensities, new long[] { 0, 0 }, new long[] { 0, points.size() - 1 } );
+
+				N5Utils.save( intensityData, n5Writer, datasetIntensities, new int[] { 1, InterestPointsN5.defaultBlockSize }, new GzipCompression() );
+			}
 
-				for ( int id = 0; id < myIps.size(); ++id )
-					myIpsNewId.add( new InterestPoint( id, myIps.get( id ).getL() ) );
+			IOFunctions.println( "Saved: " + URITools.appendName( i.getBaseDir(), InterestPointsN5.baseN5 ) + ":/" + datasetIntensities );
 
-				System.out.println( Group.pvid( viewId ) + ": " + myIpsNewId.size() );
+			n5Writer.close();
+		}
+	}
 
-				if ( !maxSpotsPerOverlap && maxSpots > 0 && maxSpots < myIpsNewId.size() )
+	/**
+	 * Combines the points of all blocks of one view: applies maxSpots per overlap (if requested), removes points that
+	 * were found again in another block (closer than combineDistance, using a spatial hash), and applies maxSpots for
+	 * the whole view (if requested).
+	 *
+	 * @param blocks - the results of all blocks of one view (ViewId, interval, points)
+	 * @param overlaps - the overlaps of this view and the transformation into their coordinates, null if not maxSpotsPerOverlap
+	 * @param maxSpots - maximal number of spots (0 or less means no limit)
+	 * @param maxSpotsPerOverlap - apply maxSpots per overlap
+	 * @param maxOverlapSize - the size of the largest overlap (of all views)
+	 * @param overlappingOnly - if blocks of different overlaps might contain the same points
+	 * @param combineDistance - points closer than this are considered the same
+	 * @param storeIntensities - keep the intensities
+	 * @return ViewId, points (with consecutive ids)
+	 */
+	public static Tuple2< int[], FlatInterestPoints > combineBlocks(
+			final List< Tuple3< int[], long[][], FlatInterestPoints > > blocks,
+			final Tuple2< long[][][], double[] > overlaps,
+			final int maxSpots,
+			final boolean maxSpotsPerOverlap,
+			final long maxOverlapSize,
+			final boolean overlappingOnly,
+			final double combineDistance,
+			final boolean storeIntensities )
+	{
+		final int[] serializedViewId = blocks.get( 0 )._1();
+		final boolean needIntensities = storeIntensities || maxSpots > 0;
+
+		// the result must not depend on the order in which Spark grouped the blocks
+		Collections.sort( blocks, (a,b) ->
+		{
+			for ( int d = 0; d < a._2()[ 0 ].length; ++d )
+				if ( a._2()[ 0 ][ d ] != b._2()[ 0 ][ d ] )
+					return Long.compare( a._2()[ 0 ][ d ], b._2()[ 0 ][ d ] );
+			return 0;
+		});
+
+		final int[] blockStart = new int[ blocks.size() + 1 ];
+		for ( int b = 0; b < blocks.size(); ++b )
+			blockStart[ b + 1 ] = blockStart[ b ] + blocks.get( b )._3().size();
+
+		final FlatInterestPoints ips = new FlatInterestPoints( blockStart[ blocks.size() ], needIntensities );
+
+		for ( final Tuple3< int[], long[][], FlatInterestPoints > block : blocks )
+		{
+			final FlatInterestPoints points = block._3();
+
+			for ( int i = 0; i < points.size(); ++i )
+				ips.add( ips.size(), points.x( i ), points.y( i ), points.z( i ), needIntensities ? points.intensity( i ) : 0 );
+		}
+
+		final String name = Group.pvid( Spark.deserializeViewId( serializedViewId ) );
+
+		// we need to filter per overlap before combining
+		final boolean[] keep;
+
+		if ( maxSpotsPerOverlap && maxSpots > 0 && overlaps != null )
+		{
+			// the overlaps are in downsampled coordinates(!), the points are not anymore
+			final AffineTransform3D toDownsampled = new AffineTransform3D();
+			toDownsampled.set( overlaps._2() );
+
+			final List< Interval > overlapIntervals = Arrays.stream( overlaps._1() ).map( Spark::deserializeInterval ).collect( Collectors.toList() );
+
+			keep = filterPointsPerOverlap( ips, overlapIntervals, toDownsampled, maxSpots, maxOverlapSize, name );
+		}
+		else
+		{
+			keep = new boolean[ ips.size() ];
+			Arrays.fill( keep, true );
+		}
+
+		// combine points since overlapping areas might exist, points of the same block are never duplicates
+		final SpatialHash hash = new SpatialHash( combineDistance );
+		final double[] l = new double[ 3 ];
+
+		for ( int b = 0; b < blocks.size(); ++b )
+		{
+			final ArrayList< double[] > accepted = new ArrayList<>();
+
+			for ( int i = blockStart[ b ]; i < blockStart[ b + 1 ]; ++i )
+			{
+				if ( !keep[ i ] )
+					continue;
+
+				if ( overlappingOnly )
 				{
-					filterPoints( myIpsNewId, myIntensities, maxSpots );
-					/*
-					// filter for the brightnest N spots
-					final ArrayList< Pair< Double, InterestPoint > > combinedList = new ArrayList<>();
+					ips.location( i, l );
 
-					for ( int i = 0; i < myIps.size(); ++i )
-						combinedList.add( new ValuePair<Double, InterestPoint>(myIntensities.get( i ), myIpsNewId.get( i )));
+					if ( hash.containsWithin( l, combineDistance ) )
+						keep[ i ] = false;
+					else
+						accepted.add( ips.location( i ) );
+				}
+			}
 
-					// sort from large to small
-					Collections.sort(combinedList, (a,b) -> b.getA().compareTo( a.getA() ) );
+			accepted.forEach( hash::add );
+		}
 
-					myIpsNewId.clear();
-					myIntensities.clear();
+		// we need to assign new ids since order is assumed when loading corresponding interest points, and we will have duplicate ids otherwise
+		FlatInterestPoints myIps = ips.select( keep, true );
 
-					for ( int i = 0; i < maxSpots; ++i )
-					{
-						myIntensities.add( combinedList.get( i ).getA() );
-						myIpsNewId.add( new InterestPoint( i, combinedList.get( i ).getB().getL() ) ); // new id's again ...
-					}
-					*/
-					System.out.println( Group.pvid( viewId ) + " (after applying maxSpots): " + myIpsNewId.size() );
+		System.out.println( name + ": " + myIps.size() );
+
+		if ( !maxSpotsPerOverlap && maxSpots > 0 && maxSpots < myIps.size() )
+		{
+			// the brightest N spots, new id's again ...
+			myIps = myIps.select( myIps.topK( maxSpots ), true );
+			System.out.println( name + " (after applying maxSpots): " + myIps.size() );
+		}
+
+		return new Tuple2<>( serializedViewId, myIps );
+	}
+
+	/**
+	 * Applies maxSpots individually to every overlap of a view, where the limit is scaled by the size of the overlap
+	 * relative to the largest overlap. A point can be part of several overlaps, it is kept if any of them keeps it.
+	 *
+	 * @param ips - all points of a view (with intensities)
+	 * @param overlaps - all overlaps of the view (in downsampled coordinates)
+	 * @param toDownsampled - maps the points into the downsampled coordinates
+	 * @param maxSpots - the number of spots for the largest overlap
+	 * @param maxIntervalSize - the size of the largest overlap
+	 * @param name - for logging
+	 * @return which points are kept
+	 */
+	public static boolean[] filterPointsPerOverlap(
+			final FlatInterestPoints ips,
+			final List< Interval > overlaps,
+			final AffineTransform3D toDownsampled,
+			final int maxSpots,
+			final long maxIntervalSize,
+			final String name )
+	{
+		final int n = ips.size();
+		final boolean[] keep = new boolean[ n ];
+		final boolean[] assigned = new boolean[ n ];
+
+		// the (rounded) pixel location of each point in the downsampled image
+		final long[] pixel = new long[ n * 3 ];
+		final double[] tmp = new double[ 3 ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			ips.location( i, tmp );
+			toDownsampled.apply( tmp, tmp );
+
+			for ( int d = 0; d < 3; ++d )
+				pixel[ i * 3 + d ] = Math.round( tmp[ d ] );
+		}
+
+		final int[] inside = new int[ n ];
+		final float[] insideIntensities = new float[ n ];
+
+		for ( final Interval overlap : overlaps )
+		{
+			int count = 0;
+
+			for ( int i = 0; i < n; ++i )
+			{
+				boolean contains = true;
+
+				for ( int d = 0; d < 3 && contains; ++d )
+					contains = pixel[ i * 3 + d ] >= overlap.min( d ) && pixel[ i * 3 + d ] <= overlap.max( d );
+
+				if ( contains )
+				{
+					assigned[ i ] = true;
+					insideIntensities[ count ] = ips.intensity( i );
+					inside[ count++ ] = i;
 				}
+			}
 
-				interestPoints.put(viewId, myIpsNewId);
+			final int myMaxSpots = (int)Math.round( maxSpots * ( (double)ViewUtil.size( overlap ) /(double)maxIntervalSize ) );
 
-				if ( storeIntensities )
-					intensitiesIPs.put(viewId, myIntensities );
+			if ( myMaxSpots > 0 && myMaxSpots < count )
+			{
+				// the brightest N spots
+				for ( final int j : FlatInterestPoints.topK( insideIntensities, count, myMaxSpots ) )
+					keep[ inside[ j ] ] = true;
+
+				System.out.println( "Filtered interval (limit=" + myMaxSpots + ") " + Util.printInterval( overlap ) + " (" + name + "): " + count + " >>> " + myMaxSpots );
 			}
 			else
 			{
-				System.out.println( Group.pvid( viewId ) + ": no points found." );
+				for ( int j = 0; j < count; ++j )
+					keep[ inside[ j ] ] = true;
+
+				System.out.println( "NOT filtered interval (limit=" + myMaxSpots + ") " + Util.printInterval( overlap ) + " (" + name + "): " + count );
 			}
 		}
 
-		if ( !dryRun )
+		// points that were localized slightly outside of all overlaps
+		for ( int i = 0; i < n; ++i )
+			if ( !assigned[ i ] )
+				keep[ i ] = true;
+
+		return keep;
+	}
+
+	/**
+	 * Everything the driver needs to know about a view to plan the detection,
+	 * computed once per view instead of once per pair of views.
+	 */
+	protected static class ViewMetadata
+	{
+		final Dimensions dim; // full resolution
+		final AffineTransform3D model; // registration
+		final AffineTransform3D mipmapTransform; // maps downsampled image into global coordinate system
+		final Interval downsampledInterval;
+		final Interval globalBoundingBox;
+
+		// the stored image that is (virtually) downsampled for detection, chunkSize is null if it is not stored in chunks
+		final long[] storedDimensions;
+		final int[] storedCellDimensions;
+		final long[] additionalDownsampling;
+		final int[] chunkSize; // the smallest block size (at the scale of detection) that is aligned with the chunks
+		final int level; // the stored mipmap level (0 if the loader has no mipmaps)
+
+		public ViewMetadata( final SpimData2 data, final ViewId viewId, final long[] downsampleFactors )
 		{
-			// save interest points
-			for ( final ViewId viewId : viewIds )
-			{
-				System.out.println( "Saving interest point '" + label + "' N5 for " + Group.pvid(viewId) + " ... " );
-				
-				final InterestPoints ipl = InterestPoints.newInstance( dataGlobal.getBasePathURI(), viewId, label );
-	
-				ipl.setInterestPoints( interestPoints.get( viewId ) );
-				ipl.setCorrespondingInterestPoints( new ArrayList< CorrespondingInterestPoints >() );
-	
-				ipl.saveInterestPoints( true );
-				ipl.saveCorrespondingInterestPoints( true );
-
-				// store image intensities for interest points
-				if ( storeIntensities )
-				{
-					System.out.println( "Retrieving intensities for interest points '" + label + "' for " + Group.pvid(viewId) + " ... " );
+			final ViewDescription vd = data.getSequenceDescription().getViewDescription( viewId );
 
-					final InterestPointsN5 i = (InterestPointsN5)ipl;
+			// only (virtually) opens the image, no pixels are loaded
+			final Pair<RandomAccessibleInterval, AffineTransform3D> input = openAndDownsample(
+					data.getSequenceDescription().getImgLoader(),
+					vd,
+					downsampleFactors,
+					true );
 
-					//final N5FSWriter n5Writer = new N5FSWriter( new File( i.getBaseDir().getAbsolutePath(), InterestPointsN5.baseN5 ).getAbsolutePath() );
-					final N5Writer n5Writer = URITools.instantiateN5Writer( StorageFormat.N5, URITools.toURI( URITools.appendName( i.getBaseDir(), InterestPointsN5.baseN5 ) ) );
+			this.dim = ViewUtil.getDimensions( data, viewId );
+			this.model = ViewUtil.getViewRegistration( data, viewId ).getModel().copy();
+			this.mipmapTransform = input.getB();
+			this.downsampledInterval = new FinalInterval( input.getA() );
 
-					final String datasetIntensities = i.ipDataset() + "/intensities";
+			// +1 to be safe with rounding
+			this.globalBoundingBox = Intervals.expand( Intervals.smallestContainingInterval( model.estimateBounds( new FinalInterval( dim ) ) ), 1 );
 
-					if ( interestPoints.get( viewId ).size() == 0 )
-					{
-						n5Writer.createDataset(
-								datasetIntensities,
-								new long[] {0},
-								new int[] {1},
-								DataType.FLOAT32,
-								new GzipCompression());
-					}
-					else
-					{
-						List<Double> intensitiesList = intensitiesIPs.get( viewId );
-
-						// 1 x N array (which is a 2D array)
-						final FunctionRandomAccessible< FloatType > intensities =
-								new FunctionRandomAccessible<>(
-										2,
-										(location, value) ->
-										{
-											final int index = location.getIntPosition( 1 );
-											value.set( intensitiesList.get( index ).floatValue() );
-										},
-										FloatType::new );
-	
-						final RandomAccessibleInterval< FloatType > intensityData =
-								Views.interval( intensities, new long[] { 0, 0 }, new long[] { 0, intensitiesList.size() - 1 } );
-	
-						N5Utils.save( intensityData, n5Writer, datasetIntensities, new int[] { 1, InterestPointsN5.defaultBlockSize }, new GzipCompression() );
-					}
-	
-					IOFunctions.println( "Saved: " + URITools.appendName( i.getBaseDir(), InterestPointsN5.baseN5 ) + ":/" + datasetIntensities );
-	
-					n5Writer.close();
-				}
+			// the chunks of the stored image (only for multiresolution loaders, where opening is virtual)
+			final BasicImgLoader imgLoader = data.getSequenceDescription().getImgLoader();
+
+			RandomAccessibleInterval< ? > stored = null;
+			int level = 0;
+			this.additionalDownsampling = downsampleFactors.clone();
+
+			if ( MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+			{
+				final MultiResolutionSetupImgLoader< ? > setupImgLoader = ( ( MultiResolutionImgLoader ) imgLoader ).getSetupImgLoader( viewId.getViewSetupId() );
+				final double[][] mipmapResolutions = setupImgLoader.getMipmapResolutions();
+				level = bestLevel( mipmapResolutions, downsampleFactors );
+
+				for ( int d = 0; d < additionalDownsampling.length; ++d )
+					additionalDownsampling[ d ] /= Math.round( mipmapResolutions[ level ][ d ] );
+
+				stored = setupImgLoader.getImage( viewId.getTimePointId(), level );
 			}
 
-			// save XML
-			final String params = "DOG (Spark) s=" + sigma + " t=" + threshold + " overlappingOnly=" + overlappingOnly + " min=" + findMin + " max=" + findMax +
-					" downsampleXY=" + downsampleXY + " downsampleZ=" + downsampleZ + " minIntensity=" + minIntensity + " maxIntensity=" + maxIntensity;
-	
-			InterestPointTools.addInterestPoints( dataGlobal, label, interestPoints, params );
+			this.level = level;
+			this.storedCellDimensions = stored == null ? null : ViewUtil.cellDimensions( stored );
+			this.storedDimensions = stored == null ? null : stored.dimensionsAsLongArray();
 
-			System.out.println( "Saving XML (metadata only) ..." );
-	
-			new XmlIoSpimData2().save( dataGlobal, xmlURI );
+			if ( storedCellDimensions != null )
+			{
+				// a block of c/gcd(c,ds) downsampled pixels covers a whole number of chunks
+				this.chunkSize = new int[ storedCellDimensions.length ];
+				Arrays.setAll( chunkSize, d -> (int)( storedCellDimensions[ d ] / gcd( storedCellDimensions[ d ], additionalDownsampling[ d ] ) ) );
+			}
+			else
+			{
+				this.chunkSize = null;
+			}
 		}
 
-		System.out.println( "Done ..." );
+		/**
+		 * @param interval - interval at the scale of detection
+		 * @return the interval in the stored image
+		 */
+		public Interval toStored( final Interval interval )
+		{
+			final long[] min = new long[ interval.numDimensions() ];
+			final long[] max = new long[ interval.numDimensions() ];
 
-		return null;
+			for ( int d = 0; d < min.length; ++d )
+			{
+				min[ d ] = Math.max( 0, interval.min( d ) * additionalDownsampling[ d ] );
+				max[ d ] = Math.min( storedDimensions[ d ] - 1, ( interval.max( d ) + 1 ) * additionalDownsampling[ d ] - 1 );
+			}
+
+			return new FinalInterval( min, max );
+		}
+
+		/**
+		 * @param interval - interval at the scale of detection
+		 * @return the number of stored voxels that are fetched when reading all chunks touched by the interval
+		 */
+		public long fetchedVoxels( final Interval interval )
+		{
+			final Interval s = toStored( interval );
+
+			long voxels = 1;
+
+			for ( int d = 0; d < s.numDimensions(); ++d )
+			{
+				final long c = storedCellDimensions[ d ];
+				final long first = ( s.min( d ) / c ) * c;
+				final long last = Math.min( storedDimensions[ d ], ( s.max( d ) / c + 1 ) * c );
+
+				voxels *= last - first;
+			}
+
+			return voxels;
+		}
+	}
+
+	protected static long gcd( final long a, final long b )
+	{
+		return b == 0 ? a : gcd( b, a % b );
+	}
+
+	/**
+	 * @param blockSize - the requested block size
+	 * @param chunkSize - the chunk size at the scale of detection
+	 * @return the block size rounded up to a multiple of the chunk size
+	 */
+	public static int[] alignedBlockSize( final int[] blockSize, final int[] chunkSize )
+	{
+		final int[] aligned = new int[ blockSize.length ];
+		Arrays.setAll( aligned, d -> Math.max( 1, ( blockSize[ d ] + chunkSize[ d ] - 1 ) / chunkSize[ d ] ) * chunkSize[ d ] );
+
+		return aligned;
 	}
 
-	public static void filterPoints(
-			final List< InterestPoint > myIps,
-			final List< Double > myIntensities,
-			final int maxSpots )
+	/**
+	 * Creates a grid whose blocks are aligned to multiples of the block size in the coordinates of the image (not the interval),
+	 * the blocks at the border are clipped to the interval.
+	 *
+	 * @param interval - the interval to process
+	 * @param blockSize - the block size
+	 * @return the grid entries like {@link Grid#create(long[], int[])}, i.e. { offset relative to the interval min, size, grid position }
+	 */
+	public static List< long[][] > alignedGrid( final Interval interval, final int[] blockSize )
 	{
-		// filter for the brightnest N spots
-		final ArrayList< Pair< Double, InterestPoint > > combinedList = new ArrayList<>();
+		final int n = interval.numDimensions();
+
+		final long[] firstBlock = new long[ n ];
+		final long[] numBlocks = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			firstBlock[ d ] = Math.floorDiv( interval.min( d ), blockSize[ d ] );
+			numBlocks[ d ] = Math.floorDiv( interval.max( d ), blockSize[ d ] ) - firstBlock[ d ] + 1;
+		}
+
+		final ArrayList< long[][] > grid = new ArrayList<>();
+		final long[] gridPos = new long[ n ];
+
+		final LocalizingIntervalIterator it = new LocalizingIntervalIterator( numBlocks );
+
+		while ( it.hasNext() )
+		{
+			it.fwd();
+			it.localize( gridPos );
+
+			final long[] offset = new long[ n ];
+			final long[] size = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long min = Math.max( interval.min( d ), ( firstBlock[ d ] + gridPos[ d ] ) * blockSize[ d ] );
+				final long max = Math.min( interval.max( d ), ( firstBlock[ d ] + gridPos[ d ] + 1 ) * blockSize[ d ] - 1 );
 
-		for ( int i = 0; i < myIps.size(); ++i )
-			combinedList.add( new ValuePair<Double, InterestPoint>(myIntensities.get( i ), myIps.get( i )));
+				offset[ d ] = min - interval.min( d );
+				size[ d ] = max - min + 1;
+			}
 
-		// sort from large to small
-		Collections.sort(combinedList, (a,b) -> b.getA().compareTo( a.getA() ) );
+			grid.add( new long[][] { offset, size, gridPos.clone() } );
+		}
 
-		myIps.clear();
-		myIntensities.clear();
+		return grid;
+	}
 
-		for ( int i = 0; i < maxSpots; ++i )
+	/**
+	 * @return the best (coarsest) stored level that is not coarser than the requested downsampling
+	 */
+	protected static int bestLevel( final double[][] mipmapResolutions, final long[] downsampleFactors )
+	{
+		final long dsx = downsampleFactors[0];
+		final long dsy = downsampleFactors[1];
+		final long dsz = (downsampleFactors.length > 2) ? downsampleFactors[ 2 ] : 1;
+
+		// without downsampling the full resolution is used
+		if ( dsx <= 1 && dsy <= 1 && dsz <= 1 )
+			return 0;
+
+		int bestLevel = 0;
+		for ( int level = 0; level < mipmapResolutions.length; ++level )
 		{
-			myIntensities.add( combinedList.get( i ).getA() );
-			myIps.add( new InterestPoint( i, combinedList.get( i ).getB().getL() ) ); // new id's again ...
+			double[] factors = mipmapResolutions[ level ];
+
+			// this fails if factors are not ints
+			final int fx = (int)Math.round( factors[ 0 ] );
+			final int fy = (int)Math.round( factors[ 1 ] );
+			final int fz = (int)Math.round( factors[ 2 ] );
+
+			if ( fx <= dsx && fy <= dsy && fz <= dsz && contains( fx, ds ) && contains( fy, ds ) && contains( fz, ds ) )
+				bestLevel = level;
 		}
+
+		return bestLevel;
 	}
 
 	// TODO: this has been pushed up to the multiview-reconstruction code, use new version
@@ -858,19 +1958,7 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 
 			double[][] mipmapResolutions = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getMipmapResolutions();
 
-			int bestLevel = 0;
-			for ( int level = 0; level < mipmapResolutions.length; ++level )
-			{
-				double[] factors = mipmapResolutions[ level ];
-				
-				// this fails if factors are not ints
-				final int fx = (int)Math.round( factors[ 0 ] );
-				final int fy = (int)Math.round( factors[ 1 ] );
-				final int fz = (int)Math.round( factors[ 2 ] );
-				
-				if ( fx <= dsx && fy <= dsy && fz <= dsz && contains( fx, ds ) && contains( fy, ds ) && contains( fz, ds ) )
-					bestLevel = level;
-			}
+			final int bestLevel = bestLevel( mipmapResolutions, new long[] { dsx, dsy, dsz } );
 
 			final int fx = (int)Math.round( mipmapResolutions[ bestLevel ][ 0 ] );
 			final int fy = (int)Math.round( mipmapResolutions[ bestLevel ][ 1 ] );
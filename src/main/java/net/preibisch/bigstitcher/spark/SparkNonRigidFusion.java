@@ -34,6 +34,7 @@ import org.apache.hadoop.fs.StorageType;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.GzipCompression;
@@ -60,11 +61,11 @@ import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.preibisch.bigstitcher.spark.SparkAffineFusion.DataTypeFusion;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractSelectableViews;
+import net.preibisch.bigstitcher.spark.fusion.NonRigidViewIndex;
 import net.preibisch.bigstitcher.spark.util.BDVSparkInstantiateViewSetup;
 import net.preibisch.bigstitcher.spark.util.Import;
 import net.preibisch.bigstitcher.spark.util.N5Util;
 import net.preibisch.bigstitcher.spark.util.Spark;
-import net.preibisch.bigstitcher.spark.util.ViewUtil;
 import net.preibisch.mvrecon.fiji.plugin.fusion.FusionGUI.FusionType;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
@@ -123,6 +124,9 @@ public class SparkNonRigidFusion extends AbstractSelectableViews implements Call
 	@Option(names = { "--maxIntensity" }, description = "max intensity for scaling values to the desired range (required for UINT8 and UINT16), e.g. 2048.0")
 	private Double maxIntensity = null;
 
+	@Option(names = { "--nonRigidMargin" }, description = "margin (in pixels) around each view that is considered for non-rigid overlaps if no corresponding interest points are available for this view, otherwise it is estimated from the residuals of the corresponding interest points (default: 50)")
+	private long defaultMargin = 50;
+
 	URI n5PathURI = null, xmlOutURI = null;
 
 	@Override
@@ -227,7 +231,10 @@ public class SparkNonRigidFusion extends AbstractSelectableViews implements Call
 			range = ( this.maxIntensity - this.minIntensity ) / 65535.0;
 		else
 			range = 0;
-		final int[][] serializedViewIds = Spark.serializeViewIds(viewIdsGlobal);
+
+		// compute the bounding boxes and non-rigid margins of all views only once
+		System.out.println( "Estimating non-rigid margins from corresponding interest points ... " );
+		final NonRigidViewIndex viewIndexGlobal = NonRigidViewIndex.create( dataGlobal, viewIdsGlobal, labels, defaultMargin );
 
 		try
 		{
@@ -311,14 +318,14 @@ public class SparkNonRigidFusion extends AbstractSelectableViews implements Call
 		final JavaSparkContext sc = new JavaSparkContext(conf);
 		sc.setLogLevel("ERROR");
 
+		final Broadcast< NonRigidViewIndex > viewIndex = sc.broadcast( viewIndexGlobal );
+
 		final JavaRDD<long[][]> rdd = sc.parallelize( grid );
 
 		final long time = System.currentTimeMillis();
 
 		rdd.foreach(
 				gridBlock -> {
-					final SpimData2 dataLocal = Spark.getSparkJobSpimData2( xmlURI );
-
 					// be smarter, test which ViewIds are actually needed for the block we want to fuse
 					final Interval fusedBlock =
 							Intervals.translate(
@@ -327,50 +334,20 @@ public class SparkNonRigidFusion extends AbstractSelectableViews implements Call
 											gridBlock[0] ), // block offset
 									min ); // min of the randomaccessbileinterval
 
-					// recover views to process
-					final List< ViewId > viewsToFuse = new ArrayList<>(); // fuse
-					final List< ViewId > allViews = new ArrayList<>();
-
-					for ( int i = 0; i < serializedViewIds.length; ++i )
-					{
-						final ViewId viewId = Spark.deserializeViewIds(serializedViewIds, i);
-
-						// expand by 50 to be conservative for non-rigid overlaps
-						final Interval boundingBox = ViewUtil.getTransformedBoundingBox( dataLocal, viewId );
-						final Interval bounds = Intervals.expand( boundingBox, 50 );
-						// TODO: estimate the "50" from the distance of corresponding, transformed interest points
-
-						if ( ViewUtil.overlaps( fusedBlock, bounds ) )
-							viewsToFuse.add( viewId );
-
-						allViews.add( viewId );
-					}
+					// recover views to process using the precomputed spatial index
+					final NonRigidViewIndex index = viewIndex.value();
+					final int[] fuse = index.viewsToFuse( fusedBlock );
 
 					// nothing to save...
-					if ( viewsToFuse.size() == 0 )
+					if ( fuse.length == 0 )
 						return;
 
 					// test with which views the viewsToFuse overlap
 					// TODO: use the actual interest point correspondences maybe (i.e. change in mvr)
-					final List< ViewId > viewsToUse = new ArrayList<>(); // used to compute the non-rigid transform
+					final List< ViewId > viewsToFuse = index.viewIds( fuse ); // fuse
+					final List< ViewId > viewsToUse = index.viewIds( index.viewsToUse( fuse ) ); // used to compute the non-rigid transform
 
-					for ( final ViewId viewId : allViews )
-					{
-						final Interval boundingBoxView = ViewUtil.getTransformedBoundingBox( dataLocal, viewId );
-						final Interval boundsView = Intervals.expand( boundingBoxView, 25 );
-
-						for ( final ViewId fusedId : viewsToFuse )
-						{
-							final Interval boundingBoxFused = ViewUtil.getTransformedBoundingBox( dataLocal, fusedId );
-							final Interval boundsFused = Intervals.expand( boundingBoxFused, 25 );
-							
-							if ( ViewUtil.overlaps( boundsView, boundsFused ))
-							{
-								viewsToUse.add( viewId );
-								break;
-							}
-						}
-					}
+					final SpimData2 dataLocal = Spark.getSparkJobSpimData2( xmlURI );
 
 					final double downsampling = Double.NaN;
 					final double ds = 1.0;
@@ -43,6 +43,7 @@ import mpicbg.spim.data.sequence.Illumination;
 import mpicbg.spim.data.sequence.Tile;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Interval;
 import net.imglib2.RealInterval;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -50,6 +51,8 @@ import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractSelectableViews;
+import net.preibisch.bigstitcher.spark.util.MipmapTools;
+import net.preibisch.bigstitcher.spark.util.PairPartitioner;
 import net.preibisch.bigstitcher.spark.util.Spark;
 import net.preibisch.bigstitcher.spark.util.Spark.SerializablePairwiseStitchingResult;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
@@ -75,6 +78,14 @@ public class SparkPairwiseStitching extends AbstractSelectableViews
 	@Option(names = { "-ds", "--downsampling" }, required = false, description = "Define the downsampling at which the stitching should be performed, e.g. -ds 4,4,1 (default: 2,2,1)")
 	private String downsampling = "2,2,1";
 
+	@Option(names = { "--writeMissingLevel" }, description = "if the downsampling for stitching is not stored, write it once as a new mipmap level into the BDV-N5 (in a distributed stage) "
+			+ "instead of downsampling virtually in every task; the N5 needs to be writable (default: false)")
+	protected boolean writeMissingLevel = false;
+
+	@Option(names = { "--pairPartitions" }, description = "number of Spark partitions the pairs are distributed into by location (recursive bisection balanced by overlap volume), "
+			+ "so pairs sharing views are computed together; 0 distributes the pairs arbitrarily (default: Spark default parallelism)")
+	protected Integer pairPartitions = null;
+
 	@Option(names = { "-p", "--peaksToCheck" }, description = "number of peaks in phase correlation image to check with cross-correlation (default: 5)")
 	protected int peaksToCheck = 5;
 
@@ -167,7 +178,34 @@ public class SparkPairwiseStitching extends AbstractSelectableViews
 		final JavaSparkContext sc = new JavaSparkContext(conf);
 		sc.setLogLevel("ERROR");
 
-		final JavaRDD<int[][][]> rdd = sc.parallelize( Spark.serializeGroupedViewIdPairsForRDD( groupedPairs ) );
+		// write the mipmap level for stitching once if it is missing, the tasks then load it instead of downsampling virtually
+		if ( writeMissingLevel && !dryRun )
+			MipmapTools.writeMissingLevels( sc, dataGlobal, MipmapTools.findMissingLevels( dataGlobal, viewIdsGlobal, ds ), ds );
+
+		final int numPartitions = ( pairPartitions == null ) ? sc.defaultParallelism() : pairPartitions;
+		final JavaRDD<int[][][]> rdd;
+
+		if ( numPartitions > 0 )
+		{
+			// pairs that are close in space share views, keep them in the same partition
+			final List< double[] > positions = new ArrayList<>();
+			final double[] costs = new double[ groupedPairs.size() ];
+
+			for ( int i = 0; i < groupedPairs.size(); ++i )
+			{
+				final Interval bbA = PairPartitioner.boundingBox( dataGlobal, groupedPairs.get( i ).getA().getViews() );
+				final Interval bbB = PairPartitioner.boundingBox( dataGlobal, groupedPairs.get( i ).getB().getViews() );
+
+				positions.add( PairPartitioner.position( bbA, bbB ) );
+				costs[ i ] = PairPartitioner.overlapVolume( bbA, bbB );
+			}
+
+			rdd = PairPartitioner.parallelize( sc, Spark.serializeGroupedViewIdPairsForRDD( groupedPairs ), positions, costs, numPartitions );
+		}
+		else
+		{
+			rdd = sc.parallelize( Spark.serializeGroupedViewIdPairsForRDD( groupedPairs ) );
+		}
 
 		final JavaRDD<Tuple2<int[][][], Spark.SerializablePairwiseStitchingResult>> rddResults = rdd.map( serializedGroupPair ->
 		{
@@ -26,6 +26,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
@@ -34,6 +35,7 @@ import java.util.stream.Collectors;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
 import org.bigdataviewer.n5.N5CloudImageLoader;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataType;
@@ -49,12 +51,14 @@ import net.preibisch.bigstitcher.spark.CreateFusionContainer.Compressions;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractBasic;
 import net.preibisch.bigstitcher.spark.util.Import;
 import net.preibisch.bigstitcher.spark.util.N5Util;
+import net.preibisch.bigstitcher.spark.util.ResaveTools;
 import net.preibisch.bigstitcher.spark.util.Spark;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.fiji.plugin.resave.Resave_HDF5;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.imgloaders.AllenOMEZarrLoader;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.mvrecon.process.n5api.N5ApiTools;
 import net.preibisch.mvrecon.process.n5api.N5ApiTools.MultiResolutionLevelInfo;
 import picocli.CommandLine;
@@ -103,6 +107,15 @@ public class SparkResaveN5 extends AbstractBasic implements Callable<Void>, Seri
 	@Option(names = { "-o", "--n5Path" }, description = "N5/OME-ZARR path for saving, (default: 'folder of the xml'/dataset.n5 or e.g. s3://myBucket/data.n5)")
 	private String n5PathURIString = null;
 
+	@Option(names = { "--backgroundThreshold" }, description = "do not write storage blocks whose maximal intensity is at or below this threshold (or that are all zero), readers treat missing blocks as zero; only supported for UINT8, UINT16 and FLOAT32 (default: write all blocks)")
+	private Double backgroundThreshold = null;
+
+	@Option(names = { "--resume" }, description = "resume an interrupted resave into the same container that was also started with --resume or --verify; only compute blocks that are not recorded as complete in the manifest and downsampling levels that were not completed are written, compute blocks whose storage blocks were removed since are written again, requires the same blockSize, blockScale, compression, downsampling and backgroundThreshold (default: false)")
+	private boolean resume = false;
+
+	@Option(names = { "--verify" }, description = "after resaving, re-read all written blocks and compare their checksums against the manifest and the source data; compute blocks that do not match are removed from the manifest so they are rewritten by --resume (default: false)")
+	private boolean verify = false;
+
 	@Override
 	public Void call() throws Exception
 	{
@@ -234,6 +247,60 @@ public class SparkResaveN5 extends AbstractBasic implements Callable<Void>, Seri
 		System.out.println( "Created BDV-metadata, took " + (System.currentTimeMillis() - time ) + " ms." );
 		System.out.println( "Number of compute blocks = " + gridS0.size() );
 
+		// the levels that are fully contained in a compute block are computed in memory while resaving s0 (per ViewSetup since it depends on the datatype)
+		final HashMap< Integer, Integer > inMemoryLevels = new HashMap<>();
+		dataTypes.forEach( (setupId, dataType) -> inMemoryLevels.put( setupId, ResaveTools.numInMemoryLevels( blockScale, downsamplings, dataType ) ) );
+
+		System.out.println( "Last level computed in memory together with s0 (per ViewSetup): " + inMemoryLevels );
+
+		// with --resume or --verify, every completely written compute block is recorded in a manifest (together with its checksums)
+		final boolean useManifest = resume || verify;
+		final String compressionString = this.compression + ":" + ( compressionLevel == null ? "default" : compressionLevel );
+		final HashSet< Integer > completedLevels;
+		final List< long[][] > gridS0ToWrite;
+
+		if ( resume )
+		{
+			final String mismatch = ResaveTools.checkParameters( n5Writer, blockSize, blockScale, compressionString, downsamplings, backgroundThreshold );
+
+			if ( mismatch != null )
+				throw new IllegalArgumentException( "Cannot resume, the existing blocks were written with different parameters (" + mismatch + "). Please re-run without --resume." );
+
+			ResaveTools.writeParameters( n5Writer, blockSize, blockScale, compressionString, downsamplings, backgroundThreshold );
+
+			completedLevels = ResaveTools.readCompletedLevels( n5Writer );
+			// a compute block is only skipped if its storage blocks still exist (they might have been deleted in the meantime)
+			gridS0ToWrite = gridS0.parallelStream().filter( gridBlock ->
+					!ResaveTools.isComplete( n5Writer, !useN5, viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) ), gridBlock ) ).collect( Collectors.toList() );
+
+			// downsampling levels depend on s0, which is not complete
+			if ( gridS0ToWrite.size() > 0 )
+				completedLevels.clear();
+
+			System.out.println( "Resuming: " + ( gridS0.size() - gridS0ToWrite.size() ) + " of " + gridS0.size() + " compute blocks are complete, completed downsampling levels: " + completedLevels );
+		}
+		else
+		{
+			if ( n5Writer.exists( ResaveTools.manifestGroup ) )
+				n5Writer.remove( ResaveTools.manifestGroup );
+
+			if ( useManifest )
+				ResaveTools.writeParameters( n5Writer, blockSize, blockScale, compressionString, downsamplings, backgroundThreshold );
+
+			completedLevels = new HashSet<>();
+			gridS0ToWrite = gridS0;
+		}
+
+		final Double threshold = backgroundThreshold;
+
+		if ( threshold != null )
+		{
+			final List< Integer > unsupported = dataTypes.entrySet().stream().filter( e -> !ResaveTools.isSupported( e.getValue() ) ).map( e -> e.getKey() ).collect( Collectors.toList() );
+
+			if ( unsupported.size() > 0 )
+				System.out.println( "WARNING: --backgroundThreshold is only supported for UINT8, UINT16 and FLOAT32, all blocks will be written for ViewSetups: " + unsupported );
+		}
+
 		final SparkConf conf = new SparkConf().setAppName("SparkResaveN5");
 
 		if ( localSparkBindAddress )
@@ -247,40 +314,101 @@ public class SparkResaveN5 extends AbstractBasic implements Callable<Void>, Seri
 		//
 		time = System.currentTimeMillis();
 
-		final JavaRDD<long[][]> rdds0 = sc.parallelize( gridS0 );
+		final LongAccumulator skippedBlocks = sc.sc().longAccumulator( "skipped background blocks" );
 
-		rdds0.foreach(
-				gridBlock ->
-				{
-					final SpimData2 dataLocal = Spark.getSparkJobSpimData2(xmlURI);
-					final N5Writer n5Lcl = URITools.instantiateN5Writer( useN5 ? StorageFormat.N5 : StorageFormat.ZARR, n5PathURI );
+		// all blocks of a task belong to the same view (source file) and are processed in z-order
+		final ArrayList< ArrayList< long[][] > > tasksS0 = ResaveTools.groupByViewInZOrder( gridS0ToWrite, blockScale, sc.defaultParallelism() * 4 );
 
-					N5ApiTools.resaveS0Block(
-							dataLocal,
-							n5Lcl,
-							useN5 ? StorageFormat.N5 : StorageFormat.ZARR,
-							dataTypes.get( N5ApiTools.gridBlockToViewId( gridBlock ).getViewSetupId() ),
-							N5ApiTools.gridToDatasetBdv( 0, useN5 ? StorageFormat.N5 : StorageFormat.ZARR ), // a function mapping the gridblock to the dataset name for level 0 and N5
-							gridBlock );
+		System.out.println( "Number of s0 tasks (grouped by view) = " + tasksS0.size() );
 
-					n5Lcl.close();
-				});
+		if ( tasksS0.size() > 0 )
+		{
+			final JavaRDD< ArrayList< long[][] > > rdds0 = sc.parallelize( tasksS0, tasksS0.size() );
 
-		System.out.println( "Resaved " + (useN5 ? "N5 s0" : "OME-ZARR 0") + "-level, took: " + (System.currentTimeMillis() - time ) + " ms." );
+			rdds0.foreach(
+					blocks ->
+					{
+						// re-use the data instance and its open readers across tasks of this executor
+						final SpimData2 dataLocal = Spark.borrowSparkJobSpimData2( xmlURI );
+						final N5Writer n5Lcl = URITools.instantiateN5Writer( useN5 ? StorageFormat.N5 : StorageFormat.ZARR, n5PathURI );
+
+						for ( final long[][] gridBlock : blocks )
+						{
+							final ViewId viewId = N5ApiTools.gridBlockToViewId( gridBlock );
+							final int lastLevel = inMemoryLevels.get( viewId.getViewSetupId() );
+							final long[] checksums;
+							final boolean verifiable = ResaveTools.isSupported( dataTypes.get( viewId.getViewSetupId() ) );
+
+							// skipping background blocks requires writing s0 ourselves
+							if ( lastLevel > 0 || ( threshold != null && verifiable ) )
+							{
+								checksums = ResaveTools.resaveS0BlockWithPyramid(
+										dataLocal,
+										n5Lcl,
+										!useN5, // OME-ZARR is 5d
+										viewIdToMrInfo.get( viewId ),
+										lastLevel,
+										gridBlock,
+										threshold,
+										skippedBlocks );
+							}
+							else
+							{
+								N5ApiTools.resaveS0Block(
+										dataLocal,
+										n5Lcl,
+										useN5 ? StorageFormat.N5 : StorageFormat.ZARR,
+										dataTypes.get( viewId.getViewSetupId() ),
+										N5ApiTools.gridToDatasetBdv( 0, useN5 ? StorageFormat.N5 : StorageFormat.ZARR ), // a function mapping the gridblock to the dataset name for level 0 and N5
+										gridBlock );
+
+								// reads the source block again, only worth it if it is compared later
+								if ( verify && verifiable )
+									checksums = new long[] { ResaveTools.sourceChecksum( dataLocal, viewIdToMrInfo.get( viewId ), gridBlock, null ) };
+								else
+									checksums = new long[ 0 ];
+							}
+
+							// only now the compute block is complete
+							if ( useManifest )
+								ResaveTools.writeManifest( n5Lcl, gridBlock, checksums, ResaveTools.countStoredBlocks( n5Lcl, !useN5, viewIdToMrInfo.get( viewId ), gridBlock ) );
+						}
+
+						n5Lcl.close();
+
+						Spark.releaseSparkJobSpimData2( xmlURI, dataLocal );
+					});
+		}
+
+		System.out.println( "Resaved " + (useN5 ? "N5 s0" : "OME-ZARR 0") + "-level (and levels computed in memory), took: " + (System.currentTimeMillis() - time ) + " ms." );
 
 		//
-		// Save remaining downsampling levels (s1 ... sN)
+		// Save remaining downsampling levels (s1 ... sN) that were not computed in memory
 		//
 		for ( int level = 1; level < downsamplings.length; ++level )
 		{
 			final int s = level;
 
+			if ( completedLevels.contains( s ) )
+			{
+				IOFunctions.println( "Downsampling level " + (useN5 ? "s" : "") + s + " was already completed, skipping." );
+				continue;
+			}
+
 			final List<long[][]> allBlocks =
-					viewIdsGlobal.stream().map( viewId ->
+					viewIdsGlobal.stream()
+						.filter( viewId -> s > inMemoryLevels.get( viewId.getViewSetupId() ) )
+						.map( viewId ->
 							N5ApiTools.assembleJobs(
 									viewId,
 									viewIdToMrInfo.get(viewId)[s] )).flatMap(List::stream).collect( Collectors.toList() );
 
+			if ( allBlocks.size() == 0 )
+			{
+				IOFunctions.println( "Downsampling level " + (useN5 ? "s" : "") + s + " was computed in memory for all views." );
+				continue;
+			}
+
 			IOFunctions.println( "Downsampling level " + (useN5 ? "s" : "") + s + "... " );
 			IOFunctions.println( "Number of compute blocks: " + allBlocks.size() );
 
@@ -292,8 +420,21 @@ public class SparkResaveN5 extends AbstractBasic implements Callable<Void>, Seri
 					gridBlock ->
 					{
 						final N5Writer n5Lcl = URITools.instantiateN5Writer( useN5 ? StorageFormat.N5 : StorageFormat.ZARR, n5PathURI );
+						final MultiResolutionLevelInfo mrInfo = viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ s ];
 
-						if ( useN5 )
+						if ( threshold != null && ResaveTools.canWriteDownsampledBlock( mrInfo ) )
+						{
+							// same rule as for s0, background blocks are not written
+							ResaveTools.writeDownsampledBlock(
+									n5Lcl,
+									!useN5,
+									mrInfo,
+									viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ s - 1 ],
+									gridBlock,
+									threshold,
+									skippedBlocks );
+						}
+						else if ( useN5 )
 						{
 							N5ApiTools.writeDownsampledBlock(
 									n5Lcl,
@@ -316,8 +457,69 @@ public class SparkResaveN5 extends AbstractBasic implements Callable<Void>, Seri
 					});
 
 			System.out.println( "Resaved " + (useN5 ? "N5 s" : "OME-ZARR ") + s + " level, took: " + (System.currentTimeMillis() - timeS ) + " ms." );
+
+			completedLevels.add( s );
+
+			if ( useManifest )
+				ResaveTools.writeCompletedLevels( n5Writer, completedLevels );
+		}
+
+		if ( verify )
+		{
+			final long timeV = System.currentTimeMillis();
+
+			IOFunctions.println( "Verifying all compute blocks ... " );
+
+			final ArrayList< ArrayList< long[][] > > tasksVerify = ResaveTools.groupByViewInZOrder( gridS0, blockScale, sc.defaultParallelism() * 4 );
+
+			final List< ArrayList< long[][] > > mismatches = sc.parallelize( tasksVerify, tasksVerify.size() ).map(
+					blocks ->
+					{
+						final SpimData2 dataLocal = Spark.borrowSparkJobSpimData2( xmlURI );
+						final N5Writer n5Lcl = URITools.instantiateN5Writer( useN5 ? StorageFormat.N5 : StorageFormat.ZARR, n5PathURI );
+
+						final ArrayList< long[][] > failedLocal = new ArrayList<>();
+
+						for ( final long[][] gridBlock : blocks )
+						{
+							final ViewId viewId = N5ApiTools.gridBlockToViewId( gridBlock );
+
+							if ( !ResaveTools.verifyBlock( dataLocal, n5Lcl, !useN5, viewIdToMrInfo.get( viewId ), gridBlock, threshold ) )
+							{
+								System.out.println( "Verification failed for compute block " + Arrays.toString( gridBlock[ 0 ] ) + " of view " + Group.pvid( viewId ) );
+								failedLocal.add( gridBlock );
+							}
+						}
+
+						n5Lcl.close();
+
+						Spark.releaseSparkJobSpimData2( xmlURI, dataLocal );
+
+						return failedLocal;
+					}).collect();
+
+			final List< long[][] > failed = mismatches.stream().flatMap( List::stream ).collect( Collectors.toList() );
+
+			IOFunctions.println( "Verified " + gridS0.size() + " compute blocks, " + failed.size() + " failed, took: " + (System.currentTimeMillis() - timeV ) + " ms." );
+
+			if ( failed.size() > 0 )
+			{
+				// make sure they are rewritten by --resume
+				failed.forEach( gridBlock -> n5Writer.remove( ResaveTools.manifestPath( gridBlock ) ) );
+				ResaveTools.writeCompletedLevels( n5Writer, new ArrayList<>() );
+
+				sc.close();
+				n5Writer.close();
+
+				System.out.println( "Verification failed, NOT saving the XML. Please re-run with --resume to rewrite the failed compute blocks." );
+
+				return null;
+			}
 		}
 
+		if ( threshold != null )
+			System.out.println( "Skipped " + skippedBlocks.value() + " background storage blocks (threshold=" + threshold + ")." );
+
 		sc.close();
 
 		System.out.println( "resaved successfully." );
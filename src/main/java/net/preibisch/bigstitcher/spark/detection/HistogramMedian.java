@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.detection;
+
+import java.util.Arrays;
+
+/**
+ * Constant-time 2d median filter with a square kernel (Perreault &amp; H&eacute;bert, "Median Filtering in Constant Time", 2007).
+ * The image is quantized into 2^14 bins (exact for integer images with a smaller range), every column keeps a histogram
+ * that slides down the image and the kernel histogram is a two-tier (coarse/fine) histogram whose fine levels are only
+ * updated when they are needed.
+ *
+ * An instance holds all buffers for images up to the given size and is not thread-safe, use one per thread
+ * (see {@link #forThread(int, int)}).
+ */
+public class HistogramMedian
+{
+	final static int COARSE = 128;
+	final static int FINE = 128;
+	final static int BINS = COARSE * FINE;
+
+	// the column histograms alone are width * 32 KB, so every thread keeps its instance
+	private static final ThreadLocal< HistogramMedian > perThread = new ThreadLocal<>();
+
+	final int maxWidth, maxHeight;
+
+	// the quantized image
+	final char[] q;
+
+	// the histograms of each column (fine and coarse)
+	final short[] columnFine, columnCoarse;
+
+	// the histogram of the kernel (fine and coarse), and up to which column each fine level is up-to-date
+	final int[] kernelFine, kernelCoarse, upToDate;
+
+	/**
+	 * @param maxWidth - the maximal width of an image (including the radius on both sides)
+	 * @param maxHeight - the maximal height of an image (including the radius on both sides)
+	 */
+	public HistogramMedian( final int maxWidth, final int maxHeight )
+	{
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+
+		this.q = new char[ maxWidth * maxHeight ];
+		this.columnFine = new short[ maxWidth * BINS ];
+		this.columnCoarse = new short[ maxWidth * COARSE ];
+		this.kernelFine = new int[ BINS ];
+		this.kernelCoarse = new int[ COARSE ];
+		this.upToDate = new int[ COARSE ];
+	}
+
+	/**
+	 * @param width - the width of the images that will be filtered
+	 * @param height - the height of the images that will be filtered
+	 * @return the instance of the calling thread, it is only re-allocated if it is too small
+	 */
+	public static HistogramMedian forThread( final int width, final int height )
+	{
+		HistogramMedian median = perThread.get();
+
+		if ( median == null || median.maxWidth < width || median.maxHeight < height )
+		{
+			median = median == null ?
+					new HistogramMedian( width, height ) :
+					new HistogramMedian( Math.max( width, median.maxWidth ), Math.max( height, median.maxHeight ) );
+
+			perThread.set( median );
+		}
+
+		return median;
+	}
+
+	/**
+	 * Computes the median for all pixels that are at least radius away from the border, i.e. the input needs to
+	 * contain the radius as a halo on all sides. Nothing is allocated.
+	 *
+	 * @param in - the input image (width * height)
+	 * @param width - width of the input
+	 * @param height - height of the input
+	 * @param radius - the radius of the square kernel (size 2*radius+1)
+	 * @param out - the median image ((width - 2*radius) * (height - 2*radius))
+	 */
+	public void median( final float[] in, final int width, final int height, final int radius, final float[] out )
+	{
+		if ( width > maxWidth || height > maxHeight )
+			throw new IllegalArgumentException( "Image of size " + width + "x" + height + " is bigger than the buffers (" + maxWidth + "x" + maxHeight + ")." );
+
+		if ( 2 * radius + 1 > Short.MAX_VALUE )
+			throw new IllegalArgumentException( "Radius " + radius + " is too big." );
+
+		final int n = width * height;
+		final int outWidth = width - 2 * radius;
+		final int outHeight = height - 2 * radius;
+
+		if ( outWidth <= 0 || outHeight <= 0 )
+			return;
+
+		// quantize, integer images with a small range are represented exactly
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		boolean integer = true;
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final float v = in[ i ];
+
+			if ( v < min ) min = v;
+			if ( v > max ) max = v;
+			if ( integer && v != (float)Math.rint( v ) ) integer = false;
+		}
+
+		if ( max == min )
+		{
+			Arrays.fill( out, 0, outWidth * outHeight, min );
+			return;
+		}
+
+		final double scale = integer && max - min < BINS ? 1.0 : ( BINS - 1 ) / ( (double)max - min );
+
+		for ( int i = 0; i < n; ++i )
+			q[ i ] = (char)Math.round( ( in[ i ] - min ) * scale );
+
+		final int size = 2 * radius + 1;
+		final int rank = ( size * size ) / 2;
+
+		// the column histograms contain rows 0 ... 2*radius-1, the first output row adds row 2*radius
+		Arrays.fill( columnFine, 0, width * BINS, (short)0 );
+		Arrays.fill( columnCoarse, 0, width * COARSE, (short)0 );
+
+		for ( int y = 0; y < size - 1; ++y )
+			for ( int x = 0; x < width; ++x )
+				addToColumn( x, q[ y * width + x ], 1 );
+
+		for ( int y = radius; y < height - radius; ++y )
+		{
+			// slide the column histograms down
+			for ( int x = 0; x < width; ++x )
+			{
+				addToColumn( x, q[ ( y + radius ) * width + x ], 1 );
+
+				if ( y - radius - 1 >= 0 )
+					addToColumn( x, q[ ( y - radius - 1 ) * width + x ], -1 );
+			}
+
+			// start a new kernel at the beginning of the row, containing columns 0 ... 2*radius-1 (coarse only)
+			Arrays.fill( kernelCoarse, 0 );
+			Arrays.fill( upToDate, 0 );
+
+			for ( int x = 0; x < size - 1; ++x )
+				for ( int k = 0; k < COARSE; ++k )
+					kernelCoarse[ k ] += columnCoarse[ x * COARSE + k ];
+
+			for ( int x = radius; x < width - radius; ++x )
+			{
+				// slide the coarse kernel histogram to the right
+				final int add = ( x + radius ) * COARSE;
+				for ( int k = 0; k < COARSE; ++k )
+					kernelCoarse[ k ] += columnCoarse[ add + k ];
+
+				if ( x - radius - 1 >= 0 )
+				{
+					final int sub = ( x - radius - 1 ) * COARSE;
+					for ( int k = 0; k < COARSE; ++k )
+						kernelCoarse[ k ] -= columnCoarse[ sub + k ];
+				}
+
+				// find the coarse level of the median
+				int sum = 0;
+				int k = 0;
+
+				while ( sum + kernelCoarse[ k ] <= rank )
+					sum += kernelCoarse[ k++ ];
+
+				// bring the fine level up-to-date and find the median in it
+				updateFine( k, x, radius );
+
+				int b = k * FINE;
+
+				while ( sum + kernelFine[ b ] <= rank )
+					sum += kernelFine[ b++ ];
+
+				out[ ( y - radius ) * outWidth + x - radius ] = (float)( min + b / scale );
+			}
+		}
+	}
+
+	protected void addToColumn( final int x, final char bin, final int value )
+	{
+		columnFine[ x * BINS + bin ] += value;
+		columnCoarse[ x * COARSE + bin / FINE ] += value;
+	}
+
+	/**
+	 * Makes the fine level k of the kernel histogram contain exactly the columns x-radius ... x+radius, either
+	 * incrementally from where it was last updated or from scratch if that was too long ago.
+	 */
+	protected void updateFine( final int k, final int x, final int radius )
+	{
+		final int from = x - radius;
+		final int to = x + radius;
+		final int offset = k * FINE;
+
+		if ( upToDate[ k ] <= from )
+		{
+			Arrays.fill( kernelFine, offset, offset + FINE, 0 );
+
+			for ( int j = from; j <= to; ++j )
+			{
+				final int c = j * BINS + offset;
+				for ( int b = 0; b < FINE; ++b )
+					kernelFine[ offset + b ] += columnFine[ c + b ];
+			}
+		}
+		else
+		{
+			for ( int j = upToDate[ k ]; j <= to; ++j )
+			{
+				final int c = j * BINS + offset;
+				final int s = ( j - 2 * radius - 1 ) * BINS + offset;
+
+				for ( int b = 0; b < FINE; ++b )
+					kernelFine[ offset + b ] += columnFine[ c + b ] - columnFine[ s + b ];
+			}
+		}
+
+		upToDate[ k ] = to + 1;
+	}
+}
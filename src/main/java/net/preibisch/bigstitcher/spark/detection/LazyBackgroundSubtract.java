@@ -22,39 +22,53 @@
 package net.preibisch.bigstitcher.spark.detection;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import ij.ImageJ;
-import ij.plugin.filter.RankFilters;
-import ij.process.FloatProcessor;
-import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
+import net.preibisch.bigstitcher.spark.util.SharedThreadPool;
 import net.preibisch.legacy.io.IOFunctions;
 import util.Lazy;
 
+/**
+ * Lazily divides every z-slice of an image by its median filtered version (square kernel of radius radiusXY),
+ * using a constant-time histogram median ({@link HistogramMedian}). Slices are processed in parallel and, optionally,
+ * the median is computed on an image downsampled in XY and linearly interpolated, which is much faster for big radii.
+ */
 public class LazyBackgroundSubtract<T extends RealType<T> & NativeType<T>> implements Consumer<RandomAccessibleInterval<FloatType>>
 {
+	private static final SharedThreadPool sliceThreads = new SharedThreadPool( "median" );
+
 	final private int radiusXY;
 	final long[] globalMin;
 	final private RandomAccessible<T> source;
 	final int n;
+	final int numThreads;
+	final int downsampling;
 
 	public LazyBackgroundSubtract(
 			final long[] min,
 			RandomAccessible<T> source,
-			final int radiusXY )
+			final int radiusXY,
+			final int numThreads,
+			final int downsampling )
 	{
 		while ( source.numDimensions() < 3 )
 			source = Views.addDimension( source );
@@ -66,6 +80,16 @@ public class LazyBackgroundSubtract<T extends RealType<T> & NativeType<T>> imple
 		this.globalMin = min;
 		this.radiusXY = radiusXY;
 		this.n = 3;
+		this.numThreads = Math.max( 1, numThreads );
+		this.downsampling = Math.max( 1, downsampling );
+	}
+
+	public LazyBackgroundSubtract(
+			final long[] min,
+			final RandomAccessible<T> source,
+			final int radiusXY )
+	{
+		this( min, source, radiusXY, 1, 1 );
 	}
 
 	// Note: the output RAI typically sits at 0,0...0 because it usually is a CachedCellImage
@@ -75,67 +99,189 @@ public class LazyBackgroundSubtract<T extends RealType<T> & NativeType<T>> imple
 	{
 		final RandomAccessibleInterval<FloatType> output = Views.translate( outputZeroMin, globalMin );
 
-		// copy each slice to a FloatProcessor, size + kernelradius * 2
+		// each slice is read including the kernel radius
 		final Interval iterateInterval = Intervals.expand( output, new long[] { radiusXY, radiusXY, 0 } );
-		final FloatProcessor fp = new FloatProcessor( (int)iterateInterval.dimension( 0 ), (int)iterateInterval.dimension( 1 ) );
-		final float[] pixelsMedian = (float[])fp.getPixels();
-		final float[] pixels = new float[ pixelsMedian.length ];
-
-		// just a wrapper around the arrays
-		final Img<FloatType> imgMedian = ArrayImgs.floats( pixelsMedian, iterateInterval.dimension( 0 ), iterateInterval.dimension( 1 ) );
-		final Img<FloatType> img = ArrayImgs.floats( pixels, iterateInterval.dimension( 0 ), iterateInterval.dimension( 1 ) );
-
-		// the interval in the FloatProcessor to copy into the output
-		final Interval cropInterval = Intervals.translate( new FinalInterval( output.dimension( 0 ), output.dimension( 1 ) ), new long[] { radiusXY, radiusXY } );
-		final RandomAccessibleInterval< FloatType > imgMedianCrop = Views.interval( imgMedian, cropInterval );
-		final RandomAccessibleInterval< FloatType > imgCrop = Views.interval( img, cropInterval );
-
-		/*
-		// init single-threaded
-		final RankFilters rf;
-		synchronized ( this )
+		final int numSlices = (int)iterateInterval.dimension( 2 );
+
+		final AtomicInteger nextSlice = new AtomicInteger( 0 );
+
+		// every thread processes slices until none are left, all buffers are only allocated once per thread
+		final Callable< Void > worker = () ->
+		{
+			final SliceProcessor slice = new SliceProcessor( iterateInterval, output );
+
+			for ( int z = nextSlice.getAndIncrement(); z < numSlices; z = nextSlice.getAndIncrement() )
+				slice.process( iterateInterval.min( 2 ) + z );
+
+			return null;
+		};
+
+		final int threads = Math.min( numThreads, numSlices );
+
+		try
 		{
-			final int numThreads = Prefs.getThreads();
-			Prefs.setThreads( 1 );
-			rf = new RankFilters();
-			Prefs.setThreads( numThreads );
-			rf.setNPasses( 0 ); // suppress progress bar
+			// cells are computed by many threads (e.g. of the DoG) at the same time, so they share one pool; the calling
+			// thread works as well, so every cell makes progress even if all threads of the pool are busy
+			final ArrayList< Future< Void > > futures = new ArrayList<>();
+
+			if ( threads > 1 )
+			{
+				final ExecutorService service = sliceThreads.get( numThreads );
+
+				for ( int t = 1; t < threads; ++t )
+					futures.add( service.submit( worker ) );
+			}
+
+			worker.call();
+
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "Failed to compute the median filter for " + Util.printInterval( output ) + ": " + e, e );
 		}
-		*/
-		final RankFilters rf = new RankFilters();
-		rf.setNPasses( 0 ); // suppress progress bar
+	}
 
-		// for each z slice do
-		for ( long z = iterateInterval.min( 2 ); z <= iterateInterval.max( 2 ); ++z )
+	/**
+	 * The buffers and the median filter for processing one slice at a time.
+	 */
+	protected class SliceProcessor
+	{
+		final int w, h, ow, oh;
+		final long minX, minY;
+
+		final RandomAccess< T > in;
+		final RandomAccess< FloatType > out;
+
+		final float[] pixels, median;
+		final HistogramMedian histogramMedian;
+
+		// for the approximate (downsampled) median, null otherwise
+		final float[] pixelsDS;
+		final int f, wDS, hDS, radiusDS;
+
+		public SliceProcessor( final Interval iterateInterval, final RandomAccessibleInterval<FloatType> output )
 		{
-			int i = 0;
-			for ( final T t : Views.flatIterable( Views.hyperSlice( Views.interval( source, iterateInterval ), 2, z ) ) )
-				pixelsMedian[ i ] = pixels[ i++ ] = t.getRealFloat();
+			this.w = (int)iterateInterval.dimension( 0 );
+			this.h = (int)iterateInterval.dimension( 1 );
+			this.ow = (int)output.dimension( 0 );
+			this.oh = (int)output.dimension( 1 );
+			this.minX = iterateInterval.min( 0 );
+			this.minY = iterateInterval.min( 1 );
 
-			// run median
-			rf.rank(fp, radiusXY, RankFilters.MEDIAN );
+			this.in = source.randomAccess( iterateInterval );
+			this.out = output.randomAccess();
 
-			//ImageJFunctions.show( imgMedian );
-			//ImageJFunctions.show( img );
+			this.pixels = new float[ w * h ];
 
-			// subtract only the center
-			final Cursor< FloatType > out = Views.flatIterable( Views.hyperSlice( output, 2, z ) ).cursor();
-			final Cursor< FloatType > median = Views.flatIterable( imgMedianCrop ).cursor();
-			final Cursor< FloatType > image = Views.flatIterable( imgCrop ).cursor();
+			final int radius = Math.max( 1, Math.round( (float)radiusXY / downsampling ) );
 
-			while ( out.hasNext() )
+			// the downsampled image needs to be bigger than the kernel, otherwise compute the median exactly
+			if ( downsampling > 1 && w / downsampling > 2 * radius && h / downsampling > 2 * radius )
+			{
+				this.f = downsampling;
+				this.wDS = w / f;
+				this.hDS = h / f;
+				this.radiusDS = radius;
+				this.pixelsDS = new float[ wDS * hDS ];
+				this.median = new float[ ( wDS - 2 * radiusDS ) * ( hDS - 2 * radiusDS ) ];
+				this.histogramMedian = HistogramMedian.forThread( wDS, hDS );
+			}
+			else
 			{
-				final float m = median.next().get();
-				final float v = image.next().get();
+				this.f = 1;
+				this.wDS = this.hDS = this.radiusDS = 0;
+				this.pixelsDS = null;
+				this.median = new float[ ow * oh ];
+				this.histogramMedian = HistogramMedian.forThread( w, h );
+			}
+		}
+
+		public void process( final long z )
+		{
+			// copy the slice including the kernel radius
+			in.setPosition( z, 2 );
+
+			for ( int y = 0, i = 0; y < h; ++y )
+			{
+				in.setPosition( minY + y, 1 );
+				in.setPosition( minX, 0 );
 
-				if ( m > 0 )
-					out.next().setReal( v / m );
-				else
-					out.next().setReal( 0 );
+				for ( int x = 0; x < w; ++x, in.fwd( 0 ) )
+					pixels[ i++ ] = in.get().getRealFloat();
 			}
 
-			//ImageJFunctions.show( output );
-			//SimpleMultiThreading.threadHaltUnClean();
+			if ( pixelsDS == null )
+				histogramMedian.median( pixels, w, h, radiusXY, median );
+			else
+				medianDownsampled();
+
+			// divide the center by the median
+			out.setPosition( z, 2 );
+
+			for ( int y = 0; y < oh; ++y )
+			{
+				out.setPosition( minY + radiusXY + y, 1 );
+				out.setPosition( minX + radiusXY, 0 );
+
+				for ( int x = 0; x < ow; ++x, out.fwd( 0 ) )
+				{
+					final float m = pixelsDS == null ? median[ y * ow + x ] : interpolatedMedian( x + radiusXY, y + radiusXY );
+					final float v = pixels[ ( y + radiusXY ) * w + x + radiusXY ];
+
+					if ( m > 0 )
+						out.get().setReal( v / m );
+					else
+						out.get().setReal( 0 );
+				}
+			}
+		}
+
+		protected void medianDownsampled()
+		{
+			// average f x f pixels
+			final float norm = 1.0f / ( f * f );
+
+			for ( int yd = 0; yd < hDS; ++yd )
+				for ( int xd = 0; xd < wDS; ++xd )
+				{
+					float sum = 0;
+
+					for ( int y = yd * f; y < yd * f + f; ++y )
+						for ( int x = xd * f; x < xd * f + f; ++x )
+							sum += pixels[ y * w + x ];
+
+					pixelsDS[ yd * wDS + xd ] = sum * norm;
+				}
+
+			histogramMedian.median( pixelsDS, wDS, hDS, radiusDS, median );
+		}
+
+		/**
+		 * @return the linearly interpolated downsampled median at the full-resolution slice coordinate x,y
+		 */
+		protected float interpolatedMedian( final int x, final int y )
+		{
+			final int mw = wDS - 2 * radiusDS;
+			final int mh = hDS - 2 * radiusDS;
+
+			// pixel centers of the downsampled image are at (i + 0.5) * f - 0.5
+			final float px = Math.max( 0, Math.min( mw - 1, ( x + 0.5f ) / f - 0.5f - radiusDS ) );
+			final float py = Math.max( 0, Math.min( mh - 1, ( y + 0.5f ) / f - 0.5f - radiusDS ) );
+
+			final int x0 = (int)px;
+			final int y0 = (int)py;
+			final int x1 = Math.min( x0 + 1, mw - 1 );
+			final int y1 = Math.min( y0 + 1, mh - 1 );
+
+			final float dx = px - x0;
+			final float dy = py - y0;
+
+			final float top = median[ y0 * mw + x0 ] * ( 1 - dx ) + median[ y0 * mw + x1 ] * dx;
+			final float bottom = median[ y1 * mw + x0 ] * ( 1 - dx ) + median[ y1 * mw + x1 ] * dx;
+
+			return top * ( 1 - dy ) + bottom * dy;
 		}
 	}
 
@@ -144,6 +290,26 @@ public class LazyBackgroundSubtract<T extends RealType<T> & NativeType<T>> imple
 			final Interval processingInterval,
 			final int radiusXY,
 			final int[] blockSize )
+	{
+		return init( input, processingInterval, radiusXY, blockSize, 1, 1 );
+	}
+
+	/**
+	 * @param input - the image (extended, the kernel radius is read outside of the processing interval)
+	 * @param processingInterval - the interval to compute
+	 * @param radiusXY - radius of the median filter
+	 * @param blockSize - the size of the lazily computed blocks
+	 * @param numThreads - how many threads process the slices of each block
+	 * @param downsampling - compute the median on an image downsampled in XY by this factor and interpolate it (1 means exact)
+	 * @return the lazy background-corrected image
+	 */
+	public static final <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<FloatType> init(
+			final RandomAccessible< T > input,
+			final Interval processingInterval,
+			final int radiusXY,
+			final int[] blockSize,
+			final int numThreads,
+			final int downsampling )
 	{
 		final long[] min = processingInterval.minAsLongArray();
 
@@ -151,7 +317,9 @@ public class LazyBackgroundSubtract<T extends RealType<T> & NativeType<T>> imple
 				new LazyBackgroundSubtract<>(
 						min,
 						input,
-						radiusXY );
+						radiusXY,
+						numThreads,
+						downsampling );
 
 		final RandomAccessibleInterval<FloatType> bg =
 				Views.translate(
@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.fusion;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.LinAlgHelpers;
+import net.imglib2.util.ValuePair;
+import net.preibisch.bigstitcher.spark.util.IntervalIndex;
+import net.preibisch.bigstitcher.spark.util.Spark;
+import net.preibisch.bigstitcher.spark.util.ViewUtil;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoints;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPointLists;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Precomputed, serializable lookup of which views are needed to fuse a block non-rigidly.
+ * The transformed bounding box of every view is computed once (on the driver), expanded
+ * by a per-view margin that covers the non-rigid deformation, and put into a spatial index.
+ */
+public class NonRigidViewIndex implements Serializable
+{
+	private static final long serialVersionUID = 6113624407880427436L;
+
+	final int[][] serializedViewIds;
+	final IntervalIndex expandedBounds;
+
+	public NonRigidViewIndex( final List< ViewId > viewIds, final List< Interval > boundingBoxes, final long[] margins )
+	{
+		this.serializedViewIds = Spark.serializeViewIds( viewIds );
+
+		final ArrayList< Interval > expanded = new ArrayList<>();
+
+		for ( int i = 0; i < viewIds.size(); ++i )
+			expanded.add( Intervals.expand( boundingBoxes.get( i ), margins[ i ] ) );
+
+		this.expandedBounds = new IntervalIndex( expanded );
+	}
+
+	/**
+	 * @param fusedBlock - the block to fuse in world coordinates
+	 * @return indices of all views that (including their non-rigid margin) overlap the block
+	 */
+	public int[] viewsToFuse( final Interval fusedBlock )
+	{
+		return expandedBounds.overlapping( fusedBlock );
+	}
+
+	/**
+	 * @param viewsToFuse - indices of the views that will be fused
+	 * @return indices of all views that (including their margins) overlap any of the views to fuse, i.e. are needed to compute the non-rigid transformations
+	 */
+	public int[] viewsToUse( final int[] viewsToFuse )
+	{
+		final BitSet used = new BitSet( serializedViewIds.length );
+
+		for ( final int i : viewsToFuse )
+			for ( final int j : expandedBounds.overlapping( expandedBounds.get( i ) ) )
+				used.set( j );
+
+		return used.stream().toArray();
+	}
+
+	public ViewId viewId( final int i ) { return Spark.deserializeViewIds( serializedViewIds, i ); }
+
+	public List< ViewId > viewIds( final int[] indices )
+	{
+		final ArrayList< ViewId > viewIds = new ArrayList<>();
+
+		for ( final int i : indices )
+			viewIds.add( viewId( i ) );
+
+		return viewIds;
+	}
+
+	/**
+	 * Computes the transformed bounding boxes of all views once and estimates a margin per view
+	 * from the residuals of the corresponding interest points, which is the maximal distance that
+	 * a point of this view is moved by the non-rigid transformation.
+	 *
+	 * @param data - the SpimData2 containing registrations and interest points
+	 * @param viewIds - all views that might be fused
+	 * @param labels - the interest point labels used for the non-rigid fusion
+	 * @param defaultMargin - the margin used for views without any correspondences
+	 * @return the index
+	 */
+	public static NonRigidViewIndex create(
+			final SpimData2 data,
+			final List< ViewId > viewIds,
+			final List< String > labels,
+			final long defaultMargin )
+	{
+		final ArrayList< Interval > boundingBoxes = new ArrayList<>();
+		final HashMap< ViewId, AffineTransform3D > models = new HashMap<>();
+
+		for ( final ViewId viewId : viewIds )
+		{
+			boundingBoxes.add( ViewUtil.getTransformedBoundingBox( data, viewId ) );
+			models.put( viewId, ViewUtil.getViewRegistration( data, viewId ).getModel() );
+		}
+
+		// load all interest points (in parallel)
+		final Map< String, List< InterestPoint > > points = new ConcurrentHashMap<>();
+
+		final ArrayList< ValuePair< ViewId, String > > toLoad = new ArrayList<>();
+		for ( final ViewId viewId : viewIds )
+			for ( final String label : labels )
+				toLoad.add( new ValuePair<>( viewId, label ) );
+
+		toLoad.parallelStream().forEach( key ->
+		{
+			final InterestPoints ipl = getInterestPoints( data, key.getA(), key.getB() );
+
+			if ( ipl != null )
+				points.put( key( key.getA(), key.getB() ), ipl.getInterestPointsCopy() );
+		});
+
+		final long[] margins = new long[ viewIds.size() ];
+
+		for ( int i = 0; i < viewIds.size(); ++i )
+		{
+			final ViewId viewId = viewIds.get( i );
+			final AffineTransform3D model = models.get( viewId );
+
+			final double[] p = new double[ 3 ];
+			final double[] q = new double[ 3 ];
+			double maxResidual = -1;
+
+			for ( final String label : labels )
+			{
+				final InterestPoints ipl = getInterestPoints( data, viewId, label );
+
+				if ( ipl == null )
+					continue;
+
+				final List< InterestPoint > ipsA = points.get( key( viewId, label ) );
+
+				for ( final CorrespondingInterestPoints c : ipl.getCorrespondingInterestPointsCopy() )
+				{
+					final AffineTransform3D modelB = models.get( c.getCorrespondingViewId() );
+					final List< InterestPoint > ipsB = points.get( key( c.getCorrespondingViewId(), c.getCorrespodingLabel() ) );
+
+					// the corresponding view is not part of the fusion
+					if ( modelB == null || ipsB == null )
+						continue;
+
+					model.apply( ipsA.get( c.getDetectionId() ).getL(), p );
+					modelB.apply( ipsB.get( c.getCorrespondingDetectionId() ).getL(), q );
+
+					maxResidual = Math.max( maxResidual, LinAlgHelpers.distance( p, q ) );
+				}
+			}
+
+			if ( maxResidual < 0 )
+			{
+				margins[ i ] = defaultMargin;
+				System.out.println( Group.pvid( viewId ) + ": no correspondences, using default non-rigid margin of " + defaultMargin + " px." );
+			}
+			else
+			{
+				// +1 to be conservative with rounding
+				margins[ i ] = (long)Math.ceil( maxResidual ) + 1;
+				System.out.println( Group.pvid( viewId ) + ": max residual of corresponding points " + String.format( "%.2f", maxResidual ) + " px, non-rigid margin = " + margins[ i ] + " px." );
+			}
+		}
+
+		return new NonRigidViewIndex( viewIds, boundingBoxes, margins );
+	}
+
+	protected static String key( final ViewId viewId, final String label )
+	{
+		return viewId.getTimePointId() + "_" + viewId.getViewSetupId() + "_" + label;
+	}
+
+	protected static InterestPoints getInterestPoints( final SpimData2 data, final ViewId viewId, final String label )
+	{
+		final ViewInterestPointLists vipl = data.getViewInterestPoints().getViewInterestPointLists( viewId );
+
+		if ( vipl == null )
+			return null;
+
+		return vipl.getInterestPointList( label );
+	}
+}
@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.PointMatch;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSACParameters;
+
+/**
+ * RANSAC whose number of iterations adapts to the best inlier ratio found so far: after k iterations with inlier ratio w,
+ * the probability that no all-inlier sample of size n was drawn is (1 - w^n)^k, so it stops as soon as this is below
+ * 1 - confidence. The given maximal number of iterations is an upper bound.
+ */
+public class AdaptiveRansac
+{
+	/**
+	 * Filters the candidates of a matcher with the RANSAC parameters of the matcher. With a confidence the iterations
+	 * adapt to the inlier ratio (at most rp.getNumIterations()), without it all iterations are run as in
+	 * {@link Model#filterRansac(List, Collection, int, double, double, int)}.
+	 *
+	 * @param model - the model, contains the result if successful
+	 * @param candidates - the candidate matches
+	 * @param inliers - filled with the inliers (empty if fewer than minInlierFactor * minNumMatches were found)
+	 * @param rp - the RANSAC parameters
+	 * @param confidence - the probability of having drawn at least one all-inlier sample, e.g. 0.999, or 0 to run all iterations
+	 * @return the number of iterations that were run
+	 */
+	public static < P extends PointMatch > int filter(
+			final Model< ? > model,
+			final List< P > candidates,
+			final Collection< P > inliers,
+			final RANSACParameters rp,
+			final double confidence )
+	{
+		final int minNumInliers = (int)Math.round( rp.getMinInlierFactor() * model.getMinNumMatches() );
+		int iterations;
+
+		if ( confidence > 0 )
+		{
+			iterations = filter( model, candidates, inliers, rp.getNumIterations(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), minNumInliers, confidence );
+		}
+		else
+		{
+			iterations = rp.getNumIterations();
+
+			try
+			{
+				if ( !model.filterRansac( candidates, inliers, rp.getNumIterations(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), minNumInliers ) )
+					inliers.clear();
+			}
+			catch ( NotEnoughDataPointsException e )
+			{
+				iterations = 0;
+				inliers.clear();
+			}
+		}
+
+		if ( inliers.size() < minNumInliers )
+			inliers.clear();
+
+		return iterations;
+	}
+
+	/**
+	 * Finds the largest consensus set, refines it by refitting and stores the final model in model.
+	 *
+	 * @param model - the model, contains the result if successful
+	 * @param candidates - the candidate matches
+	 * @param inliers - filled with the inliers (empty if unsuccessful)
+	 * @param maxIterations - the maximal number of iterations
+	 * @param epsilon - the maximal distance of an inlier
+	 * @param minInlierRatio - the minimal ratio of inliers
+	 * @param minNumInliers - the minimal number of inliers
+	 * @param confidence - the probability of having drawn at least one all-inlier sample, e.g. 0.999
+	 * @return the number of iterations that were run
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static < P extends PointMatch > int filter(
+			final Model< ? > model,
+			final List< P > candidates,
+			final Collection< P > inliers,
+			final int maxIterations,
+			final double epsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final double confidence )
+	{
+		inliers.clear();
+
+		final int n = model.getMinNumMatches();
+
+		if ( candidates.size() < Math.max( n, minNumInliers ) )
+			return 0;
+
+		// fixed seed, so results are reproducible
+		final Random rnd = new Random( 3434795 );
+		final Model sampleModel = model.copy();
+		final ArrayList< P > sample = new ArrayList<>( n );
+		final HashSet< Integer > sampled = new HashSet<>();
+
+		ArrayList< P > best = new ArrayList<>();
+		int iterations = maxIterations;
+		int i = 0;
+
+		for ( ; i < iterations; ++i )
+		{
+			sample.clear();
+			sampled.clear();
+
+			while ( sample.size() < n )
+			{
+				final int s = rnd.nextInt( candidates.size() );
+
+				if ( sampled.add( s ) )
+					sample.add( candidates.get( s ) );
+			}
+
+			try
+			{
+				sampleModel.fit( sample );
+			}
+			catch ( Exception e )
+			{
+				continue;
+			}
+
+			final ArrayList< P > consensus = consensus( sampleModel, candidates, epsilon );
+
+			if ( consensus.size() > best.size() )
+			{
+				best = consensus;
+
+				final double w = (double)best.size() / candidates.size();
+				final double noAllInlierSample = 1.0 - Math.pow( w, n );
+
+				if ( noAllInlierSample <= 0 )
+					iterations = i + 1;
+				else
+					iterations = (int)Math.min( maxIterations, Math.ceil( Math.log( 1.0 - confidence ) / Math.log( noAllInlierSample ) ) );
+			}
+		}
+
+		if ( best.size() < minNumInliers || (double)best.size() / candidates.size() < minInlierRatio )
+			return i;
+
+		// refit on the consensus set until it does not change anymore
+		try
+		{
+			for ( int r = 0; r < 10; ++r )
+			{
+				model.fit( best );
+
+				final ArrayList< P > refined = consensus( (Model)model, candidates, epsilon );
+
+				if ( refined.size() < minNumInliers )
+					return i;
+
+				if ( refined.equals( best ) )
+					break;
+
+				best = refined;
+			}
+
+			model.fit( best );
+		}
+		catch ( Exception e )
+		{
+			return i;
+		}
+
+		inliers.addAll( best );
+
+		return i;
+	}
+
+	protected static < P extends PointMatch > ArrayList< P > consensus( final Model< ? > model, final List< P > candidates, final double epsilon )
+	{
+		final ArrayList< P > consensus = new ArrayList<>();
+
+		for ( final P pm : candidates )
+		{
+			pm.apply( model );
+
+			if ( pm.getDistance() < epsilon )
+				consensus.add( pm );
+		}
+
+		return consensus;
+	}
+}
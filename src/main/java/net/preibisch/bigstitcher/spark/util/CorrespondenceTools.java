@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
+import scala.Tuple2;
+import scala.Tuple3;
+
+/**
+ * Assembles the corresponding interest points of each view and label from the pairwise matching results.
+ */
+public class CorrespondenceTools
+{
+	/**
+	 * Splits the result of one pair into an entry for each side, side B gets the ids swapped.
+	 *
+	 * @param ids - the ids of all corresponding points as (idA0, idB0, idA1, idB1, ...)
+	 * @param vA - view A
+	 * @param labelA - label of view A
+	 * @param vB - view B
+	 * @param labelB - label of view B
+	 * @return key: (timepoint, setup, label) of a view, value: (corresponding label, [corresponding timepoint, corresponding setup, id, corresponding id, ...])
+	 */
+	public static List< Tuple2< Tuple3< Integer, Integer, String >, Tuple2< String, int[] > > > perView(
+			final int[] ids,
+			final ViewId vA,
+			final String labelA,
+			final ViewId vB,
+			final String labelB )
+	{
+		final int[] corrA = new int[ ids.length + 2 ];
+		final int[] corrB = new int[ ids.length + 2 ];
+
+		corrA[ 0 ] = vB.getTimePointId();
+		corrA[ 1 ] = vB.getViewSetupId();
+		corrB[ 0 ] = vA.getTimePointId();
+		corrB[ 1 ] = vA.getViewSetupId();
+
+		for ( int i = 0; i < ids.length; i += 2 )
+		{
+			corrA[ i + 2 ] = ids[ i ];
+			corrA[ i + 3 ] = ids[ i + 1 ];
+			corrB[ i + 2 ] = ids[ i + 1 ];
+			corrB[ i + 3 ] = ids[ i ];
+		}
+
+		final ArrayList< Tuple2< Tuple3< Integer, Integer, String >, Tuple2< String, int[] > > > perView = new ArrayList<>();
+
+		perView.add( new Tuple2<>( key( vA, labelA ), new Tuple2<>( labelB, corrA ) ) );
+		perView.add( new Tuple2<>( key( vB, labelB ), new Tuple2<>( labelA, corrB ) ) );
+
+		return perView;
+	}
+
+	/**
+	 * @param viewId - the view
+	 * @param label - the label
+	 * @return an entry without correspondences, so the view and label is written even if it gets no new ones
+	 */
+	public static Tuple2< Tuple3< Integer, Integer, String >, Tuple2< String, int[] > > empty( final ViewId viewId, final String label )
+	{
+		return new Tuple2<>( key( viewId, label ), new Tuple2<>( label, new int[ 0 ] ) );
+	}
+
+	public static Tuple3< Integer, Integer, String > key( final ViewId viewId, final String label )
+	{
+		return new Tuple3<>( viewId.getTimePointId(), viewId.getViewSetupId(), label );
+	}
+
+	/**
+	 * Merges the new correspondences of a view and label (as created by perView and empty) with the existing ones.
+	 *
+	 * @param entries - all entries of one view and label
+	 * @param existing - the correspondences that are stored already, only queried when appending
+	 * @param clearCorrespondences - replace the existing correspondences (also if there are no new ones) instead of appending
+	 * @return the correspondences to save, or null if nothing changes
+	 */
+	public static List< CorrespondingInterestPoints > merge(
+			final Iterable< Tuple2< String, int[] > > entries,
+			final Supplier< List< CorrespondingInterestPoints > > existing,
+			final boolean clearCorrespondences )
+	{
+		final ArrayList< CorrespondingInterestPoints > correspondences = new ArrayList<>();
+
+		for ( final Tuple2< String, int[] > corr : entries )
+		{
+			final int[] ids = corr._2();
+
+			if ( ids.length < 2 )
+				continue;
+
+			final ViewId correspondingViewId = new ViewId( ids[ 0 ], ids[ 1 ] );
+
+			for ( int i = 2; i < ids.length; i += 2 )
+				correspondences.add( new CorrespondingInterestPoints( ids[ i ], correspondingViewId, corr._1(), ids[ i + 1 ] ) );
+		}
+
+		if ( clearCorrespondences )
+			return correspondences;
+
+		// nothing changes for this view and label
+		if ( correspondences.size() == 0 )
+			return null;
+
+		correspondences.addAll( 0, existing.get() );
+
+		return correspondences;
+	}
+}
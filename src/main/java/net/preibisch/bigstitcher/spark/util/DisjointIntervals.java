@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Decomposes the union of (possibly overlapping) intervals into disjoint intervals, so that every
+ * pixel of the union is covered exactly once.
+ */
+public class DisjointIntervals
+{
+	/**
+	 * The union is computed on the grid that is spanned by all interval boundaries (coordinate compression),
+	 * the covered grid cells are then greedily merged into as large boxes as possible (first along x, then y, ...).
+	 *
+	 * @param intervals - the input intervals (all with the same dimensionality)
+	 * @return disjoint intervals that cover exactly the union of the input intervals
+	 */
+	public static ArrayList< Interval > union( final List< ? extends Interval > intervals )
+	{
+		final ArrayList< Interval > result = new ArrayList<>();
+
+		if ( intervals.size() == 0 )
+			return result;
+
+		if ( intervals.size() == 1 )
+		{
+			result.add( new FinalInterval( intervals.get( 0 ) ) );
+			return result;
+		}
+
+		final int n = intervals.get( 0 ).numDimensions();
+
+		// all boundaries [min, max+1) per dimension
+		final long[][] bounds = new long[ n ][];
+		final int[] numCells = new int[ n ];
+		int totalCells = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final TreeSet< Long > b = new TreeSet<>();
+
+			for ( final Interval interval : intervals )
+			{
+				b.add( interval.min( d ) );
+				b.add( interval.max( d ) + 1 );
+			}
+
+			bounds[ d ] = b.stream().mapToLong( Long::longValue ).toArray();
+			numCells[ d ] = bounds[ d ].length - 1;
+			totalCells *= numCells[ d ];
+		}
+
+		// mark all covered cells
+		final boolean[] covered = new boolean[ totalCells ];
+		final int[] cellMin = new int[ n ];
+		final int[] cellMax = new int[ n ];
+
+		for ( final Interval interval : intervals )
+		{
+			for ( int d = 0; d < n; ++d )
+			{
+				cellMin[ d ] = Arrays.binarySearch( bounds[ d ], interval.min( d ) );
+				cellMax[ d ] = Arrays.binarySearch( bounds[ d ], interval.max( d ) + 1 ) - 1;
+			}
+
+			forEachCell( cellMin, cellMax, numCells, c -> covered[ c ] = true );
+		}
+
+		// greedily merge the covered cells into boxes
+		final int[] pos = new int[ n ];
+
+		for ( int c = 0; c < totalCells; ++c )
+		{
+			if ( !covered[ c ] )
+				continue;
+
+			index2pos( c, numCells, pos );
+
+			System.arraycopy( pos, 0, cellMin, 0, n );
+			System.arraycopy( pos, 0, cellMax, 0, n );
+
+			// grow the box one dimension after the other as long as the next slab is completely covered
+			for ( int d = 0; d < n; ++d )
+			{
+				while ( cellMax[ d ] + 1 < numCells[ d ] )
+				{
+					final int[] slabMin = cellMin.clone();
+					final int[] slabMax = cellMax.clone();
+					slabMin[ d ] = slabMax[ d ] = cellMax[ d ] + 1;
+
+					final boolean[] complete = new boolean[] { true };
+					forEachCell( slabMin, slabMax, numCells, i -> complete[ 0 ] &= covered[ i ] );
+
+					if ( !complete[ 0 ] )
+						break;
+
+					++cellMax[ d ];
+				}
+			}
+
+			// these cells are done
+			forEachCell( cellMin, cellMax, numCells, i -> covered[ i ] = false );
+
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = bounds[ d ][ cellMin[ d ] ];
+				max[ d ] = bounds[ d ][ cellMax[ d ] + 1 ] - 1;
+			}
+
+			result.add( new FinalInterval( min, max ) );
+		}
+
+		return result;
+	}
+
+	protected static void index2pos( int index, final int[] numCells, final int[] pos )
+	{
+		for ( int d = 0; d < numCells.length; ++d )
+		{
+			pos[ d ] = index % numCells[ d ];
+			index /= numCells[ d ];
+		}
+	}
+
+	protected static void forEachCell( final int[] cellMin, final int[] cellMax, final int[] numCells, final CellConsumer consumer )
+	{
+		final int n = cellMin.length;
+
+		for ( int d = 0; d < n; ++d )
+			if ( cellMax[ d ] < cellMin[ d ] )
+				return;
+
+		final int[] pos = cellMin.clone();
+
+		while ( true )
+		{
+			int index = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				index = index * numCells[ d ] + pos[ d ];
+
+			consumer.accept( index );
+
+			int d = 0;
+			for ( ; d < n; ++d )
+			{
+				if ( ++pos[ d ] <= cellMax[ d ] )
+					break;
+				pos[ d ] = cellMin[ d ];
+			}
+
+			if ( d == n )
+				return;
+		}
+	}
+
+	@FunctionalInterface
+	protected interface CellConsumer
+	{
+		void accept( int cell );
+	}
+}
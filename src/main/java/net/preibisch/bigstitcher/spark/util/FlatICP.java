@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import org.apache.spark.util.LongAccumulator;
+
+import mpicbg.models.Model;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Iterative closest point on flat coordinate arrays: the KD-tree over the target points is built once per pair and
+ * every iteration only transforms the source points in place, queries the tree and refits the model. All PointMatch
+ * objects are created once and updated in place, so the iterations do not allocate per point.
+ */
+public class FlatICP
+{
+	/**
+	 * @param source - the points of view A (world coordinates)
+	 * @param target - the points of view B (world coordinates)
+	 * @param model - the model that maps A onto B (should be identity initially), contains the result
+	 * @param maxDistance - the maximal distance of corresponding points
+	 * @param maxIterations - the maximal number of iterations
+	 * @param useRANSAC - filter the correspondences with RANSAC in every iteration
+	 * @param ransacIterations - RANSAC iterations
+	 * @param ransacMaxEpsilon - RANSAC max error
+	 * @param ransacMinInlierRatio - RANSAC min inlier ratio
+	 * @param ransacConfidence - if positive, the number of RANSAC iterations adapts to the inlier ratio (see {@link AdaptiveRansac}), otherwise all iterations are run
+	 * @param minNumMatches - the minimal number of corresponding points
+	 * @param ransacIterationsUsed - counts the RANSAC iterations of all ICP iterations (can be null)
+	 * @param name - for logging
+	 * @return the ids of the corresponding points (idA0, idB0, idA1, idB1, ...), empty if ICP failed
+	 */
+	public static int[] align(
+			final FlatInterestPoints source,
+			final FlatInterestPoints target,
+			final Model< ? > model,
+			final double maxDistance,
+			final int maxIterations,
+			final boolean useRANSAC,
+			final int ransacIterations,
+			final double ransacMaxEpsilon,
+			final double ransacMinInlierRatio,
+			final double ransacConfidence,
+			final int minNumMatches,
+			final LongAccumulator ransacIterationsUsed,
+			final String name )
+	{
+		final int nA = source.size();
+
+		if ( nA < minNumMatches || target.size() < minNumMatches )
+		{
+			System.out.println( name + ": not enough points for ICP (" + nA + " <> " + target.size() + ")" );
+			return new int[ 0 ];
+		}
+
+		final long time = System.currentTimeMillis();
+
+		final FlatKDTree tree = new FlatKDTree( target.xyz, target.size() );
+		final FlatKDTree.Searcher searcher = tree.searcher();
+		final double maxDistanceSq = maxDistance * maxDistance;
+
+		// one match per source point, the target point is updated whenever the correspondence changes
+		final PointMatch[] matches = new PointMatch[ nA ];
+
+		for ( int i = 0; i < nA; ++i )
+			matches[ i ] = new PointMatch( new Point( source.location( i ) ), new Point( new double[ 3 ] ) );
+
+		// to find the source index of the RANSAC inliers
+		final IdentityHashMap< PointMatch, Integer > matchIndex = new IdentityHashMap<>( useRANSAC ? nA : 0 );
+
+		if ( useRANSAC )
+			for ( int i = 0; i < nA; ++i )
+				matchIndex.put( matches[ i ], i );
+
+		final int[] nearest = new int[ nA ];
+		final int[] previous = new int[ nA ];
+		final boolean[] inlier = new boolean[ nA ];
+		Arrays.fill( previous, -2 );
+
+		final ArrayList< PointMatch > active = new ArrayList<>( nA );
+		final ArrayList< PointMatch > inliers = new ArrayList<>( nA );
+
+		int iteration = 0;
+		double error = 0;
+
+		for ( ; iteration < maxIterations; ++iteration )
+		{
+			error = correspondences( matches, model, target, searcher, maxDistanceSq, nearest, active );
+
+			if ( active.size() < minNumMatches )
+			{
+				System.out.println( name + ": ICP failed in iteration " + iteration + ", only " + active.size() + " corresponding points." );
+				return new int[ 0 ];
+			}
+
+			if ( !useRANSAC )
+				for ( int i = 0; i < nA; ++i )
+					inlier[ i ] = nearest[ i ] >= 0;
+
+			// converged, the correspondences did not change
+			if ( Arrays.equals( nearest, previous ) )
+				break;
+
+			System.arraycopy( nearest, 0, previous, 0, nA );
+
+			try
+			{
+				if ( useRANSAC )
+				{
+					inliers.clear();
+
+					if ( ransacConfidence > 0 )
+					{
+						final int used = AdaptiveRansac.filter( model, active, inliers, ransacIterations, ransacMaxEpsilon, ransacMinInlierRatio, minNumMatches, ransacConfidence );
+
+						if ( ransacIterationsUsed != null )
+							ransacIterationsUsed.add( used );
+					}
+					else
+					{
+						if ( !model.filterRansac( active, inliers, ransacIterations, ransacMaxEpsilon, ransacMinInlierRatio, minNumMatches ) )
+							inliers.clear();
+
+						if ( ransacIterationsUsed != null )
+							ransacIterationsUsed.add( ransacIterations );
+					}
+
+					if ( inliers.size() < minNumMatches )
+					{
+						System.out.println( name + ": ICP failed in iteration " + iteration + ", only " + inliers.size() + " RANSAC inliers." );
+						return new int[ 0 ];
+					}
+
+					Arrays.fill( inlier, false );
+
+					for ( final PointMatch pm : inliers )
+						inlier[ matchIndex.get( pm ) ] = true;
+				}
+				else
+				{
+					model.fit( active );
+				}
+			}
+			catch ( Exception e )
+			{
+				System.out.println( name + ": ICP failed in iteration " + iteration + ": " + e );
+				return new int[ 0 ];
+			}
+		}
+
+		// the model was refit after the correspondences were found last, find those of the final model
+		// (the RANSAC inliers are those within the RANSAC max error of it)
+		if ( iteration == maxIterations )
+		{
+			error = correspondences( matches, model, target, searcher, maxDistanceSq, nearest, active );
+
+			for ( int i = 0; i < nA; ++i )
+				inlier[ i ] = nearest[ i ] >= 0 && ( !useRANSAC || matches[ i ].getDistance() < ransacMaxEpsilon );
+		}
+
+		// the correspondences of the final model
+		final int[] ids = new int[ nA * 2 ];
+		int k = 0;
+
+		for ( int i = 0; i < nA; ++i )
+		{
+			if ( nearest[ i ] < 0 || !inlier[ i ] )
+				continue;
+
+			ids[ k++ ] = source.id( i );
+			ids[ k++ ] = target.id( nearest[ i ] );
+		}
+
+		if ( k / 2 < minNumMatches )
+		{
+			System.out.println( name + ": ICP failed, only " + ( k / 2 ) + " corresponding points." );
+			return new int[ 0 ];
+		}
+
+		System.out.println( name + ": ICP finished after " + iteration + " iterations, " + ( k / 2 ) + " corresponding points, avg error " +
+				String.format( "%.3f", error / Math.max( 1, active.size() ) ) + " px, took " + ( System.currentTimeMillis() - time ) + " ms." );
+
+		return Arrays.copyOf( ids, k );
+	}
+
+	/**
+	 * Applies the model to all source points and finds the nearest target point of each, the target point of every match
+	 * that has one is updated in place.
+	 *
+	 * @return the sum of the distances of all matches that have a nearest target point
+	 */
+	protected static double correspondences(
+			final PointMatch[] matches,
+			final Model< ? > model,
+			final FlatInterestPoints target,
+			final FlatKDTree.Searcher searcher,
+			final double maxDistanceSq,
+			final int[] nearest,
+			final ArrayList< PointMatch > active )
+	{
+		active.clear();
+		double error = 0;
+
+		for ( int i = 0; i < matches.length; ++i )
+		{
+			final Point p1 = matches[ i ].getP1();
+			p1.apply( model );
+
+			final double[] w = p1.getW();
+			final int j = searcher.nearest( w[ 0 ], w[ 1 ], w[ 2 ], maxDistanceSq );
+
+			nearest[ i ] = j;
+
+			if ( j < 0 )
+				continue;
+
+			final Point p2 = matches[ i ].getP2();
+			final double[] l2 = p2.getL();
+			final double[] w2 = p2.getW();
+
+			target.location( j, l2 );
+			System.arraycopy( l2, 0, w2, 0, 3 );
+
+			active.add( matches[ i ] );
+			error += Math.sqrt( searcher.distanceSq() );
+		}
+
+		return error;
+	}
+}
@@ -0,0 +1,304 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * A compact (struct-of-arrays) list of 3d interest points: one contiguous array for all locations,
+ * one for the ids and (optionally) one for the intensities. Use the converters only at the boundaries
+ * to multiview-reconstruction, which works with lists of InterestPoint objects.
+ */
+public class FlatInterestPoints implements Serializable
+{
+	private static final long serialVersionUID = 2949264358937716553L;
+
+	// x0,y0,z0,x1,y1,z1,...
+	double[] xyz;
+	int[] ids;
+	float[] intensities; // can be null
+
+	int size;
+
+	/**
+	 * @param capacity - the initial capacity
+	 * @param withIntensities - if intensities are stored
+	 */
+	public FlatInterestPoints( final int capacity, final boolean withIntensities )
+	{
+		this( new double[ capacity * 3 ], new int[ capacity ], withIntensities ? new float[ capacity ] : null, 0 );
+	}
+
+	protected FlatInterestPoints( final double[] xyz, final int[] ids, final float[] intensities, final int size )
+	{
+		this.xyz = xyz;
+		this.ids = ids;
+		this.intensities = intensities;
+		this.size = size;
+	}
+
+	public int size() { return size; }
+	public boolean hasIntensities() { return intensities != null; }
+
+	public int id( final int i ) { return ids[ i ]; }
+	public double x( final int i ) { return xyz[ i * 3 ]; }
+	public double y( final int i ) { return xyz[ i * 3 + 1 ]; }
+	public double z( final int i ) { return xyz[ i * 3 + 2 ]; }
+	public float intensity( final int i ) { return intensities[ i ]; }
+
+	public void location( final int i, final double[] l )
+	{
+		l[ 0 ] = xyz[ i * 3 ];
+		l[ 1 ] = xyz[ i * 3 + 1 ];
+		l[ 2 ] = xyz[ i * 3 + 2 ];
+	}
+
+	/**
+	 * @return a new array with the location of point i
+	 */
+	public double[] location( final int i )
+	{
+		return Arrays.copyOfRange( xyz, i * 3, i * 3 + 3 );
+	}
+
+	/**
+	 * Adds a point, the arrays grow if necessary.
+	 */
+	public void add( final int id, final double x, final double y, final double z, final float intensity )
+	{
+		ensureCapacity( size + 1 );
+
+		xyz[ size * 3 ] = x;
+		xyz[ size * 3 + 1 ] = y;
+		xyz[ size * 3 + 2 ] = z;
+		ids[ size ] = id;
+
+		if ( intensities != null )
+			intensities[ size ] = intensity;
+
+		++size;
+	}
+
+	protected void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= ids.length )
+			return;
+
+		final int newCapacity = Math.max( capacity, ids.length * 2 );
+
+		xyz = Arrays.copyOf( xyz, newCapacity * 3 );
+		ids = Arrays.copyOf( ids, newCapacity );
+
+		if ( intensities != null )
+			intensities = Arrays.copyOf( intensities, newCapacity );
+	}
+
+	/**
+	 * @param indices - which points to keep (in this order)
+	 * @param renumber - assign new, consecutive ids
+	 * @return a new instance containing only the selected points
+	 */
+	public FlatInterestPoints select( final int[] indices, final boolean renumber )
+	{
+		final double[] xyzS = new double[ indices.length * 3 ];
+		final int[] idsS = new int[ indices.length ];
+		final float[] intensitiesS = intensities == null ? null : new float[ indices.length ];
+
+		for ( int j = 0; j < indices.length; ++j )
+		{
+			final int i = indices[ j ];
+
+			System.arraycopy( xyz, i * 3, xyzS, j * 3, 3 );
+			idsS[ j ] = renumber ? j : ids[ i ];
+
+			if ( intensitiesS != null )
+				intensitiesS[ j ] = intensities[ i ];
+		}
+
+		return new FlatInterestPoints( xyzS, idsS, intensitiesS, indices.length );
+	}
+
+	/**
+	 * @param renumber - assign new, consecutive ids
+	 * @return all points where keep is true
+	 */
+	public FlatInterestPoints select( final boolean[] keep, final boolean renumber )
+	{
+		int count = 0;
+		for ( int i = 0; i < size; ++i )
+			if ( keep[ i ] )
+				++count;
+
+		final int[] indices = new int[ count ];
+
+		for ( int i = 0, j = 0; i < size; ++i )
+			if ( keep[ i ] )
+				indices[ j++ ] = i;
+
+		return select( indices, renumber );
+	}
+
+	/**
+	 * @param a - the first points
+	 * @param b - the second points (intensities are only kept if both have them)
+	 * @return a new instance containing the points of a followed by the points of b (ids are not changed)
+	 */
+	public static FlatInterestPoints concatenate( final FlatInterestPoints a, final FlatInterestPoints b )
+	{
+		final int n = a.size + b.size;
+
+		final double[] xyz = Arrays.copyOf( a.xyz, n * 3 );
+		final int[] ids = Arrays.copyOf( a.ids, n );
+		final float[] intensities = a.hasIntensities() && b.hasIntensities() ? Arrays.copyOf( a.intensities, n ) : null;
+
+		System.arraycopy( b.xyz, 0, xyz, a.size * 3, b.size * 3 );
+		System.arraycopy( b.ids, 0, ids, a.size, b.size );
+
+		if ( intensities != null )
+			System.arraycopy( b.intensities, 0, intensities, a.size, b.size );
+
+		return new FlatInterestPoints( xyz, ids, intensities, n );
+	}
+
+	/**
+	 * @param k - how many points
+	 * @return the indices of the k brightest points, sorted from bright to dark (ties by index)
+	 */
+	public int[] topK( final int k )
+	{
+		return topK( intensities, size, k );
+	}
+
+	/**
+	 * Primitive top-k selection (no boxing): every value is encoded together with its index in a long
+	 * such that sorting the longs ascending sorts by value (descending) and index (ascending).
+	 *
+	 * @param values - the values
+	 * @param n - the number of values to consider
+	 * @param k - how many
+	 * @return the indices of the k largest values, sorted from large to small
+	 */
+	public static int[] topK( final float[] values, final int n, final int k )
+	{
+		final int m = Math.min( k, n );
+		final long[] keys = new long[ n ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			// maps the float to an int with the same ordering
+			int bits = Float.floatToIntBits( values[ i ] );
+			bits ^= ( bits >> 31 ) & 0x7fffffff;
+
+			keys[ i ] = ( (long)~bits << 32 ) | i;
+		}
+
+		// only the first m need to be sorted
+		select( keys, 0, n - 1, m );
+		Arrays.sort( keys, 0, m );
+
+		final int[] indices = new int[ m ];
+
+		for ( int i = 0; i < m; ++i )
+			indices[ i ] = (int)( keys[ i ] & 0xffffffffL );
+
+		return indices;
+	}
+
+	/**
+	 * Partitions the array such that the m smallest values are in front (quickselect).
+	 */
+	protected static void select( final long[] a, int left, int right, final int m )
+	{
+		if ( m <= 0 || m >= a.length )
+			return;
+
+		while ( left < right )
+		{
+			final long pivot = a[ ( left + right ) >>> 1 ];
+
+			int i = left, j = right;
+
+			while ( i <= j )
+			{
+				while ( a[ i ] < pivot ) ++i;
+				while ( a[ j ] > pivot ) --j;
+
+				if ( i <= j )
+				{
+					final long tmp = a[ i ];
+					a[ i ] = a[ j ];
+					a[ j ] = tmp;
+					++i;
+					--j;
+				}
+			}
+
+			if ( m - 1 <= j )
+				right = j;
+			else if ( m - 1 >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * @param points - the interest points of multiview-reconstruction
+	 * @param intensities - the intensities (or null)
+	 * @return the flat representation
+	 */
+	public static FlatInterestPoints fromInterestPoints( final List< InterestPoint > points, final float[] intensities )
+	{
+		final int n = points.size();
+
+		final double[] xyz = new double[ n * 3 ];
+		final int[] ids = new int[ n ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final InterestPoint p = points.get( i );
+
+			System.arraycopy( p.getL(), 0, xyz, i * 3, 3 );
+			ids[ i ] = p.getId();
+		}
+
+		return new FlatInterestPoints( xyz, ids, intensities, n );
+	}
+
+	/**
+	 * @return the interest points for multiview-reconstruction
+	 */
+	public ArrayList< InterestPoint > toInterestPoints()
+	{
+		final ArrayList< InterestPoint > list = new ArrayList<>( size );
+
+		for ( int i = 0; i < size; ++i )
+			list.add( new InterestPoint( ids[ i ], location( i ) ) );
+
+		return list;
+	}
+}
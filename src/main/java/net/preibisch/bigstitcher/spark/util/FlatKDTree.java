@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+/**
+ * A 3d KD-tree over a flat coordinate array (x0,y0,z0,x1,y1,z1,...) without any per-point objects. The tree is
+ * implicit: the points are reordered so that the median of every range is the splitting node. Nearest neighbor
+ * queries do not allocate, use one {@link Searcher} per thread.
+ */
+public class FlatKDTree
+{
+	final int n;
+
+	// the points in tree order, their original index and the split axis of each node
+	final double[] xyz;
+	final int[] index;
+	final byte[] axis;
+
+	/**
+	 * @param xyz - the coordinates (not modified)
+	 * @param n - the number of points
+	 */
+	public FlatKDTree( final double[] xyz, final int n )
+	{
+		this.n = n;
+		this.xyz = new double[ n * 3 ];
+		this.index = new int[ n ];
+		this.axis = new byte[ n ];
+
+		System.arraycopy( xyz, 0, this.xyz, 0, n * 3 );
+
+		for ( int i = 0; i < n; ++i )
+			index[ i ] = i;
+
+		build( 0, n );
+	}
+
+	public int size() { return n; }
+
+	protected void build( final int from, final int to )
+	{
+		if ( to - from <= 1 )
+			return;
+
+		// split along the axis of largest extent
+		final double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+		for ( int i = from; i < to; ++i )
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], xyz[ i * 3 + d ] );
+				max[ d ] = Math.max( max[ d ], xyz[ i * 3 + d ] );
+			}
+
+		int a = 0;
+		for ( int d = 1; d < 3; ++d )
+			if ( max[ d ] - min[ d ] > max[ a ] - min[ a ] )
+				a = d;
+
+		final int m = ( from + to ) >>> 1;
+
+		select( from, to - 1, m, a );
+		axis[ m ] = (byte)a;
+
+		build( from, m );
+		build( m + 1, to );
+	}
+
+	/**
+	 * Quickselect: afterwards the element at k is the one that would be there if [left, right] was sorted along axis a.
+	 */
+	protected void select( int left, int right, final int k, final int a )
+	{
+		while ( left < right )
+		{
+			final double pivot = xyz[ ( ( left + right ) >>> 1 ) * 3 + a ];
+
+			int i = left, j = right;
+
+			while ( i <= j )
+			{
+				while ( xyz[ i * 3 + a ] < pivot ) ++i;
+				while ( xyz[ j * 3 + a ] > pivot ) --j;
+
+				if ( i <= j )
+					swap( i++, j-- );
+			}
+
+			if ( k <= j )
+				right = j;
+			else if ( k >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+
+	protected void swap( final int i, final int j )
+	{
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double tmp = xyz[ i * 3 + d ];
+			xyz[ i * 3 + d ] = xyz[ j * 3 + d ];
+			xyz[ j * 3 + d ] = tmp;
+		}
+
+		final int tmp = index[ i ];
+		index[ i ] = index[ j ];
+		index[ j ] = tmp;
+	}
+
+	public Searcher searcher() { return new Searcher(); }
+
+	/**
+	 * Nearest neighbor search state, not thread-safe.
+	 */
+	public class Searcher
+	{
+		double qx, qy, qz;
+		int best;
+		double bestDistanceSq;
+
+		/**
+		 * @param x - query x
+		 * @param y - query y
+		 * @param z - query z
+		 * @param maxDistanceSq - only points closer than this are considered
+		 * @return the (original) index of the nearest point, -1 if there is none within the distance
+		 */
+		public int nearest( final double x, final double y, final double z, final double maxDistanceSq )
+		{
+			qx = x;
+			qy = y;
+			qz = z;
+			best = -1;
+			bestDistanceSq = maxDistanceSq;
+
+			search( 0, n );
+
+			return best < 0 ? -1 : index[ best ];
+		}
+
+		/**
+		 * @return the squared distance of the last found nearest neighbor
+		 */
+		public double distanceSq() { return bestDistanceSq; }
+
+		protected void search( final int from, final int to )
+		{
+			if ( from >= to )
+				return;
+
+			final int m = ( from + to ) >>> 1;
+
+			final double dx = qx - xyz[ m * 3 ];
+			final double dy = qy - xyz[ m * 3 + 1 ];
+			final double dz = qz - xyz[ m * 3 + 2 ];
+			final double distanceSq = dx * dx + dy * dy + dz * dz;
+
+			if ( distanceSq < bestDistanceSq )
+			{
+				bestDistanceSq = distanceSq;
+				best = m;
+			}
+
+			final double diff = axis[ m ] == 0 ? dx : axis[ m ] == 1 ? dy : dz;
+
+			// the side of the query first, the other side only if it can contain a closer point
+			if ( diff < 0 )
+			{
+				search( from, m );
+
+				if ( diff * diff < bestDistanceSq )
+					search( m + 1, to );
+			}
+			else
+			{
+				search( m + 1, to );
+
+				if ( diff * diff < bestDistanceSq )
+					search( from, m );
+			}
+		}
+	}
+}
@@ -0,0 +1,356 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.apache.spark.api.java.JavaSparkContext;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import scala.Tuple2;
+
+/**
+ * Estimates a robust intensity range (low and high percentile) of a set of views from a sample of each view. If the
+ * loader stores mipmaps, the coarsest level that still has enough pixels is sampled on a regular grid, otherwise a few
+ * random storage chunks (or z-planes if the image is not stored in chunks) are sampled. Only a small part of each view
+ * is read, which makes it cheap enough to run before detection or fusion.
+ */
+public class IntensityRange
+{
+	public static int defaultSamplesPerView = 10000;
+
+	// how many storage chunks are sampled per view if there is no small enough mipmap level
+	public static int chunksPerView = 16;
+
+	/**
+	 * @param sc - the spark context to sample the views distributed, or null to sample them multithreaded on the driver
+	 * @param xmlURI - the project (loaded on the executors)
+	 * @param data - the project (used if sc is null)
+	 * @param viewIds - the views to sample
+	 * @param lowPercentile - e.g. 0.1
+	 * @param highPercentile - e.g. 99.9
+	 * @param samplesPerView - approximate number of pixels sampled per view
+	 * @return { low, high } of all views together
+	 */
+	public static double[] estimate(
+			final JavaSparkContext sc,
+			final URI xmlURI,
+			final SpimData2 data,
+			final List< ViewId > viewIds,
+			final double lowPercentile,
+			final double highPercentile,
+			final int samplesPerView )
+	{
+		final long time = System.currentTimeMillis();
+
+		final double[] range = range( sampleViews( sc, xmlURI, data, viewIds, samplesPerView ).values(), lowPercentile, highPercentile );
+
+		System.out.println( "Estimated intensity range [" + lowPercentile + "%, " + highPercentile + "%] = [" + range[ 0 ] + ", " + range[ 1 ] + "] of " +
+				viewIds.size() + " views, took " + ( System.currentTimeMillis() - time ) + " ms." );
+
+		return range;
+	}
+
+	/**
+	 * @param sc - the spark context to sample the views distributed, or null to sample them multithreaded on the driver
+	 * @param xmlURI - the project (loaded on the executors)
+	 * @param data - the project
+	 * @param viewIds - the views to sample
+	 * @param lowPercentile - e.g. 0.1
+	 * @param highPercentile - e.g. 99.9
+	 * @param samplesPerView - approximate number of pixels sampled per view
+	 * @return { low, high } for each channel id, estimated from all views of that channel
+	 */
+	public static HashMap< Integer, double[] > estimatePerChannel(
+			final JavaSparkContext sc,
+			final URI xmlURI,
+			final SpimData2 data,
+			final List< ViewId > viewIds,
+			final double lowPercentile,
+			final double highPercentile,
+			final int samplesPerView )
+	{
+		final long time = System.currentTimeMillis();
+
+		final HashMap< ViewId, float[] > samples = sampleViews( sc, xmlURI, data, viewIds, samplesPerView );
+		final HashMap< Integer, ArrayList< float[] > > samplesPerChannel = new HashMap<>();
+
+		samples.forEach( ( viewId, s ) -> samplesPerChannel.computeIfAbsent( channel( data, viewId ), c -> new ArrayList<>() ).add( s ) );
+
+		final HashMap< Integer, double[] > ranges = new HashMap<>();
+
+		samplesPerChannel.forEach( ( channel, s ) ->
+		{
+			final double[] range = range( s, lowPercentile, highPercentile );
+			ranges.put( channel, range );
+
+			System.out.println( "Estimated intensity range [" + lowPercentile + "%, " + highPercentile + "%] of channel " + channel + " = [" + range[ 0 ] + ", " + range[ 1 ] + "] of " + s.size() + " views." );
+		});
+
+		System.out.println( "Estimated the intensity range of " + ranges.size() + " channel(s), took " + ( System.currentTimeMillis() - time ) + " ms." );
+
+		return ranges;
+	}
+
+	public static int channel( final SpimData2 data, final ViewId viewId )
+	{
+		return data.getSequenceDescription().getViewDescription( viewId ).getViewSetup().getChannel().getId();
+	}
+
+	protected static HashMap< ViewId, float[] > sampleViews(
+			final JavaSparkContext sc,
+			final URI xmlURI,
+			final SpimData2 data,
+			final List< ViewId > viewIds,
+			final int samplesPerView )
+	{
+		final List< Tuple2< int[], float[] > > samples;
+
+		if ( sc != null )
+		{
+			samples = sc.parallelize( Spark.serializeViewIdsForRDD( viewIds ), Math.max( 1, viewIds.size() ) ).map( serializedViewId ->
+			{
+				final SpimData2 dataLocal = Spark.getSparkJobSpimData2( xmlURI );
+				return new Tuple2<>( serializedViewId, sample( dataLocal.getSequenceDescription().getImgLoader(), Spark.deserializeViewId( serializedViewId ), samplesPerView ) );
+			}).collect();
+		}
+		else
+		{
+			samples = viewIds.parallelStream().map( viewId -> new Tuple2<>( Spark.serializeViewId( viewId ), sample( data.getSequenceDescription().getImgLoader(), viewId, samplesPerView ) ) ).collect( Collectors.toList() );
+		}
+
+		final HashMap< ViewId, float[] > perView = new HashMap<>();
+		samples.forEach( s -> perView.put( Spark.deserializeViewId( s._1() ), s._2() ) );
+
+		return perView;
+	}
+
+	/**
+	 * @param samples - the samples of several views
+	 * @param lowPercentile - e.g. 0.1
+	 * @param highPercentile - e.g. 99.9
+	 * @return { low, high } of all samples
+	 */
+	protected static double[] range( final Collection< float[] > samples, final double lowPercentile, final double highPercentile )
+	{
+		final float[] all = new float[ samples.stream().mapToInt( s -> s.length ).sum() ];
+
+		int i = 0;
+		for ( final float[] s : samples )
+		{
+			System.arraycopy( s, 0, all, i, s.length );
+			i += s.length;
+		}
+
+		if ( all.length == 0 )
+			throw new RuntimeException( "Could not sample any intensities to estimate the intensity range." );
+
+		Arrays.sort( all );
+
+		final double[] range = new double[] { percentile( all, lowPercentile ), percentile( all, highPercentile ) };
+
+		if ( range[ 1 ] <= range[ 0 ] )
+			range[ 1 ] = range[ 0 ] + 1;
+
+		return range;
+	}
+
+	/**
+	 * @param sorted - sorted values
+	 * @param percentile - 0 ... 100
+	 * @return the value at this percentile (nearest rank)
+	 */
+	public static double percentile( final float[] sorted, final double percentile )
+	{
+		final int index = (int)Math.round( Math.max( 0, Math.min( 100, percentile ) ) / 100.0 * ( sorted.length - 1 ) );
+
+		return sorted[ index ];
+	}
+
+	/**
+	 * Samples a view at the coarsest stored level that has at least samplesPerView pixels. If that level is still big,
+	 * only a few random storage chunks are sampled.
+	 *
+	 * @param imgLoader - the image loader
+	 * @param viewId - the view
+	 * @param samplesPerView - approximate number of samples
+	 * @return the sampled intensities
+	 */
+	@SuppressWarnings("unchecked")
+	public static float[] sample( final BasicImgLoader imgLoader, final ViewId viewId, final int samplesPerView )
+	{
+		final RandomAccessibleInterval< RealType< ? > > img;
+
+		if ( MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+		{
+			final MultiResolutionSetupImgLoader< ? > setupImgLoader = ( ( MultiResolutionImgLoader ) imgLoader ).getSetupImgLoader( viewId.getViewSetupId() );
+
+			int level = 0;
+			for ( int l = setupImgLoader.getMipmapResolutions().length - 1; l > 0 && level == 0; --l )
+				if ( ViewUtil.size( setupImgLoader.getImage( viewId.getTimePointId(), l ) ) >= samplesPerView )
+					level = l;
+
+			img = (RandomAccessibleInterval< RealType< ? > >)setupImgLoader.getImage( viewId.getTimePointId(), level );
+		}
+		else
+		{
+			img = (RandomAccessibleInterval< RealType< ? > >)imgLoader.getSetupImgLoader( viewId.getViewSetupId() ).getImage( viewId.getTimePointId() );
+		}
+
+		final float[] values;
+
+		// a small level is sampled on a regular grid, reading all of it is cheap
+		if ( ViewUtil.size( img ) <= (long)chunksPerView * samplesPerView )
+		{
+			values = sampleGrid( img, samplesPerView );
+			System.out.println( "Sampled " + values.length + " intensities of " + Group.pvid( viewId ) + " on a grid." );
+		}
+		else
+		{
+			int[] chunkSize = ViewUtil.cellDimensions( img );
+
+			// z-planes, e.g. for TIFF stacks
+			if ( chunkSize == null )
+			{
+				chunkSize = new int[ img.numDimensions() ];
+				Arrays.setAll( chunkSize, d -> d < 2 ? (int)Math.min( Integer.MAX_VALUE, img.dimension( d ) ) : 1 );
+			}
+
+			values = sampleChunks( img, chunkSize, chunksPerView, samplesPerView, 31 * viewId.getTimePointId() + viewId.getViewSetupId() );
+			System.out.println( "Sampled " + values.length + " intensities of " + Group.pvid( viewId ) + " in " + chunksPerView + " random chunks of size " + Arrays.toString( chunkSize ) + "." );
+		}
+
+		return values;
+	}
+
+	/**
+	 * @param img - the image (or an interval of it, e.g. a chunk, the grid starts at its min)
+	 * @param samples - approximate number of samples
+	 * @return the intensities on a regular grid
+	 */
+	public static float[] sampleGrid( final RandomAccessibleInterval< RealType< ? > > img, final int samples )
+	{
+		final long size = ViewUtil.size( img );
+		final long step = Math.max( 1, (long)Math.floor( Math.pow( (double)size / samples, 1.0 / img.numDimensions() ) ) );
+
+		final RandomAccessibleInterval< RealType< ? > > sampled = Views.subsample( Views.zeroMin( img ), step );
+
+		final float[] values = new float[ (int)ViewUtil.size( sampled ) ];
+
+		int i = 0;
+		for ( final RealType< ? > t : Views.flatIterable( sampled ) )
+			values[ i++ ] = t.getRealFloat();
+
+		return values;
+	}
+
+	/**
+	 * Picks random chunks of the storage grid (without repetition if possible) and samples each on a regular grid,
+	 * so only these chunks are loaded.
+	 *
+	 * @param img - the image
+	 * @param chunkSize - the size of the storage chunks
+	 * @param numChunks - how many chunks to sample
+	 * @param samples - approximate number of samples (in total)
+	 * @param seed - the random seed (fixed per view, so the estimate is reproducible)
+	 * @return the intensities
+	 */
+	public static float[] sampleChunks(
+			final RandomAccessibleInterval< RealType< ? > > img,
+			final int[] chunkSize,
+			final int numChunks,
+			final int samples,
+			final long seed )
+	{
+		final int n = img.numDimensions();
+		final long[] gridSize = new long[ n ];
+		long totalChunks = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			gridSize[ d ] = ( img.dimension( d ) + chunkSize[ d ] - 1 ) / chunkSize[ d ];
+			totalChunks *= gridSize[ d ];
+		}
+
+		final Random rnd = new Random( seed );
+		final long[] chunks;
+
+		if ( totalChunks <= numChunks )
+		{
+			chunks = new long[ (int)totalChunks ];
+			Arrays.setAll( chunks, i -> i );
+		}
+		else
+		{
+			chunks = rnd.longs( 0, totalChunks ).distinct().limit( numChunks ).toArray();
+		}
+
+		final int samplesPerChunk = Math.max( 1, samples / chunks.length );
+		final ArrayList< float[] > perChunk = new ArrayList<>();
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( final long chunk : chunks )
+		{
+			long index = chunk;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long g = index % gridSize[ d ];
+				index /= gridSize[ d ];
+
+				min[ d ] = img.min( d ) + g * chunkSize[ d ];
+				max[ d ] = Math.min( img.max( d ), min[ d ] + chunkSize[ d ] - 1 );
+			}
+
+			perChunk.add( sampleGrid( Views.interval( img, new FinalInterval( min, max ) ), samplesPerChunk ) );
+		}
+
+		final float[] values = new float[ perChunk.stream().mapToInt( v -> v.length ).sum() ];
+
+		int i = 0;
+		for ( final float[] v : perChunk )
+		{
+			System.arraycopy( v, 0, values, i, v.length );
+			i += v.length;
+		}
+
+		return values;
+	}
+}
@@ -0,0 +1,183 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.util.LongAccumulator;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoints;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPointLists;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Executor-wide, memory-bounded LRU cache of loaded and transformed interest points, keyed by (location, ViewId, label, transformation).
+ * Every view takes part in many pairs, this way its points are only read from the N5 and transformed once per executor.
+ *
+ * The points are stored in the compact {@link FlatInterestPoints} form and new InterestPoint objects are created for every
+ * request, because the matchers modify the points (e.g. ICP applies the model to them). The per-view descriptors
+ * ({@link TranslationDescriptors}) are kept in the same cache, so both together stay within one memory budget.
+ */
+public class InterestPointCache
+{
+	// approximate memory of one cached point (xyz + id) and of one cache entry
+	final static long BYTES_PER_POINT = 3 * 8 + 4;
+	final static long BYTES_PER_ENTRY = 256;
+
+	private static InterestPointCache instance = null;
+
+	final long maxBytes;
+	final LRUCache< Object > cache;
+
+	protected InterestPointCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		this.cache = new LRUCache<>( maxBytes, InterestPointCache::sizeInBytes );
+	}
+
+	/**
+	 * @param maxMegaBytes - the maximal size of the cache of this executor (the first call defines the size)
+	 * @return the cache of this JVM
+	 */
+	public static synchronized InterestPointCache instance( final long maxMegaBytes )
+	{
+		if ( instance == null )
+			instance = new InterestPointCache( maxMegaBytes * 1024 * 1024 );
+
+		return instance;
+	}
+
+	/**
+	 * Replacement for TransformationTools.getAllTransformedInterestPoints that uses the cache.
+	 *
+	 * @param viewIds - the views to load
+	 * @param registrations - the registrations of all views
+	 * @param interestpoints - the interest point lists of all views
+	 * @param labelMap - which labels to load for which view
+	 * @param hits - counts cache hits (can be null)
+	 * @param misses - counts cache misses (can be null)
+	 * @param evictions - counts evicted entries (can be null)
+	 * @return the transformed interest points per view and label
+	 */
+	public Map< ViewId, HashMap< String, List< InterestPoint > > > getAllTransformedInterestPoints(
+			final Collection< ? extends ViewId > viewIds,
+			final Map< ViewId, ViewRegistration > registrations,
+			final Map< ViewId, ViewInterestPointLists > interestpoints,
+			final Map< ViewId, ? extends Map< String, Double > > labelMap,
+			final LongAccumulator hits,
+			final LongAccumulator misses,
+			final LongAccumulator evictions )
+	{
+		final HashMap< ViewId, HashMap< String, List< InterestPoint > > > transformed = new HashMap<>();
+
+		for ( final ViewId viewId : viewIds )
+		{
+			final ViewRegistration r = registrations.get( viewId );
+			r.updateModel();
+
+			final AffineTransform3D model = r.getModel();
+			final HashMap< String, List< InterestPoint > > perLabel = new HashMap<>();
+
+			for ( final String label : labelMap.get( viewId ).keySet() )
+			{
+				final InterestPoints ipl = interestpoints.get( viewId ).getInterestPointList( label );
+
+				if ( ipl == null )
+				{
+					System.out.println( "No interest points with label '" + label + "' for " + Group.pvid( viewId ) + ", skipping." );
+					continue;
+				}
+
+				final String key = key( ipl.getBaseDir(), viewId, label, model );
+
+				FlatInterestPoints points = (FlatInterestPoints)cache.get( key );
+
+				if ( points != null )
+				{
+					if ( hits != null )
+						hits.add( 1 );
+				}
+				else
+				{
+					if ( misses != null )
+						misses.add( 1 );
+
+					points = transform( ipl.getInterestPointsCopy(), model );
+
+					final int evicted = cache.put( key, points );
+
+					if ( evictions != null )
+						evictions.add( evicted );
+				}
+
+				perLabel.put( label, points.toInterestPoints() );
+			}
+
+			transformed.put( viewId, perLabel );
+		}
+
+		return transformed;
+	}
+
+	protected static FlatInterestPoints transform( final List< InterestPoint > points, final AffineTransform3D model )
+	{
+		final FlatInterestPoints flat = new FlatInterestPoints( points.size(), false );
+		final double[] l = new double[ 3 ];
+
+		for ( final InterestPoint p : points )
+		{
+			model.apply( p.getL(), l );
+			flat.add( p.getId(), l[ 0 ], l[ 1 ], l[ 2 ], 0 );
+		}
+
+		return flat;
+	}
+
+	protected static long size( final FlatInterestPoints points )
+	{
+		return BYTES_PER_ENTRY + points.size() * BYTES_PER_POINT;
+	}
+
+	protected static long sizeInBytes( final Object value )
+	{
+		if ( value instanceof TranslationDescriptors )
+			return TranslationDescriptors.sizeInBytes( (TranslationDescriptors)value );
+		else
+			return size( (FlatInterestPoints)value );
+	}
+
+	// the location of the interest points and the exact transformation are part of the key, so a JVM that is re-used
+	// for another project or a changed registration never returns stale points
+	public static String key( final URI baseDir, final ViewId viewId, final String label, final AffineTransform3D model )
+	{
+		return baseDir + "_" + viewId.getTimePointId() + "_" + viewId.getViewSetupId() + "_" + label + "_" + Arrays.toString( model.getRowPackedCopy() );
+	}
+}
@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * A simple, serializable uniform-grid spatial index over a fixed list of intervals
+ * (e.g. the transformed bounding boxes of all views). It is built once on the driver
+ * and can be shipped to (or broadcast to) the executors, where it answers overlap queries
+ * without touching the intervals that are far away.
+ */
+public class IntervalIndex implements Serializable
+{
+	private static final long serialVersionUID = -2470364806391817725L;
+
+	// maximal number of grid cells, the cell size is increased if necessary
+	final static long maxNumCells = 1 << 20;
+
+	final int n;
+	final long[][] min, max; // [entry][d]
+
+	final long[] gridMin, cellSize;
+	final int[] numCells;
+	final int[][] cells; // [cell][entries]
+
+	/**
+	 * @param intervals - the intervals to index (must all have the same dimensionality), the index of each interval in the list is its id
+	 */
+	public IntervalIndex( final List< ? extends Interval > intervals )
+	{
+		this.n = intervals.size();
+
+		final int numDimensions = n == 0 ? 0 : intervals.get( 0 ).numDimensions();
+
+		this.min = new long[ n ][];
+		this.max = new long[ n ][];
+
+		this.gridMin = new long[ numDimensions ];
+		this.cellSize = new long[ numDimensions ];
+		this.numCells = new int[ numDimensions ];
+
+		if ( n == 0 )
+		{
+			this.cells = new int[ 0 ][];
+			return;
+		}
+
+		final long[] gridMax = new long[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			gridMin[ d ] = Long.MAX_VALUE;
+			gridMax[ d ] = Long.MIN_VALUE;
+		}
+
+		// the average extent of the intervals is a good guess for the cell size
+		final double[] avgSize = new double[ numDimensions ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final Interval interval = intervals.get( i );
+
+			min[ i ] = interval.minAsLongArray();
+			max[ i ] = interval.maxAsLongArray();
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				gridMin[ d ] = Math.min( gridMin[ d ], min[ i ][ d ] );
+				gridMax[ d ] = Math.max( gridMax[ d ], max[ i ][ d ] );
+				avgSize[ d ] += ( max[ i ][ d ] - min[ i ][ d ] + 1 ) / (double)n;
+			}
+		}
+
+		for ( int d = 0; d < numDimensions; ++d )
+			cellSize[ d ] = Math.max( 1, Math.round( avgSize[ d ] ) );
+
+		long totalCells;
+
+		do
+		{
+			totalCells = 1;
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				numCells[ d ] = (int)Math.min( Integer.MAX_VALUE, ( gridMax[ d ] - gridMin[ d ] ) / cellSize[ d ] + 1 );
+				totalCells *= numCells[ d ];
+			}
+
+			if ( totalCells > maxNumCells )
+				for ( int d = 0; d < numDimensions; ++d )
+					cellSize[ d ] *= 2;
+		}
+		while ( totalCells > maxNumCells );
+
+		final ArrayList< ArrayList< Integer > > tmp = new ArrayList<>( (int)totalCells );
+
+		for ( int c = 0; c < totalCells; ++c )
+			tmp.add( null );
+
+		final long[] cellMin = new long[ numDimensions ];
+		final long[] cellMax = new long[ numDimensions ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final int id = i;
+
+			cellRange( min[ i ], max[ i ], cellMin, cellMax );
+			forEachCell( cellMin, cellMax, c -> {
+				if ( tmp.get( c ) == null )
+					tmp.set( c, new ArrayList<>() );
+				tmp.get( c ).add( id );
+			});
+		}
+
+		this.cells = new int[ (int)totalCells ][];
+
+		for ( int c = 0; c < totalCells; ++c )
+			if ( tmp.get( c ) != null )
+				cells[ c ] = tmp.get( c ).stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+	/**
+	 * @return the number of intervals in this index
+	 */
+	public int size() { return n; }
+
+	/**
+	 * @param id - the id of the interval
+	 * @return the interval with this id
+	 */
+	public Interval get( final int id ) { return new FinalInterval( min[ id ], max[ id ] ); }
+
+	/**
+	 * @param interval - the query interval
+	 * @return the sorted ids of all intervals that overlap with the query interval
+	 */
+	public int[] overlapping( final Interval interval )
+	{
+		if ( n == 0 )
+			return new int[ 0 ];
+
+		final int numDimensions = gridMin.length;
+		final long[] qMin = interval.minAsLongArray();
+		final long[] qMax = interval.maxAsLongArray();
+
+		// clip the query to the grid
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final long gridMax = gridMin[ d ] + numCells[ d ] * cellSize[ d ] - 1;
+
+			if ( qMax[ d ] < gridMin[ d ] || qMin[ d ] > gridMax )
+				return new int[ 0 ];
+		}
+
+		final long[] cellMin = new long[ numDimensions ];
+		final long[] cellMax = new long[ numDimensions ];
+
+		cellRange( qMin, qMax, cellMin, cellMax );
+
+		// we can be called from several threads at once (broadcast variable), so no shared state here
+		final BitSet found = new BitSet( n );
+
+		forEachCell( cellMin, cellMax, c -> {
+			if ( cells[ c ] != null )
+				for ( final int id : cells[ c ] )
+					if ( !found.get( id ) && overlaps( id, qMin, qMax ) )
+						found.set( id );
+		});
+
+		return found.stream().toArray();
+	}
+
+	protected boolean overlaps( final int id, final long[] qMin, final long[] qMax )
+	{
+		for ( int d = 0; d < qMin.length; ++d )
+			if ( max[ id ][ d ] < qMin[ d ] || min[ id ][ d ] > qMax[ d ] )
+				return false;
+
+		return true;
+	}
+
+	protected void cellRange( final long[] iMin, final long[] iMax, final long[] cellMin, final long[] cellMax )
+	{
+		for ( int d = 0; d < iMin.length; ++d )
+		{
+			cellMin[ d ] = Math.max( 0, Math.floorDiv( iMin[ d ] - gridMin[ d ], cellSize[ d ] ) );
+			cellMax[ d ] = Math.min( numCells[ d ] - 1, Math.floorDiv( iMax[ d ] - gridMin[ d ], cellSize[ d ] ) );
+		}
+	}
+
+	protected void forEachCell( final long[] cellMin, final long[] cellMax, final CellConsumer consumer )
+	{
+		final int numDimensions = cellMin.length;
+
+		for ( int d = 0; d < numDimensions; ++d )
+			if ( cellMax[ d ] < cellMin[ d ] )
+				return;
+
+		final long[] pos = cellMin.clone();
+
+		while ( true )
+		{
+			int index = 0;
+			for ( int d = numDimensions - 1; d >= 0; --d )
+				index = index * numCells[ d ] + (int)pos[ d ];
+
+			consumer.accept( index );
+
+			int d = 0;
+			for ( ; d < numDimensions; ++d )
+			{
+				if ( ++pos[ d ] <= cellMax[ d ] )
+					break;
+				pos[ d ] = cellMin[ d ];
+			}
+
+			if ( d == numDimensions )
+				return;
+		}
+	}
+
+	@FunctionalInterface
+	protected interface CellConsumer
+	{
+		void accept( int cell );
+	}
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe least-recently-used cache that is bounded by the (estimated) memory of its values.
+ *
+ * @param <V> - the cached values
+ */
+public class LRUCache< V >
+{
+	final long maxBytes;
+	final ToLongFunction< V > sizeInBytes;
+	final LinkedHashMap< String, V > cache = new LinkedHashMap<>( 16, 0.75f, true );
+
+	long bytes = 0;
+
+	/**
+	 * @param maxBytes - the maximal memory of all cached values
+	 * @param sizeInBytes - estimates the memory of a value
+	 */
+	public LRUCache( final long maxBytes, final ToLongFunction< V > sizeInBytes )
+	{
+		this.maxBytes = maxBytes;
+		this.sizeInBytes = sizeInBytes;
+	}
+
+	public synchronized V get( final String key )
+	{
+		return cache.get( key );
+	}
+
+	/**
+	 * Adds a value and evicts the least recently used values until it fits, values bigger than the cache are not added.
+	 *
+	 * @return how many entries were evicted
+	 */
+	public synchronized int put( final String key, final V value )
+	{
+		final long size = sizeInBytes.applyAsLong( value );
+
+		if ( size > maxBytes )
+			return 0;
+
+		final V previous = cache.put( key, value );
+
+		if ( previous != null )
+			bytes -= sizeInBytes.applyAsLong( previous );
+
+		bytes += size;
+
+		int evicted = 0;
+
+		// the iterator starts at the least recently used entry
+		for ( final Iterator< Entry< String, V > > it = cache.entrySet().iterator(); bytes > maxBytes && it.hasNext(); )
+		{
+			final Entry< String, V > entry = it.next();
+
+			if ( entry.getKey().equals( key ) )
+				continue;
+
+			bytes -= sizeInBytes.applyAsLong( entry.getValue() );
+			it.remove();
+			++evicted;
+		}
+
+		return evicted;
+	}
+}
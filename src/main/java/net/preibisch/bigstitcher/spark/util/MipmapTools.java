@@ -0,0 +1,245 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.N5Factory.StorageFormat;
+
+import bdv.img.n5.N5ImageLoader;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.process.downsampling.lazy.LazyHalfPixelDownsample2x;
+import scala.Tuple3;
+import util.Grid;
+import util.URITools;
+
+/**
+ * Writes a missing (coarser) mipmap level into a BDV-N5 dataset once, so that tasks that need this resolution
+ * can read it instead of downsampling the finer level virtually over and over again.
+ */
+public class MipmapTools
+{
+	public static String BDV_DOWNSAMPLING_FACTORS = "downsamplingFactors";
+
+	/**
+	 * Finds all ViewSetups where the requested downsampling is not stored, but can be appended as a new, coarsest level
+	 * (power-of-two factors relative to the current coarsest level). Only BDV-N5 datasets are supported.
+	 *
+	 * @param data - the SpimData2
+	 * @param viewIds - the views that will be processed
+	 * @param downsampleFactors - the requested downsampling
+	 * @return the relative downsampling from the coarsest stored level to the missing level for each ViewSetup id
+	 */
+	public static HashMap< Integer, int[] > findMissingLevels( final SpimData2 data, final Collection< ? extends ViewId > viewIds, final long[] downsampleFactors )
+	{
+		final HashMap< Integer, int[] > missing = new HashMap<>();
+		final BasicImgLoader imgLoader = data.getSequenceDescription().getImgLoader();
+
+		if ( Arrays.stream( downsampleFactors ).allMatch( f -> f <= 1 ) )
+			return missing;
+
+		if ( !N5ImageLoader.class.isInstance( imgLoader ) )
+		{
+			System.out.println( "Writing missing mipmap levels is only supported for BDV-N5 datasets, using virtual downsampling." );
+			return missing;
+		}
+
+		final N5ImageLoader n5ImageLoader = (N5ImageLoader)imgLoader;
+
+		for ( final int setupId : viewIds.stream().map( ViewId::getViewSetupId ).distinct().toArray( Integer[]::new ) )
+		{
+			final double[][] resolutions = n5ImageLoader.getSetupImgLoader( setupId ).getMipmapResolutions();
+
+			if ( Arrays.stream( resolutions ).anyMatch( r -> sameFactors( r, downsampleFactors ) ) )
+				continue;
+
+			final double[] coarsest = resolutions[ resolutions.length - 1 ];
+			final int[] relative = new int[ downsampleFactors.length ];
+
+			for ( int d = 0; d < relative.length; ++d )
+			{
+				final long f = Math.round( coarsest[ d ] );
+
+				if ( downsampleFactors[ d ] % f == 0 && Integer.bitCount( (int)( downsampleFactors[ d ] / f ) ) == 1 )
+					relative[ d ] = (int)( downsampleFactors[ d ] / f );
+				else
+					relative[ d ] = -1;
+			}
+
+			if ( Arrays.stream( relative ).anyMatch( r -> r < 1 ) )
+				System.out.println( "ViewSetup " + setupId + ": downsampling " + Util.printCoordinates( downsampleFactors ) + " is not stored and cannot be appended to the existing levels " +
+						Arrays.deepToString( resolutions ) + ", using virtual downsampling." );
+			else
+				missing.put( setupId, relative );
+		}
+
+		return missing;
+	}
+
+	/**
+	 * Writes the missing levels for all timepoints of the ViewSetups (distributed) and registers them in the BDV-N5 metadata
+	 * afterwards, so a failed run leaves the existing levels untouched. The imgloader of data is replaced so the new levels are visible.
+	 *
+	 * @param sc - the spark context
+	 * @param data - the SpimData2 with a N5ImageLoader
+	 * @param missing - the relative downsampling per ViewSetup (see {@link #findMissingLevels(SpimData2, Collection, long[])})
+	 * @param downsampleFactors - the (absolute) downsampling of the new level
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static void writeMissingLevels( final JavaSparkContext sc, final SpimData2 data, final Map< Integer, int[] > missing, final long[] downsampleFactors )
+	{
+		if ( missing.size() == 0 )
+			return;
+
+		final N5ImageLoader imgLoader = (N5ImageLoader)data.getSequenceDescription().getImgLoader();
+		final URI n5URI = imgLoader.getN5URI();
+		final N5Writer n5 = URITools.instantiateN5Writer( StorageFormat.N5, n5URI );
+
+		final HashMap< Integer, Integer > newLevel = new HashMap<>();
+		final ArrayList< Tuple3< String[], int[], long[][] > > jobs = new ArrayList<>();
+
+		for ( final Entry< Integer, int[] > entry : missing.entrySet() )
+		{
+			final int setupId = entry.getKey();
+			final int level = imgLoader.getSetupImgLoader( setupId ).getMipmapResolutions().length;
+
+			newLevel.put( setupId, level );
+
+			for ( final TimePoint tp : data.getSequenceDescription().getTimePoints().getTimePointsOrdered() )
+			{
+				final ViewDescription vd = data.getSequenceDescription().getViewDescription( tp.getId(), setupId );
+
+				if ( vd == null || !vd.isPresent() )
+					continue;
+
+				final String datasetIn = dataset( setupId, tp.getId(), level - 1 );
+				final String datasetOut = dataset( setupId, tp.getId(), level );
+
+				final DatasetAttributes attributes = n5.getDatasetAttributes( datasetIn );
+				final int[] blockSize = attributes.getBlockSize();
+
+				final long[] dim = attributes.getDimensions().clone();
+				for ( int d = 0; d < dim.length; ++d )
+					dim[ d ] /= entry.getValue()[ d ];
+
+				n5.createDataset( datasetOut, dim, blockSize, attributes.getDataType(), attributes.getCompression() );
+				n5.setAttribute( datasetOut, BDV_DOWNSAMPLING_FACTORS, Arrays.stream( downsampleFactors ).mapToInt( f -> (int)f ).toArray() );
+
+				final String[] datasets = new String[] { datasetIn, datasetOut };
+
+				// compute 4x4x1 blocks per task, write single blocks
+				for ( final long[][] gridBlock : Grid.create( dim, new int[] { blockSize[ 0 ] * 4, blockSize[ 1 ] * 4, blockSize[ 2 ] }, blockSize ) )
+					jobs.add( new Tuple3<>( datasets, entry.getValue(), gridBlock ) );
+			}
+
+			System.out.println( "ViewSetup " + setupId + ": writing missing level s" + level + " (downsampling " + Util.printCoordinates( downsampleFactors ) +
+					", relative " + Util.printCoordinates( entry.getValue() ) + ")" );
+		}
+
+		final long time = System.currentTimeMillis();
+
+		System.out.println( "Writing missing mipmap levels, number of compute blocks: " + jobs.size() );
+
+		final JavaRDD< Tuple3< String[], int[], long[][] > > rdd = sc.parallelize( jobs, Math.max( 1, jobs.size() ) );
+
+		rdd.foreach( job ->
+		{
+			final N5Writer n5Lcl = URITools.instantiateN5Writer( StorageFormat.N5, n5URI );
+			final int[] relative = job._2();
+			final long[][] gridBlock = job._3();
+
+			final DatasetAttributes attributes = n5Lcl.getDatasetAttributes( job._1()[ 0 ] );
+			final int[] blockSize = attributes.getBlockSize();
+			final RealType type = (RealType)DataTypeUtil.toType( attributes.getDataType() );
+
+			RandomAccessibleInterval downsampled = N5Utils.open( n5Lcl, job._1()[ 0 ] );
+
+			for ( int d = 0; d < downsampled.numDimensions(); ++d )
+				for ( int f = relative[ d ]; f > 1; f /= 2 )
+					downsampled = LazyHalfPixelDownsample2x.init(
+						downsampled,
+						new FinalInterval( downsampled ),
+						(RealType & NativeType)type,
+						blockSize,
+						d );
+
+			final RandomAccessibleInterval sourceGridBlock = Views.offsetInterval( downsampled, gridBlock[0], gridBlock[1] );
+			N5Utils.saveNonEmptyBlock( sourceGridBlock, n5Lcl, job._1()[ 1 ], gridBlock[2], (RealType & NativeType)type );
+
+			n5Lcl.close();
+		});
+
+		// only now register the new levels, so the BDV-N5 stays valid if writing fails
+		for ( final Entry< Integer, Integer > entry : newLevel.entrySet() )
+		{
+			final String setupGroup = "setup" + entry.getKey();
+			final double[][] resolutions = n5.getAttribute( setupGroup, BDV_DOWNSAMPLING_FACTORS, double[][].class );
+
+			final double[][] newResolutions = Arrays.copyOf( resolutions, resolutions.length + 1 );
+			newResolutions[ resolutions.length ] = Arrays.stream( downsampleFactors ).asDoubleStream().toArray();
+
+			n5.setAttribute( setupGroup, BDV_DOWNSAMPLING_FACTORS, newResolutions );
+		}
+
+		n5.close();
+
+		// a new imgloader reads the updated metadata
+		data.getSequenceDescription().setImgLoader( new N5ImageLoader( n5URI, data.getSequenceDescription() ) );
+
+		System.out.println( "Wrote missing mipmap levels, took " + ( System.currentTimeMillis() - time ) + " ms." );
+	}
+
+	public static String dataset( final int setupId, final int timepointId, final int level )
+	{
+		return "setup" + setupId + "/timepoint" + timepointId + "/s" + level;
+	}
+
+	protected static boolean sameFactors( final double[] resolution, final long[] downsampleFactors )
+	{
+		for ( int d = 0; d < downsampleFactors.length; ++d )
+			if ( Math.round( resolution[ d ] ) != downsampleFactors[ d ] )
+				return false;
+
+		return true;
+	}
+}
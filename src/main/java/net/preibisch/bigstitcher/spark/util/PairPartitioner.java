@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import scala.Tuple2;
+
+/**
+ * Distributes pairwise tasks (matching, stitching) so that pairs sharing views end up in the same Spark partition.
+ * Every pair is placed at the midpoint of its two views in world space and the pairs are split by recursive coordinate
+ * bisection into partitions of roughly equal estimated cost. Since neighboring pairs share views, each view is loaded
+ * on few executors, which is where the per-executor caches pay off.
+ */
+public class PairPartitioner extends Partitioner
+{
+	private static final long serialVersionUID = -1968326574203935466L;
+
+	final int numPartitions;
+
+	public PairPartitioner( final int numPartitions )
+	{
+		this.numPartitions = numPartitions;
+	}
+
+	@Override
+	public int numPartitions() { return numPartitions; }
+
+	@Override
+	public int getPartition( final Object key ) { return (Integer)key; }
+
+	/**
+	 * @param sc - the spark context
+	 * @param tasks - the pairwise tasks
+	 * @param positions - the location of each task in world coordinates
+	 * @param costs - the estimated cost of each task
+	 * @param numPartitions - the number of partitions
+	 * @return an RDD where every partition contains spatially close tasks of about equal total cost
+	 */
+	public static < T > JavaRDD< T > parallelize(
+			final JavaSparkContext sc,
+			final List< T > tasks,
+			final List< double[] > positions,
+			final double[] costs,
+			final int numPartitions )
+	{
+		final int n = Math.max( 1, Math.min( numPartitions, tasks.size() ) );
+		final int[] partition = bisect( positions, costs, n );
+
+		final ArrayList< Tuple2< Integer, T > > keyed = new ArrayList<>( tasks.size() );
+
+		for ( int i = 0; i < tasks.size(); ++i )
+			keyed.add( new Tuple2<>( partition[ i ], tasks.get( i ) ) );
+
+		final double[] partitionCosts = new double[ n ];
+		for ( int i = 0; i < costs.length; ++i )
+			partitionCosts[ partition[ i ] ] += costs[ i ];
+
+		System.out.println( "Distributed " + tasks.size() + " pairs into " + n + " partitions by location, estimated cost per partition: min=" +
+				Arrays.stream( partitionCosts ).min().getAsDouble() + ", max=" + Arrays.stream( partitionCosts ).max().getAsDouble() );
+
+		return sc.parallelizePairs( keyed, n ).partitionBy( new PairPartitioner( n ) ).values();
+	}
+
+	/**
+	 * Recursive coordinate bisection: split along the axis of largest extent such that the cost on both sides
+	 * is proportional to the number of partitions each side gets.
+	 *
+	 * @param positions - the location of each element
+	 * @param costs - the cost of each element
+	 * @param numPartitions - the number of partitions
+	 * @return the partition of each element
+	 */
+	public static int[] bisect( final List< double[] > positions, final double[] costs, final int numPartitions )
+	{
+		final int[] partition = new int[ positions.size() ];
+		final Integer[] indices = new Integer[ positions.size() ];
+
+		for ( int i = 0; i < indices.length; ++i )
+			indices[ i ] = i;
+
+		bisect( positions, costs, indices, 0, indices.length, 0, numPartitions, partition );
+
+		return partition;
+	}
+
+	protected static void bisect(
+			final List< double[] > positions,
+			final double[] costs,
+			final Integer[] indices,
+			final int from,
+			final int to,
+			final int firstPartition,
+			final int numPartitions,
+			final int[] partition )
+	{
+		if ( numPartitions == 1 || to - from <= 1 )
+		{
+			for ( int i = from; i < to; ++i )
+				partition[ indices[ i ] ] = firstPartition;
+
+			return;
+		}
+
+		// the axis with the largest extent
+		final int numDimensions = positions.get( indices[ from ] ).length;
+		int axis = 0;
+		double maxExtent = -1;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+
+			for ( int i = from; i < to; ++i )
+			{
+				min = Math.min( min, positions.get( indices[ i ] )[ d ] );
+				max = Math.max( max, positions.get( indices[ i ] )[ d ] );
+			}
+
+			if ( max - min > maxExtent )
+			{
+				maxExtent = max - min;
+				axis = d;
+			}
+		}
+
+		final int a = axis;
+		Arrays.sort( indices, from, to, Comparator.comparingDouble( i -> positions.get( i )[ a ] ) );
+
+		// split where the cost of the left side reaches its share
+		final int leftPartitions = numPartitions / 2;
+
+		double total = 0;
+		for ( int i = from; i < to; ++i )
+			total += costs[ indices[ i ] ];
+
+		final double target = total * leftPartitions / numPartitions;
+
+		int split = from;
+		double sum = 0;
+
+		while ( split < to - 1 && sum + costs[ indices[ split ] ] / 2 < target )
+			sum += costs[ indices[ split++ ] ];
+
+		split = Math.max( from + 1, split );
+
+		bisect( positions, costs, indices, from, split, firstPartition, leftPartitions, partition );
+		bisect( positions, costs, indices, split, to, firstPartition + leftPartitions, numPartitions - leftPartitions, partition );
+	}
+
+	/**
+	 * @param data - the SpimData2
+	 * @param views - the views (e.g. of a group)
+	 * @return the bounding box of all views in world coordinates
+	 */
+	public static Interval boundingBox( final SpimData2 data, final Collection< ? extends ViewId > views )
+	{
+		Interval bb = null;
+
+		for ( final ViewId viewId : views )
+		{
+			final Interval v = ViewUtil.getTransformedBoundingBox( data, viewId );
+			bb = ( bb == null ) ? v : Intervals.union( bb, v );
+		}
+
+		return bb;
+	}
+
+	/**
+	 * @return the midpoint between the centers of both bounding boxes
+	 */
+	public static double[] position( final Interval a, final Interval b )
+	{
+		final double[] p = new double[ a.numDimensions() ];
+
+		for ( int d = 0; d < p.length; ++d )
+			p[ d ] = ( a.min( d ) + a.max( d ) + b.min( d ) + b.max( d ) ) / 4.0;
+
+		return p;
+	}
+
+	/**
+	 * @return the volume of the intersection of both bounding boxes (at least 1)
+	 */
+	public static double overlapVolume( final Interval a, final Interval b )
+	{
+		final FinalInterval intersection = Intervals.intersect( a, b );
+
+		return Intervals.isEmpty( intersection ) ? 1 : Math.max( 1, Intervals.numElements( intersection ) );
+	}
+}
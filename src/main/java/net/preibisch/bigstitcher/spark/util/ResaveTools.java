@@ -0,0 +1,958 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.apache.spark.util.LongAccumulator;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.process.downsampling.lazy.LazyHalfPixelDownsample2x;
+import net.preibisch.mvrecon.process.n5api.N5ApiTools;
+import net.preibisch.mvrecon.process.n5api.N5ApiTools.MultiResolutionLevelInfo;
+
+/**
+ * Resaving of s0 compute blocks that also writes all pyramid levels that are fully contained in the
+ * compute block from memory (one pass), instead of reading them back from storage level by level.
+ *
+ * Each storage block of level l is computed from its (up to 2x2x2) children of level l-1, which are
+ * computed recursively, so only a few storage blocks per level are in memory at any time.
+ */
+public class ResaveTools
+{
+	// the group inside the container where the manifest (checksums of completed compute blocks) is stored
+	public static final String manifestGroup = "bigstitcher-spark-resave";
+
+	/**
+	 * @param dataType - the datatype of the dataset
+	 * @return true if blocks of this datatype are stored unchanged and can be written by this class
+	 */
+	public static boolean isSupported( final DataType dataType )
+	{
+		return dataType == DataType.UINT8 || dataType == DataType.UINT16 || dataType == DataType.FLOAT32;
+	}
+
+	/**
+	 * Determines how many downsampling levels (after s0) can be computed in memory from a single compute block,
+	 * which requires that the compute block contains whole storage blocks of that level (i.e. blockScale is divisible
+	 * by the absolute downsampling) and that every relative downsampling step is a factor of 1 or 2.
+	 *
+	 * @param blockScale - how many storage blocks make up a compute block
+	 * @param downsamplings - absolute downsampling factors, the first one is [1,1,1]
+	 * @param dataType - the datatype of the dataset
+	 * @return the last level that can be computed in memory (0 means only s0)
+	 */
+	public static int numInMemoryLevels( final int[] blockScale, final int[][] downsamplings, final DataType dataType )
+	{
+		if ( !isSupported( dataType ) )
+			return 0;
+
+		int lastLevel = 0;
+
+		for ( int l = 1; l < downsamplings.length; ++l )
+		{
+			for ( int d = 0; d < blockScale.length; ++d )
+			{
+				final int abs = downsamplings[ l ][ d ];
+				final int rel = abs / downsamplings[ l - 1 ][ d ];
+
+				if ( rel * downsamplings[ l - 1 ][ d ] != abs || rel > 2 || blockScale[ d ] % abs != 0 )
+					return lastLevel;
+			}
+
+			lastLevel = l;
+		}
+
+		return lastLevel;
+	}
+
+	/**
+	 * Resaves one s0 compute block and writes all levels up to lastLevel that fall into it.
+	 *
+	 * @param data - the input data
+	 * @param n5 - the writer
+	 * @param is5d - if the datasets are 5d (OME-ZARR) or 3d (N5)
+	 * @param mrInfo - the multiresolution info of the view this block belongs to
+	 * @param lastLevel - the last level to compute in memory (see numInMemoryLevels)
+	 * @param gridBlock - the s0 compute block as created by N5ApiTools.assembleJobs
+	 * @param backgroundThreshold - storage blocks that are background (see isBackground) are not written, null writes all blocks
+	 * @param skippedBlocks - counts the storage blocks that were not written (can be null)
+	 * @return the checksum of the data written for each level [0...lastLevel]
+	 */
+	public static < T extends RealType< T > & NativeType< T > > long[] resaveS0BlockWithPyramid(
+			final SpimData2 data,
+			final N5Writer n5,
+			final boolean is5d,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final int lastLevel,
+			final long[][] gridBlock,
+			final Double backgroundThreshold,
+			final LongAccumulator skippedBlocks )
+	{
+		final RandomAccessibleInterval< T > img = openSource( data, gridBlock );
+		final T type = DataTypeUtil.toType( mrInfo[ 0 ].dataType );
+
+		final long[][][] footprints = footprints( gridBlock, mrInfo, lastLevel );
+		final int top = topLevel( footprints );
+		final long[] checksums = new long[ lastLevel + 1 ];
+
+		// iterate all storage blocks of the top level in the footprint of the compute block
+		forEachBlock( footprints[ top ], mrInfo[ top ].blockSize, o -> computeAndWrite( img, type, n5, is5d, mrInfo, footprints, top, o, backgroundThreshold, skippedBlocks, checksums ) );
+
+		return checksums;
+	}
+
+	/**
+	 * Computes the checksum of the s0 compute block from the source data.
+	 *
+	 * @param data - the input data
+	 * @param mrInfo - the multiresolution info of the view this block belongs to
+	 * @param gridBlock - the s0 compute block as created by N5ApiTools.assembleJobs
+	 * @param backgroundThreshold - storage blocks that are background (see isBackground) count as all zero, can be null
+	 * @return the checksum
+	 */
+	public static < T extends RealType< T > & NativeType< T > > long sourceChecksum(
+			final SpimData2 data,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final long[][] gridBlock,
+			final Double backgroundThreshold )
+	{
+		final RandomAccessibleInterval< T > img = openSource( data, gridBlock );
+
+		return levelChecksum( img, footprints( gridBlock, mrInfo, 0 )[ 0 ], mrInfo[ 0 ], backgroundThreshold );
+	}
+
+	/**
+	 * Computes the checksums of all levels [0...lastLevel] of the s0 compute block from what was written.
+	 *
+	 * @param n5 - the reader
+	 * @param is5d - if the datasets are 5d (OME-ZARR) or 3d (N5)
+	 * @param mrInfo - the multiresolution info of the view this block belongs to
+	 * @param lastLevel - the last level that was computed in memory
+	 * @param gridBlock - the s0 compute block as created by N5ApiTools.assembleJobs
+	 * @return the checksum of the data that is stored for each level [0...lastLevel]
+	 */
+	public static < T extends RealType< T > & NativeType< T > > long[] writtenChecksums(
+			final N5Reader n5,
+			final boolean is5d,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final int lastLevel,
+			final long[][] gridBlock )
+	{
+		final long[][][] footprints = footprints( gridBlock, mrInfo, lastLevel );
+		final int top = topLevel( footprints );
+		final long[] checksums = new long[ lastLevel + 1 ];
+
+		for ( int l = 0; l <= top; ++l )
+		{
+			RandomAccessibleInterval< T > img = N5Utils.open( n5, mrInfo[ l ].dataset );
+
+			if ( is5d )
+				img = Views.hyperSlice( Views.hyperSlice( img, 4, 0 ), 3, 0 );
+
+			checksums[ l ] = levelChecksum( img, footprints[ l ], mrInfo[ l ], null );
+		}
+
+		return checksums;
+	}
+
+	/**
+	 * Checks that a compute block is recorded in the manifest and that what is stored matches the recorded
+	 * checksums (if any were recorded). For datatypes that are stored unchanged (UINT8, UINT16, FLOAT32), s0 is
+	 * also compared against the source data.
+	 *
+	 * @param data - the input data
+	 * @param n5 - the reader
+	 * @param is5d - if the datasets are 5d (OME-ZARR) or 3d (N5)
+	 * @param mrInfo - the multiresolution info of the view this block belongs to
+	 * @param gridBlock - the s0 compute block as created by N5ApiTools.assembleJobs
+	 * @param backgroundThreshold - the threshold that was used for writing, can be null
+	 * @return true if the compute block is correct
+	 */
+	public static boolean verifyBlock(
+			final SpimData2 data,
+			final N5Reader n5,
+			final boolean is5d,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final long[][] gridBlock,
+			final Double backgroundThreshold )
+	{
+		final long[] recorded = readManifest( n5, gridBlock );
+
+		if ( recorded == null )
+			return false;
+
+		// other datatypes are converted when written
+		if ( !isSupported( mrInfo[ 0 ].dataType ) )
+			return true;
+
+		final long[] written = writtenChecksums( n5, is5d, mrInfo, Math.max( 0, recorded.length - 1 ), gridBlock );
+
+		if ( recorded.length > 0 && !Arrays.equals( recorded, written ) )
+			return false;
+
+		return sourceChecksum( data, mrInfo, gridBlock, backgroundThreshold ) == written[ 0 ];
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< T > openSource( final SpimData2 data, final long[][] gridBlock )
+	{
+		final ViewId viewId = N5ApiTools.gridBlockToViewId( gridBlock );
+
+		return (RandomAccessibleInterval< T >)data.getSequenceDescription().getImgLoader().getSetupImgLoader(
+				viewId.getViewSetupId() ).getImage( viewId.getTimePointId() );
+	}
+
+	/**
+	 * @return the sum of the checksums of all storage blocks of a level in the footprint
+	 */
+	protected static < T extends RealType< T > > long levelChecksum( final RandomAccessibleInterval< T > img, final long[][] footprint, final MultiResolutionLevelInfo mrInfo, final Double backgroundThreshold )
+	{
+		final int[] blockSize = mrInfo.blockSize;
+		final long[] dim = dimensions( mrInfo );
+		final long[] checksum = new long[ 1 ];
+
+		forEachBlock( footprint, blockSize, o ->
+		{
+			final long[] size = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				size[ d ] = Math.min( blockSize[ d ], dim[ d ] - o[ d ] );
+
+			final RandomAccessibleInterval< T > block = Views.interval( img, Intervals.translate( new FinalInterval( size ), o ) );
+
+			if ( isBackground( block, backgroundThreshold ) )
+				checksum[ 0 ] += checksum( block, o, true );
+			else
+				checksum[ 0 ] += checksum( block, o );
+		});
+
+		return checksum[ 0 ];
+	}
+
+	/**
+	 * A 64 bit checksum (FNV-1a of the pixel values in flat iteration order) of a storage block mixed with its
+	 * offset, such that checksums of several blocks can simply be added up in any order.
+	 *
+	 * @param block - the storage block
+	 * @param offset - the offset of the block
+	 * @return the checksum
+	 */
+	public static < T extends RealType< T > > long checksum( final RandomAccessibleInterval< T > block, final long[] offset )
+	{
+		return checksum( block, offset, false );
+	}
+
+	/**
+	 * @param zero - compute the checksum as if all pixels were 0 (i.e. how a block that is not written is read)
+	 */
+	protected static < T extends RealType< T > > long checksum( final RandomAccessibleInterval< T > block, final long[] offset, final boolean zero )
+	{
+		long hash = 0xcbf29ce484222325L;
+
+		for ( final long o : offset )
+			hash = ( hash ^ o ) * 0x100000001b3L;
+
+		final long zeroBits = Double.doubleToLongBits( 0.0 );
+
+		for ( final T t : Views.flatIterable( block ) )
+			hash = ( hash ^ ( zero ? zeroBits : Double.doubleToLongBits( t.getRealDouble() ) ) ) * 0x100000001b3L;
+
+		return hash;
+	}
+
+	/**
+	 * A storage block is background if its maximum is at or below the threshold, or if it is all zero.
+	 * Background blocks are not written, readers treat missing blocks as all zero.
+	 *
+	 * @param block - the storage block
+	 * @param backgroundThreshold - the threshold, null means no block is background
+	 * @return if the block is background
+	 */
+	public static < T extends RealType< T > > boolean isBackground( final RandomAccessibleInterval< T > block, final Double backgroundThreshold )
+	{
+		if ( backgroundThreshold == null )
+			return false;
+
+		final double threshold = backgroundThreshold;
+		boolean allZero = true;
+		boolean belowThreshold = true;
+
+		for ( final T t : Views.iterable( block ) )
+		{
+			final double v = t.getRealDouble();
+
+			if ( v != 0 )
+				allZero = false;
+
+			if ( v > threshold )
+				belowThreshold = false;
+
+			if ( !allZero && !belowThreshold )
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the region [min, end) that the compute block covers at each level [0...lastLevel]
+	 */
+	protected static long[][][] footprints( final long[][] gridBlock, final MultiResolutionLevelInfo[] mrInfo, final int lastLevel )
+	{
+		// the compute block at level 0
+		final long[] cbMin = gridBlock[ 0 ];
+		final long[] cbEnd = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+			cbEnd[ d ] = cbMin[ d ] + gridBlock[ 1 ][ d ];
+
+		final long[][][] footprints = new long[ lastLevel + 1 ][][];
+
+		for ( int l = 0; l <= lastLevel; ++l )
+			footprints[ l ] = footprint( cbMin, cbEnd, mrInfo, l );
+
+		return footprints;
+	}
+
+	/**
+	 * @return the top level that is not empty for this compute block
+	 */
+	protected static int topLevel( final long[][][] footprints )
+	{
+		int top = footprints.length - 1;
+
+		while ( top > 0 && isEmpty( footprints[ top ] ) )
+			--top;
+
+		return top;
+	}
+
+	/**
+	 * Calls the consumer for the offset of every storage block in the footprint.
+	 */
+	protected static void forEachBlock( final long[][] footprint, final int[] blockSize, final Consumer< long[] > consumer )
+	{
+		if ( isEmpty( footprint ) )
+			return;
+
+		final long[] o = footprint[ 0 ].clone();
+
+		while ( true )
+		{
+			consumer.accept( o.clone() );
+
+			int d = 0;
+			for ( ; d < 3; ++d )
+			{
+				o[ d ] += blockSize[ d ];
+				if ( o[ d ] < footprint[ 1 ][ d ] )
+					break;
+				o[ d ] = footprint[ 0 ][ d ];
+			}
+
+			if ( d == 3 )
+				break;
+		}
+	}
+
+	/**
+	 * Computes (and writes) one storage block of a certain level from its children, and returns it.
+	 * A block covers the children [offset * rel, (offset + blockSize) * rel) of the level below, the last
+	 * block of the footprint also covers what is left until the end of the footprint of the level below
+	 * (at the end of the image the dimensions are rounded down when downsampling).
+	 *
+	 * @param footprints - the region [min, end) that the compute block covers at each level
+	 * @param level - the level of the block
+	 * @param offset - offset of the storage block at this level
+	 * @param backgroundThreshold - background blocks are set to zero and not written, can be null
+	 * @param skippedBlocks - counts the blocks that were not written, can be null
+	 * @param checksums - the checksum of the block is added to the checksum of its level
+	 * @return the storage block
+	 */
+	protected static < T extends RealType< T > & NativeType< T > > Img< T > computeAndWrite(
+			final RandomAccessibleInterval< T > img,
+			final T type,
+			final N5Writer n5,
+			final boolean is5d,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final long[][][] footprints,
+			final int level,
+			final long[] offset,
+			final Double backgroundThreshold,
+			final LongAccumulator skippedBlocks,
+			final long[] checksums )
+	{
+		final int[] blockSize = mrInfo[ level ].blockSize;
+		final long[] dim = dimensions( mrInfo[ level ] );
+
+		// the actual storage block
+		final long[] size = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			size[ d ] = Math.min( blockSize[ d ], dim[ d ] - offset[ d ] );
+
+		final Img< T > block = new ArrayImgFactory<>( type ).create( size );
+
+		if ( level == 0 )
+		{
+			final RandomAccessibleInterval< T > source =
+					Views.zeroMin( Views.interval( img, Intervals.translate( new FinalInterval( size ), offset ) ) );
+
+			LoopBuilder.setImages( source, block ).forEachPixel( ( i, o ) -> o.set( i ) );
+		}
+		else
+		{
+			final int[] rel = mrInfo[ level ].relativeDownsampling;
+			final int[] childBlockSize = mrInfo[ level - 1 ].blockSize;
+
+			// region at level - 1 that contains all children of this block
+			final long[] regionMin = new long[ 3 ];
+			final long[] regionSize = new long[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				regionMin[ d ] = offset[ d ] * rel[ d ];
+
+				final long regionEnd =
+						( offset[ d ] + blockSize[ d ] >= footprints[ level ][ 1 ][ d ] ) ?
+								footprints[ level - 1 ][ 1 ][ d ] : ( offset[ d ] + blockSize[ d ] ) * rel[ d ];
+
+				regionSize[ d ] = regionEnd - regionMin[ d ];
+			}
+
+			final Img< T > region = new ArrayImgFactory<>( type ).create( regionSize );
+
+			// compute all children (they are aligned with the region)
+			final long[][] childFootprint = new long[ 2 ][ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				childFootprint[ 0 ][ d ] = regionMin[ d ];
+				childFootprint[ 1 ][ d ] = regionMin[ d ] + regionSize[ d ];
+			}
+
+			forEachBlock( childFootprint, childBlockSize, c ->
+			{
+				final Img< T > child = computeAndWrite( img, type, n5, is5d, mrInfo, footprints, level - 1, c, backgroundThreshold, skippedBlocks, checksums );
+
+				final long[] childOffset = new long[ 3 ];
+				for ( int d = 0; d < 3; ++d )
+					childOffset[ d ] = c[ d ] - regionMin[ d ];
+
+				LoopBuilder.setImages(
+						child,
+						Views.zeroMin( Views.interval( region, Intervals.translate( new FinalInterval( child ), childOffset ) ) ) )
+				.forEachPixel( ( i, o ) -> o.set( i ) );
+			});
+
+			// downsample exactly the part of the region that maps to this block
+			final long[] usedSize = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				usedSize[ d ] = size[ d ] * rel[ d ];
+
+			RandomAccessibleInterval< T > downsampled = Views.interval( region, new FinalInterval( usedSize ) );
+
+			for ( int d = 0; d < 3; ++d )
+				if ( rel[ d ] > 1 )
+					downsampled = LazyHalfPixelDownsample2x.init(
+							downsampled,
+							new FinalInterval( downsampled ),
+							type.createVariable(),
+							blockSize,
+							d );
+
+			LoopBuilder.setImages( Views.zeroMin( downsampled ), block ).forEachPixel( ( i, o ) -> o.set( i ) );
+		}
+
+		if ( isBackground( block, backgroundThreshold ) )
+		{
+			// what is computed from this block must be identical to what is computed from the stored (missing) block
+			block.forEach( t -> t.setZero() );
+
+			// a block from a previous run into the same container would otherwise remain
+			deleteBlock( n5, is5d, mrInfo[ level ].dataset, offset, blockSize );
+
+			if ( skippedBlocks != null )
+				skippedBlocks.add( 1 );
+		}
+		else
+		{
+			writeBlock( block, n5, is5d, mrInfo[ level ].dataset, offset, blockSize );
+		}
+
+		checksums[ level ] += checksum( block, offset );
+
+		return block;
+	}
+
+	/**
+	 * @param mrInfo - the multiresolution info of the level to write
+	 * @return true if writeDownsampledBlock supports this level
+	 */
+	public static boolean canWriteDownsampledBlock( final MultiResolutionLevelInfo mrInfo )
+	{
+		if ( !isSupported( mrInfo.dataType ) )
+			return false;
+
+		for ( int d = 0; d < 3; ++d )
+			if ( mrInfo.relativeDownsampling[ d ] > 2 )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Writes all storage blocks of a compute block of a downsampling level (computed from the previous level that is
+	 * already stored), skipping the background blocks. Only relative downsampling factors of 1 or 2 are supported
+	 * (see canWriteDownsampledBlock).
+	 *
+	 * @param n5 - the writer
+	 * @param is5d - if the datasets are 5d (OME-ZARR) or 3d (N5)
+	 * @param mrInfo - the multiresolution info of the level to write
+	 * @param mrInfoPreviousScale - the multiresolution info of the level below
+	 * @param gridBlock - the compute block as created by N5ApiTools.assembleJobs
+	 * @param backgroundThreshold - storage blocks that are background (see isBackground) are not written, can be null
+	 * @param skippedBlocks - counts the storage blocks that were not written (can be null)
+	 */
+	public static < T extends RealType< T > & NativeType< T > > void writeDownsampledBlock(
+			final N5Writer n5,
+			final boolean is5d,
+			final MultiResolutionLevelInfo mrInfo,
+			final MultiResolutionLevelInfo mrInfoPreviousScale,
+			final long[][] gridBlock,
+			final Double backgroundThreshold,
+			final LongAccumulator skippedBlocks )
+	{
+		final T type = DataTypeUtil.toType( mrInfo.dataType );
+		final int[] blockSize = mrInfo.blockSize;
+		final long[] dim = dimensions( mrInfo );
+
+		RandomAccessibleInterval< T > downsampled = N5Utils.open( n5, mrInfoPreviousScale.dataset );
+
+		if ( is5d )
+			downsampled = Views.hyperSlice( Views.hyperSlice( downsampled, 4, 0 ), 3, 0 );
+
+		for ( int d = 0; d < 3; ++d )
+			if ( mrInfo.relativeDownsampling[ d ] > 1 )
+				downsampled = LazyHalfPixelDownsample2x.init(
+						downsampled,
+						new FinalInterval( downsampled ),
+						type.createVariable(),
+						blockSize,
+						d );
+
+		final RandomAccessibleInterval< T > source = downsampled;
+
+		final long[][] footprint = new long[ 2 ][ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			footprint[ 0 ][ d ] = gridBlock[ 0 ][ d ];
+			footprint[ 1 ][ d ] = Math.min( dim[ d ], gridBlock[ 0 ][ d ] + gridBlock[ 1 ][ d ] );
+		}
+
+		forEachBlock( footprint, blockSize, o ->
+		{
+			final long[] size = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				size[ d ] = Math.min( blockSize[ d ], dim[ d ] - o[ d ] );
+
+			final Img< T > block = new ArrayImgFactory<>( type ).create( size );
+
+			LoopBuilder.setImages(
+					Views.zeroMin( Views.interval( source, Intervals.translate( new FinalInterval( size ), o ) ) ),
+					block ).forEachPixel( ( i, out ) -> out.set( i ) );
+
+			if ( isBackground( block, backgroundThreshold ) )
+			{
+				deleteBlock( n5, is5d, mrInfo.dataset, o, blockSize );
+
+				if ( skippedBlocks != null )
+					skippedBlocks.add( 1 );
+			}
+			else
+			{
+				writeBlock( block, n5, is5d, mrInfo.dataset, o, blockSize );
+			}
+		});
+	}
+
+	public static < T extends RealType< T > & NativeType< T > > void writeBlock(
+			final RandomAccessibleInterval< T > block,
+			final N5Writer n5,
+			final boolean is5d,
+			final String dataset,
+			final long[] offset,
+			final int[] blockSize )
+	{
+		if ( is5d )
+			N5Utils.saveBlock( Views.addDimension( Views.addDimension( block, 0, 0 ), 0, 0 ), n5, dataset, gridPosition( is5d, offset, blockSize ) );
+		else
+			N5Utils.saveBlock( block, n5, dataset, gridPosition( is5d, offset, blockSize ) );
+	}
+
+	/**
+	 * Removes a storage block (if it exists), readers treat missing blocks as zero.
+	 */
+	public static void deleteBlock(
+			final N5Writer n5,
+			final boolean is5d,
+			final String dataset,
+			final long[] offset,
+			final int[] blockSize )
+	{
+		n5.deleteBlock( dataset, gridPosition( is5d, offset, blockSize ) );
+	}
+
+	protected static long[] gridPosition( final boolean is5d, final long[] offset, final int[] blockSize )
+	{
+		if ( is5d )
+			return new long[] { offset[ 0 ] / blockSize[ 0 ], offset[ 1 ] / blockSize[ 1 ], offset[ 2 ] / blockSize[ 2 ], 0, 0 };
+		else
+			return new long[] { offset[ 0 ] / blockSize[ 0 ], offset[ 1 ] / blockSize[ 1 ], offset[ 2 ] / blockSize[ 2 ] };
+	}
+
+	/**
+	 * @return the region [min, end) of a level that is covered by the compute block [cbMin, cbEnd) of level 0
+	 */
+	protected static long[][] footprint( final long[] cbMin, final long[] cbEnd, final MultiResolutionLevelInfo[] mrInfo, final int level )
+	{
+		final int[] abs = mrInfo[ level ].absoluteDownsampling;
+		final long[] dim = dimensions( mrInfo[ level ] );
+		final long[][] f = new long[ 2 ][ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			f[ 0 ][ d ] = cbMin[ d ] / abs[ d ];
+
+			// at the end of the image, the compute block covers everything that is left
+			f[ 1 ][ d ] = ( cbEnd[ d ] >= dimensions( mrInfo[ 0 ] )[ d ] ) ? dim[ d ] : Math.min( dim[ d ], cbEnd[ d ] / abs[ d ] );
+		}
+
+		return f;
+	}
+
+	protected static boolean isEmpty( final long[][] f )
+	{
+		for ( int d = 0; d < 3; ++d )
+			if ( f[ 1 ][ d ] <= f[ 0 ][ d ] )
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Groups the s0 compute blocks into tasks so that each task only contains blocks of a single view (and thus
+	 * source file), which are sorted in z-order (Morton order) for locality of the reads.
+	 *
+	 * @param grid - all s0 compute blocks as created by N5ApiTools.assembleJobs
+	 * @param blockScale - how many storage blocks make up a compute block
+	 * @param numTasks - the approximate number of tasks to create
+	 * @return the compute blocks grouped into tasks
+	 */
+	public static ArrayList< ArrayList< long[][] > > groupByViewInZOrder( final List< long[][] > grid, final int[] blockScale, final int numTasks )
+	{
+		final int maxBlocksPerTask = Math.max( 1, (int)Math.ceil( grid.size() / (double)Math.max( 1, numTasks ) ) );
+
+		// sort by view, then by z-order of the compute block
+		final ArrayList< long[][] > sorted = new ArrayList<>( grid );
+
+		sorted.sort( Comparator
+				.comparingInt( ( long[][] b ) -> N5ApiTools.gridBlockToViewId( b ).getTimePointId() )
+				.thenComparingInt( b -> N5ApiTools.gridBlockToViewId( b ).getViewSetupId() )
+				.thenComparingLong( b -> zOrder( b[ 2 ], blockScale ) ) );
+
+		final ArrayList< ArrayList< long[][] > > tasks = new ArrayList<>();
+		ArrayList< long[][] > task = null;
+		ViewId lastViewId = null;
+
+		for ( final long[][] gridBlock : sorted )
+		{
+			final ViewId viewId = N5ApiTools.gridBlockToViewId( gridBlock );
+
+			if ( task == null || task.size() >= maxBlocksPerTask || !viewId.equals( lastViewId ) )
+			{
+				task = new ArrayList<>();
+				tasks.add( task );
+			}
+
+			task.add( gridBlock );
+			lastViewId = viewId;
+		}
+
+		return tasks;
+	}
+
+	/**
+	 * @param gridPosition - position of the block in the storage grid
+	 * @param blockScale - how many storage blocks make up a compute block
+	 * @return the z-order (Morton) code of the compute block
+	 */
+	public static long zOrder( final long[] gridPosition, final int[] blockScale )
+	{
+		long code = 0;
+
+		for ( int bit = 0; bit < 21; ++bit )
+			for ( int d = 0; d < 3; ++d )
+				code |= ( ( ( gridPosition[ d ] / blockScale[ d ] ) >> bit ) & 1L ) << ( 3 * bit + d );
+
+		return code;
+	}
+
+	/**
+	 * @param gridBlock - the s0 compute block
+	 * @return the path of the manifest entry of this compute block
+	 */
+	public static String manifestPath( final long[][] gridBlock )
+	{
+		final ViewId viewId = N5ApiTools.gridBlockToViewId( gridBlock );
+
+		return manifestGroup + "/t" + viewId.getTimePointId() + "_s" + viewId.getViewSetupId() + "/" + gridBlock[ 2 ][ 0 ] + "_" + gridBlock[ 2 ][ 1 ] + "_" + gridBlock[ 2 ][ 2 ];
+	}
+
+	/**
+	 * Records that a compute block is completely written (must be called after all its blocks are written).
+	 *
+	 * @param n5 - the writer
+	 * @param gridBlock - the s0 compute block
+	 * @param checksums - the checksums of the levels [0...lastLevel] that were written for this compute block
+	 * @param storedBlocks - how many s0 storage blocks of this compute block are stored (see countStoredBlocks)
+	 */
+	public static void writeManifest( final N5Writer n5, final long[][] gridBlock, final long[] checksums, final long storedBlocks )
+	{
+		final String path = manifestPath( gridBlock );
+
+		n5.createGroup( path );
+		n5.setAttribute( path, "checksums", checksums );
+		n5.setAttribute( path, "storedBlocks", storedBlocks );
+	}
+
+	/**
+	 * A compute block can be skipped by --resume if it is recorded in the manifest and all s0 storage blocks that were
+	 * stored for it still exist (background blocks are never stored, so the number is compared).
+	 *
+	 * @param n5 - the reader
+	 * @param is5d - if the datasets are 5d (OME-ZARR) or 3d (N5)
+	 * @param mrInfo - the multiresolution info of the view this block belongs to
+	 * @param gridBlock - the s0 compute block
+	 * @return true if the compute block is complete
+	 */
+	public static boolean isComplete( final N5Reader n5, final boolean is5d, final MultiResolutionLevelInfo[] mrInfo, final long[][] gridBlock )
+	{
+		if ( readManifest( n5, gridBlock ) == null )
+			return false;
+
+		try
+		{
+			final Long storedBlocks = n5.getAttribute( manifestPath( gridBlock ), "storedBlocks", Long.class );
+
+			return storedBlocks != null && storedBlocks == countStoredBlocks( n5, is5d, mrInfo, gridBlock );
+		}
+		catch ( Exception e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @param n5 - the reader
+	 * @param is5d - if the datasets are 5d (OME-ZARR) or 3d (N5)
+	 * @param mrInfo - the multiresolution info of the view this block belongs to
+	 * @param gridBlock - the s0 compute block
+	 * @return how many s0 storage blocks of the compute block exist
+	 */
+	public static long countStoredBlocks( final N5Reader n5, final boolean is5d, final MultiResolutionLevelInfo[] mrInfo, final long[][] gridBlock )
+	{
+		final String dataset = mrInfo[ 0 ].dataset;
+		final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
+		final int[] blockSize = mrInfo[ 0 ].blockSize;
+		final long[] count = new long[ 1 ];
+
+		forEachBlock( footprints( gridBlock, mrInfo, 0 )[ 0 ], blockSize, o ->
+		{
+			if ( blockExists( n5, dataset, attributes, gridPosition( is5d, o, blockSize ) ) )
+				++count[ 0 ];
+		});
+
+		return count[ 0 ];
+	}
+
+	/**
+	 * @return if the storage block exists, only checks for the key if the reader is key-value based, otherwise reads the block
+	 */
+	public static boolean blockExists( final N5Reader n5, final String dataset, final DatasetAttributes attributes, final long[] gridPosition )
+	{
+		if ( n5 instanceof GsonKeyValueN5Reader )
+		{
+			final GsonKeyValueN5Reader kv = (GsonKeyValueN5Reader)n5;
+
+			return kv.getKeyValueAccess().isFile( kv.absoluteDataBlockPath( N5URI.normalizeGroupPath( dataset ), gridPosition ) );
+		}
+
+		return n5.readBlock( dataset, attributes, gridPosition ) != null;
+	}
+
+	/**
+	 * @param n5 - the reader
+	 * @param gridBlock - the s0 compute block
+	 * @return the recorded checksums or null if the compute block was not (completely) written
+	 */
+	public static long[] readManifest( final N5Reader n5, final long[][] gridBlock )
+	{
+		final String path = manifestPath( gridBlock );
+
+		try
+		{
+			if ( !n5.exists( path ) )
+				return null;
+
+			return n5.getAttribute( path, "checksums", long[].class );
+		}
+		catch ( Exception e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @param n5 - the reader
+	 * @return the downsampling levels that were completely written by a separate stage
+	 */
+	public static HashSet< Integer > readCompletedLevels( final N5Reader n5 )
+	{
+		final HashSet< Integer > levels = new HashSet<>();
+
+		try
+		{
+			if ( n5.exists( manifestGroup ) )
+			{
+				final int[] completed = n5.getAttribute( manifestGroup, "completedLevels", int[].class );
+
+				if ( completed != null )
+					for ( final int l : completed )
+						levels.add( l );
+			}
+		}
+		catch ( Exception e ) {}
+
+		return levels;
+	}
+
+	public static void writeCompletedLevels( final N5Writer n5, final Collection< Integer > levels )
+	{
+		n5.createGroup( manifestGroup );
+		n5.setAttribute( manifestGroup, "completedLevels", levels.stream().mapToInt( Integer::intValue ).sorted().toArray() );
+	}
+
+	/**
+	 * Records the parameters that define the layout of the stored blocks, blocks of a previous run can only be
+	 * reused if they were written with the same parameters (see checkParameters).
+	 *
+	 * @param n5 - the writer
+	 * @param blockSize - the storage block size
+	 * @param blockScale - the compute block size in storage blocks
+	 * @param compression - the compression and its level
+	 * @param downsamplings - the absolute downsampling factors of all levels
+	 * @param backgroundThreshold - the threshold below which storage blocks are not written, can be null
+	 */
+	public static void writeParameters( final N5Writer n5, final int[] blockSize, final int[] blockScale, final String compression, final int[][] downsamplings, final Double backgroundThreshold )
+	{
+		n5.createGroup( manifestGroup );
+		n5.setAttribute( manifestGroup, "blockSize", blockSize );
+		n5.setAttribute( manifestGroup, "blockScale", blockScale );
+		n5.setAttribute( manifestGroup, "compression", compression );
+		n5.setAttribute( manifestGroup, "downsamplings", downsamplings );
+		n5.setAttribute( manifestGroup, "backgroundThreshold", thresholdString( backgroundThreshold ) );
+	}
+
+	protected static String thresholdString( final Double backgroundThreshold )
+	{
+		return backgroundThreshold == null ? "none" : Double.toString( backgroundThreshold );
+	}
+
+	/**
+	 * @param n5 - the reader
+	 * @param blockSize - the storage block size
+	 * @param blockScale - the compute block size in storage blocks
+	 * @param compression - the compression and its level
+	 * @param downsamplings - the absolute downsampling factors of all levels
+	 * @param backgroundThreshold - the threshold below which storage blocks are not written, can be null
+	 * @return null if the manifest was written with the same parameters, otherwise a description of the difference
+	 */
+	public static String checkParameters( final N5Reader n5, final int[] blockSize, final int[] blockScale, final String compression, final int[][] downsamplings, final Double backgroundThreshold )
+	{
+		if ( !n5.exists( manifestGroup ) )
+			return null;
+
+		final int[] blockSizeM = n5.getAttribute( manifestGroup, "blockSize", int[].class );
+		final int[] blockScaleM = n5.getAttribute( manifestGroup, "blockScale", int[].class );
+		final String compressionM = n5.getAttribute( manifestGroup, "compression", String.class );
+		final int[][] downsamplingsM = n5.getAttribute( manifestGroup, "downsamplings", int[][].class );
+		final String backgroundThresholdM = n5.getAttribute( manifestGroup, "backgroundThreshold", String.class );
+
+		if ( blockSizeM == null || blockScaleM == null || compressionM == null || downsamplingsM == null || backgroundThresholdM == null )
+			return "the manifest does not record the parameters it was written with";
+
+		if ( !Arrays.equals( blockSize, blockSizeM ) )
+			return "blockSize " + Arrays.toString( blockSize ) + " != " + Arrays.toString( blockSizeM );
+
+		if ( !Arrays.equals( blockScale, blockScaleM ) )
+			return "blockScale " + Arrays.toString( blockScale ) + " != " + Arrays.toString( blockScaleM );
+
+		if ( !compression.equals( compressionM ) )
+			return "compression " + compression + " != " + compressionM;
+
+		if ( !Arrays.deepEquals( downsamplings, downsamplingsM ) )
+			return "downsampling " + Arrays.deepToString( downsamplings ) + " != " + Arrays.deepToString( downsamplingsM );
+
+		if ( !thresholdString( backgroundThreshold ).equals( backgroundThresholdM ) )
+			return "backgroundThreshold " + thresholdString( backgroundThreshold ) + " != " + backgroundThresholdM;
+
+		return null;
+	}
+
+	// the first three dimensions (OME-ZARR is 5d)
+	protected static long[] dimensions( final MultiResolutionLevelInfo mrInfo )
+	{
+		return new long[] { mrInfo.dimensions[ 0 ], mrInfo.dimensions[ 1 ], mrInfo.dimensions[ 2 ] };
+	}
+}
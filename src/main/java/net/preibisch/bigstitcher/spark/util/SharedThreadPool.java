@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed thread pool of daemon threads per JVM (e.g. shared by all tasks running on a Spark executor) that can only
+ * grow. It is never shut down, so work can always be submitted with a reference obtained earlier.
+ */
+public class SharedThreadPool
+{
+	final String name;
+	final AtomicInteger threadCount = new AtomicInteger();
+
+	ThreadPoolExecutor pool = null;
+
+	/**
+	 * @param name - prefix of the thread names
+	 */
+	public SharedThreadPool( final String name )
+	{
+		this.name = name;
+	}
+
+	/**
+	 * @param numThreads - the minimal number of threads
+	 * @return the pool, with at least numThreads threads
+	 */
+	public synchronized ExecutorService get( final int numThreads )
+	{
+		final int size = Math.max( 1, numThreads );
+
+		if ( pool == null )
+		{
+			pool = (ThreadPoolExecutor)Executors.newFixedThreadPool( size, r ->
+			{
+				final Thread t = new Thread( r, name + "-" + threadCount.incrementAndGet() );
+				t.setDaemon( true );
+				return t;
+			});
+		}
+		else if ( pool.getCorePoolSize() < size )
+		{
+			// grow in place, the maximum has to be increased first
+			pool.setMaximumPoolSize( size );
+			pool.setCorePoolSize( size );
+		}
+
+		return pool;
+	}
+}
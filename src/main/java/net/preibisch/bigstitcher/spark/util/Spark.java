@@ -25,6 +25,8 @@ import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Collectors;
 
 import org.apache.spark.SparkEnv;
@@ -249,6 +251,31 @@ public class Spark {
 		return data;
 	}
 
+	// executor-wide pool of data instances (and thus of the open readers of their imgloaders), each instance is only used by one task at a time
+	private static final ConcurrentHashMap< URI, ConcurrentLinkedQueue< SpimData2 > > spimDataPool = new ConcurrentHashMap<>();
+
+	/**
+	 * @return a data instance optimized for use within single-threaded Spark tasks, re-used from an executor-wide pool if possible.
+	 * It has to be given back using {@link #releaseSparkJobSpimData2(URI, SpimData2)} once the task is done with it.
+	 */
+	public static SpimData2 borrowSparkJobSpimData2( final URI xmlPath ) throws SpimDataException
+	{
+		final SpimData2 data = spimDataPool.computeIfAbsent( xmlPath, uri -> new ConcurrentLinkedQueue<>() ).poll();
+
+		return data == null ? getSparkJobSpimData2( xmlPath ) : data;
+	}
+
+	/**
+	 * Gives a data instance back to the executor-wide pool (at most one instance per core is kept).
+	 */
+	public static void releaseSparkJobSpimData2( final URI xmlPath, final SpimData2 data )
+	{
+		final ConcurrentLinkedQueue< SpimData2 > pool = spimDataPool.computeIfAbsent( xmlPath, uri -> new ConcurrentLinkedQueue<>() );
+
+		if ( pool.size() < Runtime.getRuntime().availableProcessors() )
+			pool.offer( data );
+	}
+
 	private static final Logger LOG = LoggerFactory.getLogger(Spark.class);
 
 	public static ArrayList< Pair<ViewId, ViewId> > toViewIds( final List<Pair<ViewId, ViewId>> pairList )
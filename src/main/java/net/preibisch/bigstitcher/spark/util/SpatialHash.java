@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A 3d spatial hash with cubic cells that answers "is there a point closer than r" in constant time
+ * (for r smaller or equal than the cell size), which makes merging large point sets linear.
+ */
+public class SpatialHash
+{
+	final double cellSize;
+	final HashMap< Long, ArrayList< double[] > > cells = new HashMap<>();
+
+	int size = 0;
+
+	public SpatialHash( final double cellSize )
+	{
+		this.cellSize = cellSize;
+	}
+
+	public void add( final double[] p )
+	{
+		cells.computeIfAbsent( key( cell( p[ 0 ] ), cell( p[ 1 ] ), cell( p[ 2 ] ) ), k -> new ArrayList<>() ).add( p );
+		++size;
+	}
+
+	public int size() { return size; }
+
+	/**
+	 * @param p - the query location
+	 * @param distance - the distance, must be smaller or equal to the cell size
+	 * @return true if any point closer than or equal to distance exists
+	 */
+	public boolean containsWithin( final double[] p, final double distance )
+	{
+		final long cx = cell( p[ 0 ] );
+		final long cy = cell( p[ 1 ] );
+		final long cz = cell( p[ 2 ] );
+
+		final double distanceSq = distance * distance;
+
+		for ( long z = cz - 1; z <= cz + 1; ++z )
+			for ( long y = cy - 1; y <= cy + 1; ++y )
+				for ( long x = cx - 1; x <= cx + 1; ++x )
+				{
+					final ArrayList< double[] > cell = cells.get( key( x, y, z ) );
+
+					if ( cell == null )
+						continue;
+
+					for ( final double[] q : cell )
+					{
+						final double dx = p[ 0 ] - q[ 0 ];
+						final double dy = p[ 1 ] - q[ 1 ];
+						final double dz = p[ 2 ] - q[ 2 ];
+
+						if ( dx * dx + dy * dy + dz * dz <= distanceSq )
+							return true;
+					}
+				}
+
+		return false;
+	}
+
+	protected long cell( final double x )
+	{
+		return (long)Math.floor( x / cellSize );
+	}
+
+	// different cells can share a key, which only means that a few more points are compared
+	protected static long key( final long x, final long y, final long z )
+	{
+		return ( x * 73856093L ) ^ ( y * 19349663L ) ^ ( z * 83492791L );
+	}
+}
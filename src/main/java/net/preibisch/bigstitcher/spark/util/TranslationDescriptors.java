@@ -0,0 +1,354 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.apache.spark.util.LongAccumulator;
+
+import mpicbg.models.Model;
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
+import net.preibisch.legacy.mpicbg.PointMatchGeneric;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSACParameters;
+
+/**
+ * Translation-invariant local geometric descriptors of all interest points of one view: for every point, the vectors
+ * to numNeighbors of its (numNeighbors + redundancy) nearest neighbors, ordered by distance, for all such subsets.
+ * They only depend on the points of a view, so they are computed once per view and kept in the executor-wide
+ * {@link InterestPointCache} (sharing its memory budget), each pair then only matches the descriptors (ratio test) and runs RANSAC.
+ */
+public class TranslationDescriptors
+{
+	final int numNeighbors;
+
+	// how many descriptors each point has (all subsets of its neighbors)
+	final int descriptorsPerPoint;
+
+	// the id of the center point of each descriptor and the descriptors (3 * numNeighbors values each)
+	final int[] ids;
+	final double[][] descriptors;
+
+	// the search tree over all descriptors, built when needed
+	KDTree< Integer > tree = null;
+
+	protected TranslationDescriptors( final int numNeighbors, final int descriptorsPerPoint, final int[] ids, final double[][] descriptors )
+	{
+		this.numNeighbors = numNeighbors;
+		this.descriptorsPerPoint = descriptorsPerPoint;
+		this.ids = ids;
+		this.descriptors = descriptors;
+	}
+
+	public int size() { return ids.length; }
+
+	/**
+	 * @param key - identifies the view, label and transformation (see {@link InterestPointCache#key})
+	 * @param numNeighbors - number of neighbors per descriptor
+	 * @param redundancy - number of additional neighbors
+	 * @param cacheMB - the size of the cache of this executor, shared with the interest points (the first call defines the size)
+	 * @param create - computes the descriptors if they are not cached
+	 * @param hits - counts cache hits (can be null)
+	 * @param misses - counts cache misses (can be null)
+	 * @return the cached or newly computed descriptors
+	 */
+	public static TranslationDescriptors get(
+			final String key,
+			final int numNeighbors,
+			final int redundancy,
+			final long cacheMB,
+			final Supplier< TranslationDescriptors > create,
+			final LongAccumulator hits,
+			final LongAccumulator misses )
+	{
+		final LRUCache< Object > cache = InterestPointCache.instance( cacheMB ).cache;
+		final String fullKey = "descriptors_" + key + "_n" + numNeighbors + "_r" + redundancy;
+
+		TranslationDescriptors d = (TranslationDescriptors)cache.get( fullKey );
+
+		if ( d != null )
+		{
+			if ( hits != null )
+				hits.add( 1 );
+		}
+		else
+		{
+			if ( misses != null )
+				misses.add( 1 );
+
+			d = create.get();
+			cache.put( fullKey, d );
+		}
+
+		return d;
+	}
+
+	/**
+	 * @param points - all (transformed) points of a view
+	 * @param numNeighbors - number of neighbors per descriptor
+	 * @param redundancy - number of additional neighbors, creates all subsets of size numNeighbors
+	 * @return the descriptors
+	 */
+	public static TranslationDescriptors create( final List< InterestPoint > points, final int numNeighbors, final int redundancy )
+	{
+		final int k = numNeighbors + redundancy;
+
+		final int[][] subsets = subsets( k, numNeighbors );
+
+		if ( points.size() <= k )
+			return new TranslationDescriptors( numNeighbors, subsets.length, new int[ 0 ], new double[ 0 ][] );
+
+		final KDTree< InterestPoint > tree = new KDTree<>( points, points );
+		final KNearestNeighborSearchOnKDTree< InterestPoint > search = new KNearestNeighborSearchOnKDTree<>( tree, k + 1 );
+
+		final int n = points.size() * subsets.length;
+		final int[] ids = new int[ n ];
+		final double[][] descriptors = new double[ n ][];
+		final InterestPoint[] neighbors = new InterestPoint[ k ];
+
+		int i = 0;
+
+		for ( final InterestPoint p : points )
+		{
+			search.search( p );
+
+			// the k nearest neighbors without the point itself, sorted by distance
+			for ( int j = 0, m = 0; j <= k && m < k; ++j )
+			{
+				final InterestPoint q = search.getSampler( j ).get();
+
+				if ( q != p )
+					neighbors[ m++ ] = q;
+			}
+
+			final double[] l = p.getL();
+
+			for ( final int[] subset : subsets )
+			{
+				final double[] descriptor = new double[ 3 * numNeighbors ];
+
+				for ( int s = 0; s < numNeighbors; ++s )
+				{
+					final double[] lq = neighbors[ subset[ s ] ].getL();
+
+					for ( int d = 0; d < 3; ++d )
+						descriptor[ s * 3 + d ] = lq[ d ] - l[ d ];
+				}
+
+				ids[ i ] = p.getId();
+				descriptors[ i++ ] = descriptor;
+			}
+		}
+
+		return new TranslationDescriptors( numNeighbors, subsets.length, ids, descriptors );
+	}
+
+	/**
+	 * Matches the descriptors of two views (only the descriptors of the given points are used, e.g. after filtering for overlap)
+	 * and filters the candidates with RANSAC.
+	 *
+	 * @param descA - the descriptors of view A
+	 * @param descB - the descriptors of view B
+	 * @param pointsA - the points of view A to match
+	 * @param pointsB - the points of view B to match
+	 * @param ratioOfDistance - how much better the best match needs to be compared to the second best
+	 * @param limitSearchRadius - if corresponding points have to be within searchRadius
+	 * @param searchRadius - the search radius in world coordinates
+	 * @param model - the model for RANSAC
+	 * @param rp - the RANSAC parameters
+	 * @param ransacConfidence - if positive, the number of RANSAC iterations adapts to the inlier ratio (see {@link AdaptiveRansac}), otherwise all iterations are run
+	 * @param ransacIterations - counts the RANSAC iterations (can be null)
+	 * @param name - for logging
+	 * @return the inliers (empty if RANSAC failed)
+	 */
+	public static ArrayList< PointMatchGeneric< InterestPoint > > match(
+			final TranslationDescriptors descA,
+			final TranslationDescriptors descB,
+			final List< InterestPoint > pointsA,
+			final List< InterestPoint > pointsB,
+			final double ratioOfDistance,
+			final boolean limitSearchRadius,
+			final double searchRadius,
+			final Model< ? > model,
+			final RANSACParameters rp,
+			final double ransacConfidence,
+			final LongAccumulator ransacIterations,
+			final String name )
+	{
+		final HashMap< Integer, InterestPoint > mapA = new HashMap<>();
+		final HashMap< Integer, InterestPoint > mapB = new HashMap<>();
+
+		pointsA.forEach( p -> mapA.put( p.getId(), p ) );
+		pointsB.forEach( p -> mapB.put( p.getId(), p ) );
+
+		final ArrayList< PointMatchGeneric< InterestPoint > > candidates = new ArrayList<>();
+		final ArrayList< PointMatchGeneric< InterestPoint > > inliers = new ArrayList<>();
+
+		final KDTree< Integer > treeB = descB.tree( mapB );
+
+		if ( treeB == null || treeB.size() < 2 )
+			return inliers;
+
+		// the second best match has to belong to a different point, with redundancy the nearest descriptors can all be
+		// descriptors of the same point, so one more than the number of descriptors per point is needed
+		final int k = (int)Math.min( treeB.size(), descB.descriptorsPerPoint + 1 );
+		final KNearestNeighborSearchOnKDTree< Integer > search = new KNearestNeighborSearchOnKDTree<>( treeB, k );
+		final HashSet< Long > candidatePairs = new HashSet<>();
+		final double maxDistanceSq = searchRadius * searchRadius;
+
+		for ( int i = 0; i < descA.size(); ++i )
+		{
+			final InterestPoint pA = mapA.get( descA.ids[ i ] );
+
+			if ( pA == null )
+				continue;
+
+			search.search( RealPoint.wrap( descA.descriptors[ i ] ) );
+
+			final int idB = descB.ids[ search.getSampler( 0 ).get() ];
+
+			int second = 1;
+			while ( second < k && descB.ids[ search.getSampler( second ).get() ] == idB )
+				++second;
+
+			// all neighbors belong to the same point, the match is not distinctive
+			if ( second == k )
+				continue;
+
+			final double best = Math.sqrt( search.getSquareDistance( 0 ) );
+			final double secondBest = Math.sqrt( search.getSquareDistance( second ) );
+
+			if ( best * ratioOfDistance > secondBest )
+				continue;
+
+			final InterestPoint pB = mapB.get( idB );
+
+			if ( limitSearchRadius && squareDistance( pA.getL(), pB.getL() ) > maxDistanceSq )
+				continue;
+
+			// the same pair of points can be found by several descriptors
+			if ( candidatePairs.add( ( (long)pA.getId() << 32 ) | ( idB & 0xffffffffL ) ) )
+				candidates.add( new PointMatchGeneric<>( pA, pB ) );
+		}
+
+		final int iterations = AdaptiveRansac.filter( model, candidates, inliers, rp, ransacConfidence );
+
+		if ( ransacIterations != null )
+			ransacIterations.add( iterations );
+
+		System.out.println( name + ": " + candidates.size() + " candidates, " + inliers.size() + " inliers after " + iterations + " RANSAC iterations (descriptors: " + descA.size() + " <> " + treeB.size() + ")" );
+
+		return inliers;
+	}
+
+	/**
+	 * @param points - the points whose descriptors should be searchable
+	 * @return a search tree over the descriptors (the value is the index), the tree over all descriptors is cached
+	 */
+	protected KDTree< Integer > tree( final HashMap< Integer, InterestPoint > points )
+	{
+		final ArrayList< Integer > indices = new ArrayList<>();
+
+		for ( int i = 0; i < ids.length; ++i )
+			if ( points.containsKey( ids[ i ] ) )
+				indices.add( i );
+
+		if ( indices.size() == 0 )
+			return null;
+
+		if ( indices.size() == ids.length )
+		{
+			synchronized ( this )
+			{
+				if ( tree == null )
+					tree = createTree( indices );
+
+				return tree;
+			}
+		}
+
+		return createTree( indices );
+	}
+
+	protected KDTree< Integer > createTree( final List< Integer > indices )
+	{
+		final ArrayList< RealPoint > positions = new ArrayList<>( indices.size() );
+
+		for ( final int i : indices )
+			positions.add( RealPoint.wrap( descriptors[ i ] ) );
+
+		return new KDTree<>( indices, positions );
+	}
+
+	/**
+	 * @return all subsets of size m of { 0, ..., k-1 }, each in ascending order
+	 */
+	protected static int[][] subsets( final int k, final int m )
+	{
+		final ArrayList< int[] > subsets = new ArrayList<>();
+		final int[] subset = new int[ m ];
+
+		for ( int i = 0; i < m; ++i )
+			subset[ i ] = i;
+
+		while ( true )
+		{
+			subsets.add( subset.clone() );
+
+			int i = m - 1;
+			while ( i >= 0 && subset[ i ] == k - m + i )
+				--i;
+
+			if ( i < 0 )
+				break;
+
+			++subset[ i ];
+
+			for ( int j = i + 1; j < m; ++j )
+				subset[ j ] = subset[ j - 1 ] + 1;
+		}
+
+		return subsets.toArray( new int[ subsets.size() ][] );
+	}
+
+	protected static double squareDistance( final double[] a, final double[] b )
+	{
+		double sum = 0;
+
+		for ( int d = 0; d < a.length; ++d )
+			sum += ( a[ d ] - b[ d ] ) * ( a[ d ] - b[ d ] );
+
+		return sum;
+	}
+
+	// descriptors (array + header) and ids, times two for the search tree
+	protected static long sizeInBytes( final TranslationDescriptors d )
+	{
+		return 256 + 2L * d.size() * ( d.numNeighbors * 3 * 8 + 16 + 4 );
+	}
+}
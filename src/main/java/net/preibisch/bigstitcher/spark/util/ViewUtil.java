@@ -67,6 +67,30 @@ public class ViewUtil
 		return size;
 	}
 
+	/**
+	 * @param img - the stored image
+	 * @return the cell dimensions if it is a cell image (the common case for N5/HDF5/Zarr), otherwise null
+	 */
+	public static int[] cellDimensions( final RandomAccessibleInterval< ? > img )
+	{
+		RandomAccessible< ? > rai = img;
+
+		// strip one level of IntervalView, if present
+		if ( rai instanceof IntervalView )
+			rai = ( ( IntervalView< ? > ) rai ).getSource();
+
+		// hyperslices (e.g. OME-Zarr) might not map dimensions directly, we do not align those
+		if ( !( rai instanceof AbstractCellImg ) || rai.numDimensions() != img.numDimensions() )
+			return null;
+
+		final CellGrid grid = ( ( AbstractCellImg< ?, ?, ?, ? > ) rai ).getCellGrid();
+
+		final int[] cellDimensions = new int[ grid.numDimensions() ];
+		Arrays.setAll( cellDimensions, d -> grid.cellDimension( d ) );
+
+		return cellDimensions;
+	}
+
 	public static boolean overlaps( final Interval interval1, final Interval interval2 )
 	{
 		return !Intervals.isEmpty( Intervals.intersect( interval1, interval2 ) );
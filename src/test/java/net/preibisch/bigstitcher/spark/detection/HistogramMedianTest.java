@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.detection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistogramMedianTest
+{
+	@Test
+	public void integerImagesAreExact()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( final int radius : new int[] { 1, 2, 5 } )
+		{
+			final int width = 37 + 2 * radius;
+			final int height = 23 + 2 * radius;
+			final float[] in = new float[ width * height ];
+
+			for ( int i = 0; i < in.length; ++i )
+				in[ i ] = rnd.nextInt( 4000 ) - 100;
+
+			assertArrayEquals( bruteForce( in, width, height, radius ), median( in, width, height, radius ), 0 );
+		}
+	}
+
+	@Test
+	public void constantImage()
+	{
+		final float[] in = new float[ 20 * 20 ];
+		Arrays.fill( in, 7 );
+
+		final float[] expected = new float[ 16 * 16 ];
+		Arrays.fill( expected, 7 );
+
+		assertArrayEquals( expected, median( in, 20, 20, 2 ), 0 );
+	}
+
+	@Test
+	public void realImagesAreQuantized()
+	{
+		final Random rnd = new Random( 7 );
+		final int width = 40, height = 30, radius = 3;
+		final float[] in = new float[ width * height ];
+
+		for ( int i = 0; i < in.length; ++i )
+			in[ i ] = rnd.nextFloat() * 1000;
+
+		// the error is at most one quantization step
+		assertArrayEquals( bruteForce( in, width, height, radius ), median( in, width, height, radius ), 1000f / ( HistogramMedian.BINS - 1 ) );
+	}
+
+	@Test
+	public void threadInstanceIsReused()
+	{
+		final HistogramMedian a = HistogramMedian.forThread( 100, 50 );
+
+		assertSame( a, HistogramMedian.forThread( 80, 50 ) );
+		assertNotSame( a, HistogramMedian.forThread( 120, 50 ) );
+	}
+
+	protected static float[] median( final float[] in, final int width, final int height, final int radius )
+	{
+		final float[] out = new float[ ( width - 2 * radius ) * ( height - 2 * radius ) ];
+		new HistogramMedian( width, height ).median( in, width, height, radius, out );
+
+		return out;
+	}
+
+	protected static float[] bruteForce( final float[] in, final int width, final int height, final int radius )
+	{
+		final int outWidth = width - 2 * radius;
+		final int outHeight = height - 2 * radius;
+		final int size = 2 * radius + 1;
+
+		final float[] out = new float[ outWidth * outHeight ];
+		final float[] kernel = new float[ size * size ];
+
+		for ( int y = 0; y < outHeight; ++y )
+			for ( int x = 0; x < outWidth; ++x )
+			{
+				int i = 0;
+
+				for ( int ky = 0; ky < size; ++ky )
+					for ( int kx = 0; kx < size; ++kx )
+						kernel[ i++ ] = in[ ( y + ky ) * width + x + kx ];
+
+				Arrays.sort( kernel );
+				out[ y * outWidth + x ] = kernel[ kernel.length / 2 ];
+			}
+
+		return out;
+	}
+}
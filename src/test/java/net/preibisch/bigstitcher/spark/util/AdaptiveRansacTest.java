@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.TranslationModel3D;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSACParameters;
+
+public class AdaptiveRansacTest
+{
+	final static double[] t = new double[] { 3.0, -1.0, 2.5 };
+
+	@Test
+	public void findsInliersAndStopsEarly()
+	{
+		final List< PointMatch > candidates = candidates( new Random( 1 ), 100, 100 );
+		final ArrayList< PointMatch > inliers = new ArrayList<>();
+		final TranslationModel3D model = new TranslationModel3D();
+
+		final int iterations = AdaptiveRansac.filter( model, candidates, inliers, 10000, 0.1, 0.1, 3, 0.99 );
+
+		// with half of the candidates being inliers and one match per sample, (1 - 0.5)^7 < 0.01
+		assertTrue( iterations <= 7 );
+		assertEquals( candidates.subList( 0, 100 ), inliers );
+		assertArrayEquals( t, model.apply( new double[ 3 ] ), 1e-9 );
+	}
+
+	@Test
+	public void matcherParametersWithAndWithoutConfidence()
+	{
+		final List< PointMatch > candidates = candidates( new Random( 4 ), 100, 100 );
+		final RANSACParameters rp = new RANSACParameters( 0.1f, 0.1f, 3.0f, 500 );
+
+		// without a confidence all iterations are run
+		final ArrayList< PointMatch > all = new ArrayList<>();
+		assertEquals( 500, AdaptiveRansac.filter( new TranslationModel3D(), candidates, all, rp, 0 ) );
+
+		final ArrayList< PointMatch > adaptive = new ArrayList<>();
+		assertTrue( AdaptiveRansac.filter( new TranslationModel3D(), candidates, adaptive, rp, 0.99 ) < 500 );
+
+		assertEquals( 100, all.size() );
+		assertEquals( new HashSet<>( all ), new HashSet<>( adaptive ) );
+
+		// fewer inliers than minInlierFactor * minNumMatches
+		final ArrayList< PointMatch > inliers = new ArrayList<>();
+		AdaptiveRansac.filter( new TranslationModel3D(), candidates( new Random( 5 ), 2, 100 ), inliers, rp, 0.99 );
+		assertEquals( 0, inliers.size() );
+	}
+
+	@Test
+	public void allInliersNeedOneIteration()
+	{
+		final List< PointMatch > candidates = candidates( new Random( 2 ), 50, 0 );
+		final ArrayList< PointMatch > inliers = new ArrayList<>();
+
+		assertEquals( 1, AdaptiveRansac.filter( new TranslationModel3D(), candidates, inliers, 10000, 0.1, 0.1, 3, 0.99 ) );
+		assertEquals( 50, inliers.size() );
+	}
+
+	@Test
+	public void fewInliersNeedMoreIterations()
+	{
+		final List< PointMatch > candidates = candidates( new Random( 3 ), 5, 95 );
+		final ArrayList< PointMatch > inliers = new ArrayList<>();
+
+		// with an inlier ratio of 0.05 it takes log(0.01) / log(0.95) iterations, but the ratio is below the minimum
+		assertEquals( (int)Math.ceil( Math.log( 0.01 ) / Math.log( 0.95 ) ), AdaptiveRansac.filter( new TranslationModel3D(), candidates, inliers, 10000, 0.1, 0.1, 3, 0.99 ) );
+		assertEquals( 0, inliers.size() );
+
+		// it never runs more than the maximal number of iterations
+		assertEquals( 20, AdaptiveRansac.filter( new TranslationModel3D(), candidates, inliers, 20, 0.1, 0.01, 3, 0.99 ) );
+	}
+
+	@Test
+	public void tooFewCandidates()
+	{
+		final ArrayList< PointMatch > inliers = new ArrayList<>();
+
+		assertEquals( 0, AdaptiveRansac.filter( new TranslationModel3D(), candidates( new Random( 4 ), 2, 0 ), inliers, 1000, 0.1, 0.1, 3, 0.99 ) );
+		assertEquals( 0, inliers.size() );
+	}
+
+	// numInliers matches that are related by t, followed by numOutliers random matches
+	protected static List< PointMatch > candidates( final Random rnd, final int numInliers, final int numOutliers )
+	{
+		final ArrayList< PointMatch > candidates = new ArrayList<>();
+
+		for ( int i = 0; i < numInliers + numOutliers; ++i )
+		{
+			final double[] p1 = random( rnd );
+			final double[] p2 = i < numInliers ? new double[] { p1[ 0 ] + t[ 0 ], p1[ 1 ] + t[ 1 ], p1[ 2 ] + t[ 2 ] } : random( rnd );
+
+			candidates.add( new PointMatch( new Point( p1 ), new Point( p2 ) ) );
+		}
+
+		return candidates;
+	}
+
+	protected static double[] random( final Random rnd )
+	{
+		return new double[] { rnd.nextDouble() * 1000, rnd.nextDouble() * 1000, rnd.nextDouble() * 1000 };
+	}
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
+import scala.Tuple2;
+import scala.Tuple3;
+
+public class CorrespondenceToolsTest
+{
+	final ViewId v0 = new ViewId( 0, 0 );
+	final ViewId v1 = new ViewId( 0, 1 );
+	final ViewId v2 = new ViewId( 1, 2 ); // only side B
+	final ViewId v3 = new ViewId( 1, 3 ); // no matches
+
+	@Test
+	public void sideBIsSwapped()
+	{
+		final List< Tuple2< Tuple3< Integer, Integer, String >, Tuple2< String, int[] > > > perView =
+				CorrespondenceTools.perView( new int[] { 3, 30, 4, 40 }, v0, "beads", v2, "nuclei" );
+
+		assertEquals( 2, perView.size() );
+
+		assertEquals( CorrespondenceTools.key( v0, "beads" ), perView.get( 0 )._1() );
+		assertEquals( "nuclei", perView.get( 0 )._2()._1() );
+		assertTrue( Arrays.equals( new int[] { 1, 2, 3, 30, 4, 40 }, perView.get( 0 )._2()._2() ) );
+
+		assertEquals( CorrespondenceTools.key( v2, "nuclei" ), perView.get( 1 )._1() );
+		assertEquals( "beads", perView.get( 1 )._2()._1() );
+		assertTrue( Arrays.equals( new int[] { 0, 0, 30, 3, 40, 4 }, perView.get( 1 )._2()._2() ) );
+	}
+
+	@Test
+	public void append()
+	{
+		final HashMap< Tuple3< Integer, Integer, String >, List< Tuple2< String, int[] > > > grouped = group();
+
+		final List< CorrespondingInterestPoints > c0 = CorrespondenceTools.merge( grouped.get( CorrespondenceTools.key( v0, "beads" ) ), () -> existing( v0 ), false );
+		final List< CorrespondingInterestPoints > c2 = CorrespondenceTools.merge( grouped.get( CorrespondenceTools.key( v2, "beads" ) ), () -> existing( v2 ), false );
+		final List< CorrespondingInterestPoints > c3 = CorrespondenceTools.merge( grouped.get( CorrespondenceTools.key( v3, "beads" ) ), () -> existing( v3 ), false );
+
+		assertEquals( 4, c0.size() );
+		assertCorrespondence( c0.get( 0 ), 99, v0, 99 );
+		assertEquals( 2, c2.size() );
+		assertCorrespondence( c2.get( 0 ), 99, v2, 99 );
+		assertCorrespondence( c2.get( 1 ), 30, v0, 3 );
+
+		// nothing to write
+		assertNull( c3 );
+	}
+
+	@Test
+	public void clear()
+	{
+		final HashMap< Tuple3< Integer, Integer, String >, List< Tuple2< String, int[] > > > grouped = group();
+
+		final List< CorrespondingInterestPoints > c0 = CorrespondenceTools.merge( grouped.get( CorrespondenceTools.key( v0, "beads" ) ), () -> existing( v0 ), true );
+		final List< CorrespondingInterestPoints > c1 = CorrespondenceTools.merge( grouped.get( CorrespondenceTools.key( v1, "beads" ) ), () -> existing( v1 ), true );
+		final List< CorrespondingInterestPoints > c2 = CorrespondenceTools.merge( grouped.get( CorrespondenceTools.key( v2, "beads" ) ), () -> existing( v2 ), true );
+		final List< CorrespondingInterestPoints > c3 = CorrespondenceTools.merge( grouped.get( CorrespondenceTools.key( v3, "beads" ) ), () -> existing( v3 ), true );
+
+		assertEquals( 3, c0.size() );
+		assertCorrespondence( c0.get( 0 ), 1, v1, 10 );
+		assertCorrespondence( c0.get( 2 ), 3, v2, 30 );
+
+		assertEquals( 2, c1.size() );
+		assertCorrespondence( c1.get( 0 ), 10, v0, 1 );
+		assertCorrespondence( c1.get( 1 ), 20, v0, 2 );
+
+		assertEquals( 1, c2.size() );
+		assertCorrespondence( c2.get( 0 ), 30, v0, 3 );
+
+		// cleared even though there are no new matches
+		assertEquals( 0, c3.size() );
+	}
+
+	/**
+	 * @return the entries of all views grouped by key, like groupByKey in the Spark job
+	 */
+	protected HashMap< Tuple3< Integer, Integer, String >, List< Tuple2< String, int[] > > > group()
+	{
+		final ArrayList< Tuple2< Tuple3< Integer, Integer, String >, Tuple2< String, int[] > > > all = new ArrayList<>();
+
+		all.addAll( CorrespondenceTools.perView( new int[] { 1, 10, 2, 20 }, v0, "beads", v1, "beads" ) );
+		all.addAll( CorrespondenceTools.perView( new int[] { 3, 30 }, v0, "beads", v2, "beads" ) );
+
+		for ( final ViewId v : Arrays.asList( v0, v1, v2, v3 ) )
+			all.add( CorrespondenceTools.empty( v, "beads" ) );
+
+		final HashMap< Tuple3< Integer, Integer, String >, List< Tuple2< String, int[] > > > grouped = new HashMap<>();
+
+		for ( final Tuple2< Tuple3< Integer, Integer, String >, Tuple2< String, int[] > > t : all )
+			grouped.computeIfAbsent( t._1(), k -> new ArrayList<>() ).add( t._2() );
+
+		return grouped;
+	}
+
+	protected static List< CorrespondingInterestPoints > existing( final ViewId viewId )
+	{
+		final ArrayList< CorrespondingInterestPoints > existing = new ArrayList<>();
+		existing.add( new CorrespondingInterestPoints( 99, viewId, "beads", 99 ) );
+		return existing;
+	}
+
+	protected static void assertCorrespondence( final CorrespondingInterestPoints c, final int id, final ViewId correspondingViewId, final int correspondingId )
+	{
+		assertEquals( id, c.getDetectionId() );
+		assertEquals( correspondingViewId, c.getCorrespondingViewId() );
+		assertEquals( "beads", c.getCorrespodingLabel() );
+		assertEquals( correspondingId, c.getCorrespondingDetectionId() );
+	}
+}
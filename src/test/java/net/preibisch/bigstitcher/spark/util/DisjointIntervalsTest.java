@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.util.Intervals;
+
+public class DisjointIntervalsTest
+{
+	@Test
+	public void unionMatchesBruteForce()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( int test = 0; test < 50; ++test )
+		{
+			final int n = 2 + test % 2;
+			final ArrayList< Interval > intervals = new ArrayList<>();
+
+			for ( int i = 0, numIntervals = 1 + rnd.nextInt( 6 ); i < numIntervals; ++i )
+			{
+				final long[] min = new long[ n ];
+				final long[] max = new long[ n ];
+
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = rnd.nextInt( 20 ) - 5;
+					max[ d ] = min[ d ] + rnd.nextInt( 10 );
+				}
+
+				intervals.add( new FinalInterval( min, max ) );
+			}
+
+			assertCoversUnionOnce( intervals, DisjointIntervals.union( intervals ) );
+		}
+	}
+
+	@Test
+	public void containedIntervalsAreMerged()
+	{
+		final ArrayList< Interval > intervals = new ArrayList<>();
+		intervals.add( FinalInterval.createMinMax( 0, 0, 0, 9, 9, 9 ) );
+		intervals.add( FinalInterval.createMinMax( 2, 2, 2, 5, 5, 5 ) );
+
+		final List< Interval > union = DisjointIntervals.union( intervals );
+
+		assertEquals( 1, union.size() );
+		assertTrue( Intervals.equals( intervals.get( 0 ), union.get( 0 ) ) );
+	}
+
+	@Test
+	public void empty()
+	{
+		assertEquals( 0, DisjointIntervals.union( new ArrayList<>() ).size() );
+	}
+
+	protected static void assertCoversUnionOnce( final List< Interval > intervals, final List< Interval > union )
+	{
+		final int n = intervals.get( 0 ).numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		Arrays.fill( min, Long.MAX_VALUE );
+		Arrays.fill( max, Long.MIN_VALUE );
+
+		for ( final List< Interval > list : Arrays.asList( intervals, union ) )
+			for ( final Interval interval : list )
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = Math.min( min[ d ], interval.min( d ) );
+					max[ d ] = Math.max( max[ d ], interval.max( d ) );
+				}
+
+		final FinalInterval bounds = new FinalInterval( min, max );
+		final long[] pos = new long[ n ];
+
+		for ( long i = 0; i < Intervals.numElements( bounds ); ++i )
+		{
+			long index = i;
+			for ( int d = 0; d < n; ++d )
+			{
+				pos[ d ] = min[ d ] + index % bounds.dimension( d );
+				index /= bounds.dimension( d );
+			}
+
+			final boolean inInput = intervals.stream().anyMatch( interval -> Intervals.contains( interval, new Point( pos ) ) );
+			final long inUnion = union.stream().filter( interval -> Intervals.contains( interval, new Point( pos ) ) ).count();
+
+			assertEquals( inInput ? 1 : 0, inUnion );
+		}
+	}
+}
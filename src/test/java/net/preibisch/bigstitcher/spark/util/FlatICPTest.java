@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.models.TranslationModel3D;
+
+public class FlatICPTest
+{
+	@Test
+	public void recoversTranslation()
+	{
+		final Random rnd = new Random( 1 );
+		final FlatInterestPoints target = randomPoints( rnd, 300, 0, 200 );
+		final double[] t = new double[] { 1.5, -2.0, 0.75 };
+
+		final TranslationModel3D model = new TranslationModel3D();
+		final int[] ids = FlatICP.align( translate( target, t, 0, rnd ), target, model, 5, 100, false, 0, 0, 0, 0, 10, null, "test" );
+
+		assertEquals( 2 * target.size(), ids.length );
+
+		for ( int i = 0; i < ids.length; i += 2 )
+			assertEquals( ids[ i ], ids[ i + 1 ] );
+
+		assertArrayEquals( t, model.apply( new double[ 3 ] ), 1e-9 );
+	}
+
+	@Test
+	public void ransacRejectsOutliers()
+	{
+		// all iterations and adaptive RANSAC
+		for ( final double confidence : new double[] { 0, 0.99 } )
+		{
+			final Random rnd = new Random( 2 );
+			final FlatInterestPoints target = randomPoints( rnd, 300, 0, 200 );
+			final double[] t = new double[] { -1.0, 0.5, 2.0 };
+
+			// the translated points plus unrelated points with other ids
+			final FlatInterestPoints source = FlatInterestPoints.concatenate( translate( target, t, 0.01, rnd ), randomPoints( rnd, 100, 1000, 200 ) );
+
+			final TranslationModel3D model = new TranslationModel3D();
+			final int[] ids = FlatICP.align( source, target, model, 5, 100, true, 1000, 0.5, 0.1, confidence, 10, null, "test" );
+
+			assertTrue( ids.length / 2 > 0.9 * target.size() );
+
+			for ( int i = 0; i < ids.length; i += 2 )
+				assertEquals( ids[ i ], ids[ i + 1 ] );
+
+			assertArrayEquals( t, model.apply( new double[ 3 ] ), 0.01 );
+		}
+	}
+
+	@Test
+	public void correspondencesBelongToTheFinalModel()
+	{
+		final Random rnd = new Random( 3 );
+		final FlatInterestPoints target = randomPoints( rnd, 300, 0, 300 );
+		final double maxDistance = 5;
+
+		// with the identity only some points have a neighbor within maxDistance, the model after one iteration finds all
+		final FlatInterestPoints source = translate( target, new double[] { 4.5, 0, 0 }, 1.0, rnd );
+
+		final TranslationModel3D model = new TranslationModel3D();
+		final int[] ids = FlatICP.align( source, target, model, maxDistance, 1, false, 0, 0, 0, 0, 10, null, "test" );
+
+		final FlatKDTree.Searcher searcher = new FlatKDTree( target.xyz, target.size() ).searcher();
+		int expected = 0;
+
+		for ( int i = 0; i < source.size(); ++i )
+			if ( nearest( searcher, model.apply( source.location( i ) ), maxDistance ) >= 0 )
+				++expected;
+
+		assertEquals( expected, ids.length / 2 );
+
+		for ( int i = 0, k = 0; i < source.size(); ++i )
+		{
+			final int j = nearest( searcher, model.apply( source.location( i ) ), maxDistance );
+
+			if ( j < 0 )
+				continue;
+
+			assertEquals( source.id( i ), ids[ k++ ] );
+			assertEquals( target.id( j ), ids[ k++ ] );
+		}
+	}
+
+	@Test
+	public void tooFewPoints()
+	{
+		final Random rnd = new Random( 4 );
+		final FlatInterestPoints target = randomPoints( rnd, 5, 0, 100 );
+
+		assertEquals( 0, FlatICP.align( translate( target, new double[ 3 ], 0, rnd ), target, new TranslationModel3D(), 5, 100, false, 0, 0, 0, 0, 10, null, "test" ).length );
+	}
+
+	protected static int nearest( final FlatKDTree.Searcher searcher, final double[] p, final double maxDistance )
+	{
+		return searcher.nearest( p[ 0 ], p[ 1 ], p[ 2 ], maxDistance * maxDistance );
+	}
+
+	protected static FlatInterestPoints randomPoints( final Random rnd, final int n, final int firstId, final double size )
+	{
+		final FlatInterestPoints points = new FlatInterestPoints( n, false );
+
+		for ( int i = 0; i < n; ++i )
+			points.add( firstId + i, rnd.nextDouble() * size, rnd.nextDouble() * size, rnd.nextDouble() * size, 0 );
+
+		return points;
+	}
+
+	// the points moved by -t (so the model that maps them back is t) and some noise, with the same ids
+	protected static FlatInterestPoints translate( final FlatInterestPoints points, final double[] t, final double noise, final Random rnd )
+	{
+		final FlatInterestPoints translated = new FlatInterestPoints( points.size(), false );
+
+		for ( int i = 0; i < points.size(); ++i )
+			translated.add(
+					points.id( i ),
+					points.x( i ) - t[ 0 ] + noise * rnd.nextGaussian(),
+					points.y( i ) - t[ 1 ] + noise * rnd.nextGaussian(),
+					points.z( i ) - t[ 2 ] + noise * rnd.nextGaussian(), 0 );
+
+		return translated;
+	}
+}
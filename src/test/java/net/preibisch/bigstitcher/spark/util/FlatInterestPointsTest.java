@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class FlatInterestPointsTest
+{
+	@Test
+	public void topKMatchesSorting()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( final int n : new int[] { 0, 1, 5, 100, 1000 } )
+		{
+			final float[] values = new float[ n + 3 ];
+
+			// negative values and many duplicates, the last values are not part of the input
+			for ( int i = 0; i < values.length; ++i )
+				values[ i ] = rnd.nextInt( 50 ) - 25 + ( rnd.nextBoolean() ? 0.5f : 0 );
+
+			for ( final int k : new int[] { 0, 1, 7, n / 2, n, n + 10 } )
+				assertArrayEquals( bruteForce( values, n, k ), FlatInterestPoints.topK( values, n, k ) );
+		}
+	}
+
+	@Test
+	public void topKOrdersSignedZeroAndInfinity()
+	{
+		final float[] values = new float[] { 0.0f, -0.0f, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, -1, Float.MIN_VALUE };
+
+		assertArrayEquals( bruteForce( values, values.length, values.length ), FlatInterestPoints.topK( values, values.length, values.length ) );
+	}
+
+	@Test
+	public void topKOfPoints()
+	{
+		final FlatInterestPoints points = new FlatInterestPoints( 4, true );
+		points.add( 0, 0, 0, 0, 3 );
+		points.add( 1, 1, 0, 0, 9 );
+		points.add( 2, 2, 0, 0, 3 );
+		points.add( 3, 3, 0, 0, 5 );
+
+		assertArrayEquals( new int[] { 1, 3, 0 }, points.topK( 3 ) );
+	}
+
+	// sorted by value (descending), ties by index (ascending)
+	protected static int[] bruteForce( final float[] values, final int n, final int k )
+	{
+		return IntStream.range( 0, n ).boxed()
+				.sorted( Comparator.< Integer >comparingDouble( i -> -values[ i ] ).thenComparing( i -> i ) )
+				.limit( k ).mapToInt( Integer::intValue ).toArray();
+	}
+}
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FlatKDTreeTest
+{
+	@Test
+	public void nearestMatchesBruteForce()
+	{
+		final Random rnd = new Random( 42 );
+
+		for ( final int n : new int[] { 1, 2, 3, 10, 1000 } )
+		{
+			final double[] xyz = randomPoints( rnd, n, 100 );
+			final FlatKDTree.Searcher searcher = new FlatKDTree( xyz, n ).searcher();
+
+			for ( int q = 0; q < 200; ++q )
+			{
+				final double x = rnd.nextDouble() * 120 - 10, y = rnd.nextDouble() * 120 - 10, z = rnd.nextDouble() * 120 - 10;
+
+				final int expected = bruteForce( xyz, n, x, y, z, Double.MAX_VALUE );
+
+				assertEquals( expected, searcher.nearest( x, y, z, Double.MAX_VALUE ) );
+				assertEquals( distanceSq( xyz, expected, x, y, z ), searcher.distanceSq(), 0 );
+			}
+		}
+	}
+
+	@Test
+	public void maxDistanceIsRespected()
+	{
+		final Random rnd = new Random( 7 );
+		final int n = 500;
+		final double[] xyz = randomPoints( rnd, n, 100 );
+		final FlatKDTree.Searcher searcher = new FlatKDTree( xyz, n ).searcher();
+
+		for ( int q = 0; q < 500; ++q )
+		{
+			final double x = rnd.nextDouble() * 100, y = rnd.nextDouble() * 100, z = rnd.nextDouble() * 100;
+
+			assertEquals( bruteForce( xyz, n, x, y, z, 9 ), searcher.nearest( x, y, z, 9 ) );
+		}
+	}
+
+	@Test
+	public void duplicatesAndFlatPoints()
+	{
+		final Random rnd = new Random( 3 );
+		final int n = 300;
+
+		// many identical coordinates, all points in one plane
+		final double[] xyz = new double[ n * 3 ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			xyz[ i * 3 ] = rnd.nextInt( 5 );
+			xyz[ i * 3 + 1 ] = rnd.nextInt( 5 );
+			xyz[ i * 3 + 2 ] = 1;
+		}
+
+		final FlatKDTree.Searcher searcher = new FlatKDTree( xyz, n ).searcher();
+
+		for ( int q = 0; q < 200; ++q )
+		{
+			final double x = rnd.nextDouble() * 6 - 1, y = rnd.nextDouble() * 6 - 1, z = rnd.nextDouble() * 2;
+
+			// equally close points can be returned in any order, only the distance is unique
+			final int nearest = searcher.nearest( x, y, z, Double.MAX_VALUE );
+
+			assertEquals( distanceSq( xyz, bruteForce( xyz, n, x, y, z, Double.MAX_VALUE ), x, y, z ), distanceSq( xyz, nearest, x, y, z ), 0 );
+		}
+	}
+
+	protected static double[] randomPoints( final Random rnd, final int n, final double size )
+	{
+		final double[] xyz = new double[ n * 3 ];
+
+		for ( int i = 0; i < xyz.length; ++i )
+			xyz[ i ] = rnd.nextDouble() * size;
+
+		return xyz;
+	}
+
+	protected static int bruteForce( final double[] xyz, final int n, final double x, final double y, final double z, final double maxDistanceSq )
+	{
+		int best = -1;
+		double bestDistanceSq = maxDistanceSq;
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final double d = distanceSq( xyz, i, x, y, z );
+
+			if ( d < bestDistanceSq )
+			{
+				bestDistanceSq = d;
+				best = i;
+			}
+		}
+
+		return best;
+	}
+
+	protected static double distanceSq( final double[] xyz, final int i, final double x, final double y, final double z )
+	{
+		final double dx = xyz[ i * 3 ] - x, dy = xyz[ i * 3 + 1 ] - y, dz = xyz[ i * 3 + 2 ] - z;
+
+		return dx * dx + dy * dy + dz * dz;
+	}
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class IntensityRangeTest
+{
+	final static long[] dim = new long[] { 60, 50, 40 };
+
+	@Test
+	public void gridOfIntervalSamplesOnlyItsPixels()
+	{
+		final FinalInterval interval = Intervals.createMinMax( 13, 21, 7, 42, 40, 30 );
+		final float[] values = IntensityRange.sampleGrid( view( Views.interval( indexImg(), interval ) ), 1000 );
+
+		assertTrue( values.length >= 1000 );
+
+		// the grid starts at the min of the interval
+		assertEquals( index( interval.minAsLongArray() ), values[ 0 ], 0 );
+
+		for ( final float v : values )
+			assertTrue( contains( interval, position( v ) ) );
+	}
+
+	@Test
+	public void gridOfTranslatedImageStartsAtItsMin()
+	{
+		final float[] values = IntensityRange.sampleGrid( view( Views.translate( indexImg(), 100, -50, 25 ) ), 100 );
+
+		assertTrue( values.length >= 100 );
+		assertEquals( 0, values[ 0 ], 0 );
+	}
+
+	@Test
+	public void chunksOfIntervalSampleOnlyItsPixels()
+	{
+		final FinalInterval interval = Intervals.createMinMax( 5, 3, 11, 54, 47, 38 );
+		final float[] values = IntensityRange.sampleChunks( view( Views.interval( indexImg(), interval ) ), new int[] { 16, 16, 8 }, 6, 3000, 17 );
+
+		assertTrue( values.length >= 3000 );
+
+		for ( final float v : values )
+			assertTrue( contains( interval, position( v ) ) );
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected static RandomAccessibleInterval< RealType< ? > > view( final RandomAccessibleInterval< FloatType > img )
+	{
+		return (RandomAccessibleInterval)img;
+	}
+
+	// every pixel holds its own index, so the position of a sample can be recovered from its value
+	protected static ArrayImg< FloatType, FloatArray > indexImg()
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( dim );
+		final Cursor< FloatType > c = img.localizingCursor();
+
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			c.get().set( index( c.positionAsLongArray() ) );
+		}
+
+		return img;
+	}
+
+	protected static long index( final long[] position )
+	{
+		return position[ 0 ] + dim[ 0 ] * ( position[ 1 ] + dim[ 1 ] * position[ 2 ] );
+	}
+
+	protected static long[] position( final float value )
+	{
+		final long index = (long)value;
+		return new long[] { index % dim[ 0 ], ( index / dim[ 0 ] ) % dim[ 1 ], index / ( dim[ 0 ] * dim[ 1 ] ) };
+	}
+
+	protected static boolean contains( final Interval interval, final long[] position )
+	{
+		for ( int d = 0; d < position.length; ++d )
+			if ( position[ d ] < interval.min( d ) || position[ d ] > interval.max( d ) )
+				return false;
+
+		return true;
+	}
+}
@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class LRUCacheTest
+{
+	@Test
+	public void evictsLeastRecentlyUsed()
+	{
+		final LRUCache< long[] > cache = new LRUCache<>( 30, v -> v.length );
+		final long[] a = new long[ 10 ], b = new long[ 10 ], c = new long[ 10 ];
+
+		assertEquals( 0, cache.put( "a", a ) );
+		assertEquals( 0, cache.put( "b", b ) );
+		assertEquals( 0, cache.put( "c", c ) );
+
+		// a is now more recently used than b
+		assertSame( a, cache.get( "a" ) );
+
+		assertEquals( 1, cache.put( "d", new long[ 10 ] ) );
+		assertNull( cache.get( "b" ) );
+		assertSame( a, cache.get( "a" ) );
+		assertSame( c, cache.get( "c" ) );
+	}
+
+	@Test
+	public void evictsAsManyAsNeeded()
+	{
+		final LRUCache< long[] > cache = new LRUCache<>( 30, v -> v.length );
+
+		cache.put( "a", new long[ 10 ] );
+		cache.put( "b", new long[ 10 ] );
+		cache.put( "c", new long[ 10 ] );
+
+		assertEquals( 2, cache.put( "d", new long[ 20 ] ) );
+		assertNull( cache.get( "a" ) );
+		assertNull( cache.get( "b" ) );
+	}
+
+	@Test
+	public void replacingAValueUpdatesTheSize()
+	{
+		final LRUCache< long[] > cache = new LRUCache<>( 30, v -> v.length );
+		final long[] a = new long[ 25 ];
+
+		cache.put( "b", new long[ 10 ] );
+		cache.put( "a", new long[ 10 ] );
+
+		// 10 + 25 do not fit, the new value is kept
+		assertEquals( 1, cache.put( "a", a ) );
+		assertNull( cache.get( "b" ) );
+		assertSame( a, cache.get( "a" ) );
+
+		// only 25 are used, 5 more fit
+		assertEquals( 0, cache.put( "c", new long[ 5 ] ) );
+	}
+
+	@Test
+	public void valuesBiggerThanTheCacheAreNotAdded()
+	{
+		final LRUCache< long[] > cache = new LRUCache<>( 30, v -> v.length );
+		final long[] a = new long[ 10 ];
+
+		cache.put( "a", a );
+
+		assertEquals( 0, cache.put( "big", new long[ 31 ] ) );
+		assertNull( cache.get( "big" ) );
+		assertSame( a, cache.get( "a" ) );
+	}
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class PairPartitionerTest
+{
+	@Test
+	public void equalCostsAreBalanced()
+	{
+		final Random rnd = new Random( 1 );
+		final List< double[] > positions = randomPositions( rnd, 1000 );
+		final double[] costs = new double[ positions.size() ];
+		Arrays.fill( costs, 1 );
+
+		for ( final int n : new int[] { 1, 2, 3, 7, 16 } )
+		{
+			final int[] count = new int[ n ];
+
+			for ( final int p : PairPartitioner.bisect( positions, costs, n ) )
+				++count[ p ];
+
+			for ( int p = 0; p < n; ++p )
+				assertTrue( "partition " + p + " of " + n + " has " + count[ p ], Math.abs( count[ p ] - 1000.0 / n ) <= n );
+		}
+	}
+
+	@Test
+	public void unequalCostsAreBalanced()
+	{
+		final Random rnd = new Random( 2 );
+		final List< double[] > positions = randomPositions( rnd, 1000 );
+		final double[] costs = new double[ positions.size() ];
+		Arrays.setAll( costs, i -> 1 + rnd.nextInt( 100 ) );
+
+		final int n = 8;
+		final double[] partitionCosts = new double[ n ];
+		final int[] partition = PairPartitioner.bisect( positions, costs, n );
+
+		for ( int i = 0; i < partition.length; ++i )
+			partitionCosts[ partition[ i ] ] += costs[ i ];
+
+		final double total = Arrays.stream( costs ).sum();
+
+		// every split is off by at most half of one element
+		for ( int p = 0; p < n; ++p )
+			assertEquals( total / n, partitionCosts[ p ], 3 * 100 );
+	}
+
+	@Test
+	public void partitionsAreSpatiallyContiguous()
+	{
+		// points on a line are split into consecutive segments
+		final Random rnd = new Random( 3 );
+		final List< double[] > positions = new ArrayList<>();
+
+		for ( int i = 0; i < 500; ++i )
+			positions.add( new double[] { rnd.nextDouble() * 1000, rnd.nextDouble(), rnd.nextDouble() } );
+
+		final double[] costs = new double[ positions.size() ];
+		Arrays.fill( costs, 1 );
+
+		final int[] partition = PairPartitioner.bisect( positions, costs, 5 );
+		final int[] order = IntStream.range( 0, positions.size() ).boxed()
+				.sorted( Comparator.comparingDouble( i -> positions.get( i )[ 0 ] ) ).mapToInt( Integer::intValue ).toArray();
+
+		for ( int i = 1; i < order.length; ++i )
+			assertTrue( partition[ order[ i ] ] >= partition[ order[ i - 1 ] ] );
+
+		assertEquals( 4, partition[ order[ order.length - 1 ] ] );
+	}
+
+	@Test
+	public void morePartitionsThanElements()
+	{
+		final List< double[] > positions = randomPositions( new Random( 4 ), 3 );
+
+		for ( final int p : PairPartitioner.bisect( positions, new double[] { 1, 1, 1 }, 8 ) )
+			assertTrue( p >= 0 && p < 8 );
+	}
+
+	protected static List< double[] > randomPositions( final Random rnd, final int n )
+	{
+		final ArrayList< double[] > positions = new ArrayList<>();
+
+		for ( int i = 0; i < n; ++i )
+			positions.add( new double[] { rnd.nextDouble() * 1000, rnd.nextDouble() * 1000, rnd.nextDouble() * 1000 } );
+
+		return positions;
+	}
+}
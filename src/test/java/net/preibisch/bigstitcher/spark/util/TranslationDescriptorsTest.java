@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.models.TranslationModel3D;
+import net.preibisch.legacy.mpicbg.PointMatchGeneric;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSACParameters;
+
+public class TranslationDescriptorsTest
+{
+	final static RANSACParameters rp = new RANSACParameters( 1.0f, 0.1f, 3.0f, 1000 );
+
+	@Test
+	public void matchesTranslatedCopy()
+	{
+		final Random rnd = new Random( 1 );
+		final List< InterestPoint > pointsB = new ArrayList<>();
+
+		for ( int i = 0; i < 200; ++i )
+			pointsB.add( new InterestPoint( i, new double[] { rnd.nextDouble() * 500, rnd.nextDouble() * 500, rnd.nextDouble() * 500 } ) );
+
+		final List< InterestPoint > pointsA = translate( pointsB, new double[] { 20, -10, 5 }, 0.05, rnd );
+
+		final ArrayList< PointMatchGeneric< InterestPoint > > inliers = match( pointsA, pointsB );
+
+		assertTrue( inliers.size() > 150 );
+
+		for ( final PointMatchGeneric< InterestPoint > pm : inliers )
+			assertEquals( pm.getPoint1().getId(), pm.getPoint2().getId() );
+	}
+
+	@Test
+	public void secondBestIsADifferentPoint()
+	{
+		final Random rnd = new Random( 2 );
+		final List< InterestPoint > pointsB = new ArrayList<>();
+
+		// a point whose neighbors come in close pairs, so every descriptor of it has another descriptor of the
+		// same point less than 1 away, which must not count as the second best match
+		final double[] c = new double[] { 500, 500, 500 };
+		pointsB.add( new InterestPoint( 0, c.clone() ) );
+		pointsB.add( new InterestPoint( 1, new double[] { c[ 0 ] + 10, c[ 1 ], c[ 2 ] } ) );
+		pointsB.add( new InterestPoint( 2, new double[] { c[ 0 ] + 10.4, c[ 1 ] + 0.6, c[ 2 ] } ) );
+		pointsB.add( new InterestPoint( 3, new double[] { c[ 0 ], c[ 1 ], c[ 2 ] + 14 } ) );
+		pointsB.add( new InterestPoint( 4, new double[] { c[ 0 ], c[ 1 ] + 0.6, c[ 2 ] + 14.4 } ) );
+
+		// other points far away from it and from each other
+		for ( int i = 5; pointsB.size() < 100; ++i )
+		{
+			final double[] l = new double[] { rnd.nextDouble() * 1000, rnd.nextDouble() * 1000, rnd.nextDouble() * 1000 };
+
+			if ( pointsB.stream().allMatch( p -> TranslationDescriptors.squareDistance( p.getL(), l ) > 50 * 50 ) )
+				pointsB.add( new InterestPoint( i, l ) );
+		}
+
+		final List< InterestPoint > pointsA = translate( pointsB, new double[] { 20, -10, 5 }, 0.1, rnd );
+
+		assertTrue( match( pointsA, pointsB ).stream().anyMatch( pm -> pm.getPoint1().getId() == 0 && pm.getPoint2().getId() == 0 ) );
+	}
+
+	protected static ArrayList< PointMatchGeneric< InterestPoint > > match( final List< InterestPoint > pointsA, final List< InterestPoint > pointsB )
+	{
+		return TranslationDescriptors.match(
+				TranslationDescriptors.create( pointsA, 3, 1 ),
+				TranslationDescriptors.create( pointsB, 3, 1 ),
+				pointsA, pointsB, 3.0, false, 0, new TranslationModel3D(), rp, 0.99, null, "test" );
+	}
+
+	protected static List< InterestPoint > translate( final List< InterestPoint > points, final double[] t, final double noise, final Random rnd )
+	{
+		final ArrayList< InterestPoint > translated = new ArrayList<>();
+
+		for ( final InterestPoint p : points )
+		{
+			final double[] l = new double[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+				l[ d ] = p.getL()[ d ] + t[ d ] + noise * rnd.nextGaussian();
+
+			translated.add( new InterestPoint( p.getId(), l ) );
+		}
+
+		return translated;
+	}
+}